@@ -0,0 +1,453 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Evaluates an expression for many points at once, one column of values at a time.
+ * <p>
+ * Evaluating an expression once per point pays the overhead of interpreting each node once per point. A batch
+ * expression is lowered into a {@link Program} whose registers are blocks of {@link #BLOCK_SIZE} values. Each
+ * instruction is then executed as a tight loop over a whole block, so that the interpretation overhead is only paid
+ * once per block. As a block has to be computed by the same instructions for all points, <tt>if</tt> computes both
+ * branches and selects the result per point. Likewise, the right operand of <tt>&amp;&amp;</tt> and <tt>||</tt> is
+ * only skipped if the left operand determines the result for all points of a block.
+ * <p>
+ * On Java 17 or newer, the loops of comparisons, logical operations, <tt>min</tt>, <tt>max</tt>, <tt>abs</tt>,
+ * <tt>sqrt</tt> and <tt>if</tt> use the SIMD instructions of the CPU via the Vector API, if the module
+ * <tt>jdk.incubator.vector</tt> is present (e.g. by passing <tt>--add-modules jdk.incubator.vector</tt> to the JVM).
+ * Otherwise, plain scalar loops are used.
+ * <p>
+ * The values of the variables are supplied as columns, laid out like a frame of the {@link Scope} which was used to
+ * parse the expression: <tt>inputColumns[scope.getSlot(variable)][i]</tt> contains the value of the variable for the
+ * i-th point. The variables themselves are neither read nor modified, therefore {@link #evaluateBatch(double[][],
+ * double[], int)} can be invoked by several threads at once. Very large batches can also be split across all
+ * workers of a {@link ForkJoinPool} using {@link #evaluateBatch(double[][], double[], int, ForkJoinPool)}.
+ * <p>
+ * Evaluating a batch is as simple as:
+ * {@code
+ * BatchExpression expr = BatchExpression.compile(new Parser().parse("3 + a * 4", scope));
+ * double[][] columns = new double[scope.getFrameSize()][];
+ * columns[scope.getSlot(scope.getVariable("a"))] = values;
+ * expr.evaluateBatch(columns, results, values.length);
+ * }
+ */
+public final class BatchExpression implements Expression {
+
+    /**
+     * Contains the number of points computed by a single loop over a block.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    /**
+     * Contains the minimal number of blocks computed by a single task when evaluating a batch in parallel.
+     */
+    private static final int MIN_BLOCKS_PER_TASK = 16;
+
+    /**
+     * Contains the number of tasks per worker a parallel batch is split into, so that work can be stolen if some
+     * workers are slower than others.
+     */
+    private static final int TASKS_PER_WORKER = 4;
+
+    private static final Intrinsic[] INTRINSICS = new Intrinsic[Program.SELECT];
+    private static final BlockOperations OPERATIONS = BlockOperationsFactory.create();
+
+    static {
+        for(Map.Entry<Function, Integer> entry : ProgramBuilder.INTRINSIC_OPCODES.entrySet()) {
+            INTRINSICS[entry.getValue()] = Intrinsic.of(entry.getKey());
+        }
+    }
+
+    private final Expression source;
+    private final Program program;
+
+    private BatchExpression(Expression source, Program program) {
+        this.source = source;
+        this.program = program;
+    }
+
+    /**
+     * Lowers the given expression so that it can be evaluated in batches.
+     * <p>
+     * The given expression should be simplified first, which is automatically done by {@link Parser#parse()}.
+     *
+     * @param expression the expression to lower
+     * @return a batch expression which computes the same results as the given expression
+     */
+    public static BatchExpression compile(Expression expression) {
+        if(expression instanceof BatchExpression) {
+            return (BatchExpression) expression;
+        }
+        if(expression instanceof CompiledExpression) {
+            return compile(((CompiledExpression) expression).getSource());
+        }
+        return new BatchExpression(expression, new ProgramBuilder(true).build(expression));
+    }
+
+    /**
+     * Returns the expression which was lowered into this batch expression.
+     *
+     * @return the expression this batch expression was created from
+     */
+    public Expression getSource() {
+        return source;
+    }
+
+    /**
+     * Evaluates the expression for a single point.
+     * <p>
+     * Just like {@link Program#evaluate()} this must not be invoked by several threads at once.
+     *
+     * @return the result of the expression using the current values of all variables
+     */
+    @Override
+    public double evaluate() {
+        return program.evaluate();
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return program.evaluate(frame);
+    }
+
+    @Override
+    public void evaluateBatch(double[][] inputColumns, double[] out, int n) {
+        checkColumns(inputColumns);
+        evaluateRange(inputColumns, out, 0, n);
+    }
+
+    /**
+     * Evaluates the expression for <tt>n</tt> points using all workers of the given pool.
+     * <p>
+     * The points are split into ranges of whole blocks, which are evaluated by work-stealing tasks. Each task uses
+     * registers and a frame of its own and stores its results directly in the given output array. This method blocks
+     * until all points have been evaluated.
+     *
+     * @param inputColumns the values of all variables, indexed by their slot (see
+     *                     {@link Expression#evaluateBatch(double[][], double[], int)})
+     * @param out          the array to store the result for each point in
+     * @param n            the number of points to evaluate
+     * @param pool         the pool used to execute the tasks
+     */
+    public void evaluateBatch(double[][] inputColumns, double[] out, int n, ForkJoinPool pool) {
+        checkColumns(inputColumns);
+        int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int blocksPerTask = Math.max(MIN_BLOCKS_PER_TASK, blocks / (pool.getParallelism() * TASKS_PER_WORKER));
+        pool.invoke(new BatchTask(inputColumns, out, n, 0, blocks, blocksPerTask));
+    }
+
+    /*
+     * Evaluates the points in the range [from, to), which has to start at a multiple of BLOCK_SIZE.
+     */
+    private void evaluateRange(double[][] inputColumns, double[] out, int from, int to) {
+        double[][] registers = createRegisters();
+        double[] frame = program.calls.length > 0 ? new double[inputColumns.length] : null;
+        for(int offset = from; offset < to; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, to - offset);
+            loadColumns(registers, inputColumns, offset, length);
+            run(registers, inputColumns, offset, length, frame);
+            System.arraycopy(registers[program.results[0]], 0, out, offset, length);
+        }
+    }
+
+    /**
+     * Recursively splits a range of blocks until at most <tt>blocksPerTask</tt> remain, which are then evaluated.
+     */
+    private final class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2687319464226893174L;
+
+        private final double[][] inputColumns;
+        private final double[] out;
+        private final int n;
+        private final int fromBlock;
+        private final int toBlock;
+        private final int blocksPerTask;
+
+        BatchTask(double[][] inputColumns, double[] out, int n, int fromBlock, int toBlock, int blocksPerTask) {
+            this.inputColumns = inputColumns;
+            this.out = out;
+            this.n = n;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+            this.blocksPerTask = blocksPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if(toBlock - fromBlock <= blocksPerTask) {
+                evaluateRange(inputColumns, out, fromBlock * BLOCK_SIZE, Math.min(n, toBlock * BLOCK_SIZE));
+                return;
+            }
+            int middle = (fromBlock + toBlock) >>> 1;
+            invokeAll(new BatchTask(inputColumns, out, n, fromBlock, middle, blocksPerTask),
+                      new BatchTask(inputColumns, out, n, middle, toBlock, blocksPerTask));
+        }
+    }
+
+    private void checkColumns(double[][] inputColumns) {
+        for(int i = 0; i < program.variables.length; i++) {
+            int slot = program.variableSlots[i];
+            if(slot >= inputColumns.length || slot >= 0 && inputColumns[slot] == null) {
+                throw new IllegalArgumentException(String.format("No column was given for the variable '%s' (slot %d)",
+                                                                 program.variables[i].getName(),
+                                                                 slot));
+            }
+        }
+    }
+
+    /*
+     * Creates the registers used to evaluate a batch. Constants and variables without slot are filled once.
+     */
+    private double[][] createRegisters() {
+        double[][] registers = new double[program.registers.length][BLOCK_SIZE];
+        for(int i = 0; i < program.variableOffset; i++) {
+            Arrays.fill(registers[i], program.registers[i]);
+        }
+        for(int i = 0; i < program.variables.length; i++) {
+            if(program.variableSlots[i] < 0) {
+                Arrays.fill(registers[program.variableOffset + i], program.variables[i].getValue());
+            }
+        }
+        return registers;
+    }
+
+    private void loadColumns(double[][] registers, double[][] inputColumns, int offset, int length) {
+        for(int i = 0; i < program.variables.length; i++) {
+            int slot = program.variableSlots[i];
+            if(slot >= 0) {
+                System.arraycopy(inputColumns[slot], offset, registers[program.variableOffset + i], 0, length);
+            }
+        }
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity", "squid:S1479"})
+    private void run(double[][] r, double[][] inputColumns, int offset, int length, double[] frame) {
+        int[] c = program.code;
+        int pc = 0;
+        while(pc < c.length) {
+            int opcode = c[pc];
+            switch(opcode) {
+                case Program.ADD:
+                    OPERATIONS.add(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.SUBTRACT:
+                    OPERATIONS.subtract(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.MULTIPLY:
+                    OPERATIONS.multiply(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.DIVIDE:
+                    OPERATIONS.divide(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.MODULO:
+                    OPERATIONS.modulo(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.POWER:
+                    map(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length, FastMath::pow);
+                    break;
+                case Program.LT:
+                    OPERATIONS.lessThan(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.LT_EQ:
+                    OPERATIONS.lessOrEqual(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.EQ:
+                    OPERATIONS.equal(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.GT_EQ:
+                    OPERATIONS.lessOrEqual(r[c[pc + 1]], r[c[pc + 3]], r[c[pc + 2]], length);
+                    break;
+                case Program.GT:
+                    OPERATIONS.lessThan(r[c[pc + 1]], r[c[pc + 3]], r[c[pc + 2]], length);
+                    break;
+                case Program.NEQ:
+                    OPERATIONS.notEqual(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.AND:
+                    OPERATIONS.and(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.OR:
+                    OPERATIONS.or(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                    break;
+                case Program.MOVE:
+                    System.arraycopy(r[c[pc + 2]], 0, r[c[pc + 1]], 0, length);
+                    break;
+                case Program.SELECT:
+                    OPERATIONS.select(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], r[c[pc + 4]], length);
+                    break;
+                case Program.AND_THEN:
+                    if(!anyTrue(r[c[pc + 2]], length)) {
+                        Arrays.fill(r[c[pc + 1]], 0, length, 0);
+                        pc = c[pc + 3];
+                        continue;
+                    }
+                    break;
+                case Program.OR_ELSE:
+                    if(allTrue(r[c[pc + 2]], length)) {
+                        Arrays.fill(r[c[pc + 1]], 0, length, 1);
+                        pc = c[pc + 3];
+                        continue;
+                    }
+                    break;
+                case Program.CALL:
+                    call(r[c[pc + 1]], program.calls[c[pc + 2]], inputColumns, offset, length, frame);
+                    break;
+                case Program.UNARY_FUNCTION:
+                    UnaryFunction unaryFunction = (UnaryFunction) program.functions[c[pc + 2]];
+                    mapNaNSafe(r[c[pc + 1]], r[c[pc + 3]], length, unaryFunction::eval);
+                    break;
+                case Program.BINARY_FUNCTION:
+                    BinaryFunction binaryFunction = (BinaryFunction) program.functions[c[pc + 2]];
+                    mapNaNSafe(r[c[pc + 1]], r[c[pc + 3]], r[c[pc + 4]], length, binaryFunction::eval);
+                    break;
+                default:
+                    intrinsic(opcode, r, c, pc, length);
+            }
+            pc += Program.instructionLength(opcode);
+        }
+    }
+
+    private static boolean anyTrue(double[] values, int length) {
+        for(int i = 0; i < length; i++) {
+            if(FastMath.abs(values[i]) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allTrue(double[] values, int length) {
+        for(int i = 0; i < length; i++) {
+            if(!(FastMath.abs(values[i]) > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void intrinsic(int opcode, double[][] r, int[] c, int pc, int length) {
+        switch(opcode) {
+            case Program.ABS:
+                OPERATIONS.abs(r[c[pc + 1]], r[c[pc + 2]], length);
+                return;
+            case Program.SQRT:
+                OPERATIONS.sqrt(r[c[pc + 1]], r[c[pc + 2]], length);
+                return;
+            case Program.MIN:
+                OPERATIONS.min(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                return;
+            case Program.MAX:
+                OPERATIONS.max(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length);
+                return;
+            default:
+                break;
+        }
+        Intrinsic intrinsic = opcode < INTRINSICS.length ? INTRINSICS[opcode] : null;
+        if(intrinsic == null) {
+            throw new IllegalStateException("Unsupported opcode: " + opcode);
+        }
+        if(intrinsic.getNumberOfArguments() == 1) {
+            if(intrinsic.isNanPropagating()) {
+                map(r[c[pc + 1]], r[c[pc + 2]], length, intrinsic.getUnaryOperator());
+            } else {
+                mapNaNSafe(r[c[pc + 1]], r[c[pc + 2]], length, intrinsic.getUnaryOperator());
+            }
+        } else {
+            if(intrinsic.isNanPropagating()) {
+                map(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length, intrinsic.getBinaryOperator());
+            } else {
+                mapNaNSafe(r[c[pc + 1]], r[c[pc + 2]], r[c[pc + 3]], length, intrinsic.getBinaryOperator());
+            }
+        }
+    }
+
+    private static void map(double[] dst, double[] a, int length, DoubleUnaryOperator operator) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = operator.applyAsDouble(a[i]);
+        }
+    }
+
+    private static void map(double[] dst, double[] a, double[] b, int length, DoubleBinaryOperator operator) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = operator.applyAsDouble(a[i], b[i]);
+        }
+    }
+
+    /*
+     * Applies the operator while retaining the NaN checks performed by UnaryFunction.
+     */
+    private static void mapNaNSafe(double[] dst, double[] a, int length, DoubleUnaryOperator operator) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = Double.isNaN(a[i]) ? a[i] : operator.applyAsDouble(a[i]);
+        }
+    }
+
+    /*
+     * Applies the operator while retaining the NaN checks performed by BinaryFunction.
+     */
+    private static void mapNaNSafe(double[] dst, double[] a, double[] b, int length, DoubleBinaryOperator operator) {
+        for(int i = 0; i < length; i++) {
+            if(Double.isNaN(a[i])) {
+                dst[i] = a[i];
+            } else if(Double.isNaN(b[i])) {
+                dst[i] = b[i];
+            } else {
+                dst[i] = operator.applyAsDouble(a[i], b[i]);
+            }
+        }
+    }
+
+    /*
+     * Expressions which cannot be lowered are evaluated point by point, using a frame filled from the columns.
+     */
+    private static void call(double[] dst,
+                             Expression expression,
+                             double[][] inputColumns,
+                             int offset,
+                             int length,
+                             double[] frame) {
+        for(int i = 0; i < length; i++) {
+            for(int slot = 0; slot < frame.length; slot++) {
+                if(inputColumns[slot] != null) {
+                    frame[slot] = inputColumns[slot][offset + i];
+                }
+            }
+            dst[i] = expression.evaluate(frame);
+        }
+    }
+
+    /**
+     * Returns the name of the implementation used to compute blocks.
+     *
+     * @return <tt>vector</tt> followed by the number of lanes if the Vector API is used, <tt>scalar</tt> otherwise
+     */
+    public static String getBlockImplementation() {
+        return OPERATIONS.getName();
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
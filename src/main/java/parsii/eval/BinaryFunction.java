@@ -35,6 +35,19 @@ public abstract class BinaryFunction implements Function {
         return eval(a, b);
     }
 
+    @Override
+    public double eval(List<Expression> args, double[] frame) {
+        double a = args.get(0).evaluate(frame);
+        if(Double.isNaN(a)) {
+            return a;
+        }
+        double b = args.get(1).evaluate(frame);
+        if(Double.isNaN(b)) {
+            return b;
+        }
+        return eval(a, b);
+    }
+
     /**
      * Performs the computation of the binary function
      *
@@ -15,6 +15,13 @@ import net.jafama.FastMath;
  * <p>
  * A binary operation has two sub-expressions. A set of supported operations is also defined. If both arguments are
  * constant, simplifying this expression will again lead to a constant expression.
+ * <p>
+ * Operations should be created via {@link #create(Op, Expression, Expression)} which returns a specialized subclass
+ * per operator. Each of these has a tiny <tt>evaluate</tt> method of its own, which the JIT can inline without
+ * having to dispatch on the operator.
+ * <p>
+ * The logical operators <tt>&amp;&amp;</tt> and <tt>||</tt> short-circuit: the right operand is only evaluated if
+ * the left one doesn't already determine the result.
  */
 public class BinaryOperation implements Expression {
 
@@ -24,12 +31,15 @@ public class BinaryOperation implements Expression {
      */
     public static final double EPSILON = 0.0000000001;
     private final Op op;
-    private Expression left;
-    private Expression right;
+    Expression left;
+    Expression right;
     private boolean sealed = false;
 
     /**
      * Creates a new binary operator for the given operator and operands.
+     * <p>
+     * Note that {@link #create(Op, Expression, Expression)} should be preferred, as it returns an operation which is
+     * specialized for the given operator.
      *
      * @param op    the operator of the operation
      * @param left  the left operand
@@ -41,6 +51,50 @@ public class BinaryOperation implements Expression {
         this.right = right;
     }
 
+    /**
+     * Creates a new binary operation which is specialized for the given operator.
+     *
+     * @param op    the operator of the operation
+     * @param left  the left operand
+     * @param right the right operand
+     * @return a new binary operation which performs the given operator
+     */
+    @SuppressWarnings("squid:MethodCyclomaticComplexity")
+    public static BinaryOperation create(Op op, Expression left, Expression right) {
+        switch(op) {
+            case ADD:
+                return new Add(left, right);
+            case SUBTRACT:
+                return new Subtract(left, right);
+            case MULTIPLY:
+                return new Multiply(left, right);
+            case DIVIDE:
+                return new Divide(left, right);
+            case POWER:
+                return new Power(left, right);
+            case MODULO:
+                return new Modulo(left, right);
+            case LT:
+                return new LessThan(left, right);
+            case LT_EQ:
+                return new LessThanOrEqual(left, right);
+            case GT:
+                return new GreaterThan(left, right);
+            case GT_EQ:
+                return new GreaterThanOrEqual(left, right);
+            case EQ:
+                return new Equal(left, right);
+            case NEQ:
+                return new NotEqual(left, right);
+            case AND:
+                return new And(left, right);
+            case OR:
+                return new Or(left, right);
+            default:
+                return new BinaryOperation(op, left, right);
+        }
+    }
+
     /**
      * Returns the operation performed by this binary operation.
      *
@@ -101,12 +155,63 @@ public class BinaryOperation implements Expression {
         return "(" + left.toString() + " " + op + " " + right + ")";
     }
 
+    /**
+     * Two operations are equal if they perform the same operation on equal operands.
+     * <p>
+     * Note that the operands are compared as they are, therefore <tt>a + b</tt> isn't equal to <tt>b + a</tt>.
+     * Whether an operation is sealed is not taken into account.
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is a structurally equal operation, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof BinaryOperation)) {
+            return false;
+        }
+        BinaryOperation other = (BinaryOperation) obj;
+        return op == other.op && left.equals(other.left) && right.equals(other.right);
+    }
+
+    @Override
+    public int hashCode() {
+        return (op.ordinal() * 31 + left.hashCode()) * 31 + right.hashCode();
+    }
+
     @Override
-    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
     public double evaluate() {
-        double a = left.evaluate();
-        double b = right.evaluate();
+        if(op == Op.AND) {
+            return isTrue(left.evaluate()) && isTrue(right.evaluate()) ? 1 : 0;
+        }
+        if(op == Op.OR) {
+            return isTrue(left.evaluate()) || isTrue(right.evaluate()) ? 1 : 0;
+        }
+        return apply(left.evaluate(), right.evaluate());
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        if(op == Op.AND) {
+            return isTrue(left.evaluate(frame)) && isTrue(right.evaluate(frame)) ? 1 : 0;
+        }
+        if(op == Op.OR) {
+            return isTrue(left.evaluate(frame)) || isTrue(right.evaluate(frame)) ? 1 : 0;
+        }
+        return apply(left.evaluate(frame), right.evaluate(frame));
+    }
 
+    /*
+     * Interprets a value as boolean, just like Functions.IF does. NaN is considered false.
+     */
+    static boolean isTrue(double value) {
+        return FastMath.abs(value) > 0;
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    double apply(double a, double b) {
         switch(op) {
             case ADD:
                 return a + b;
@@ -132,10 +237,6 @@ public class BinaryOperation implements Expression {
                 return FastMath.abs(a - b) < EPSILON ? 1 : 0;
             case NEQ:
                 return FastMath.abs(a - b) > EPSILON ? 1 : 0;
-            case AND:
-                return FastMath.abs(a) > 0 && FastMath.abs(b) > 0 ? 1 : 0;
-            case OR:
-                return FastMath.abs(a) > 0 || FastMath.abs(b) > 0 ? 1 : 0;
             default:
                 throw new UnsupportedOperationException(String.valueOf(op));
         }
@@ -149,6 +250,14 @@ public class BinaryOperation implements Expression {
         if(left.isConstant() && right.isConstant()) {
             return new Constant(evaluate());
         }
+        // Operations which were created via the public constructor are replaced by their specialized counterpart
+        if(getClass() == BinaryOperation.class) {
+            BinaryOperation result = create(op, left, right);
+            if(sealed) {
+                result.seal();
+            }
+            return result.simplify();
+        }
         // + and * are commutative and associative, therefore we can reorder operands as we desire
         if(op == Op.ADD || op == Op.MULTIPLY) {
             // We prefer the have the constant part at the left side, re-order if it is the other way round.
@@ -182,12 +291,12 @@ public class BinaryOperation implements Expression {
             // being on the left side, since we reorder commutative operations (see above)
             if(childOp.left.isConstant()) {
                 if(op == Op.ADD) {
-                    return new BinaryOperation(op,
+                    return create(op,
                             new Constant(left.evaluate() + childOp.left.evaluate()),
                             childOp.right);
                 }
                 if(op == Op.MULTIPLY) {
-                    return new BinaryOperation(op,
+                    return create(op,
                             new Constant(left.evaluate() * childOp.left.evaluate()),
                             childOp.right);
                 }
@@ -197,12 +306,244 @@ public class BinaryOperation implements Expression {
         if(childOp.left.isConstant()) {
             // Since our left side is non constant, but the left side of the child expression is,
             // we push the constant up, to support further optimizations
-            return new BinaryOperation(op, childOp.left, new BinaryOperation(op, left, childOp.right));
+            return create(op, childOp.left, create(op, left, childOp.right));
         }
 
         return null;
     }
 
+    private static final class Add extends BinaryOperation {
+        Add(Expression left, Expression right) {
+            super(Op.ADD, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() + right.evaluate();
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) + right.evaluate(frame);
+        }
+    }
+
+    private static final class Subtract extends BinaryOperation {
+        Subtract(Expression left, Expression right) {
+            super(Op.SUBTRACT, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() - right.evaluate();
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) - right.evaluate(frame);
+        }
+    }
+
+    private static final class Multiply extends BinaryOperation {
+        Multiply(Expression left, Expression right) {
+            super(Op.MULTIPLY, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() * right.evaluate();
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) * right.evaluate(frame);
+        }
+    }
+
+    private static final class Divide extends BinaryOperation {
+        Divide(Expression left, Expression right) {
+            super(Op.DIVIDE, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() / right.evaluate();
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) / right.evaluate(frame);
+        }
+    }
+
+    private static final class Modulo extends BinaryOperation {
+        Modulo(Expression left, Expression right) {
+            super(Op.MODULO, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() % right.evaluate();
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) % right.evaluate(frame);
+        }
+    }
+
+    private static final class Power extends BinaryOperation {
+        Power(Expression left, Expression right) {
+            super(Op.POWER, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return FastMath.pow(left.evaluate(), right.evaluate());
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return FastMath.pow(left.evaluate(frame), right.evaluate(frame));
+        }
+    }
+
+    private static final class LessThan extends BinaryOperation {
+        LessThan(Expression left, Expression right) {
+            super(Op.LT, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() < right.evaluate() ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) < right.evaluate(frame) ? 1 : 0;
+        }
+    }
+
+    private static final class LessThanOrEqual extends BinaryOperation {
+        LessThanOrEqual(Expression left, Expression right) {
+            super(Op.LT_EQ, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            double a = left.evaluate();
+            double b = right.evaluate();
+            return a < b || FastMath.abs(a - b) < EPSILON ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            double a = left.evaluate(frame);
+            double b = right.evaluate(frame);
+            return a < b || FastMath.abs(a - b) < EPSILON ? 1 : 0;
+        }
+    }
+
+    private static final class GreaterThan extends BinaryOperation {
+        GreaterThan(Expression left, Expression right) {
+            super(Op.GT, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return left.evaluate() > right.evaluate() ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return left.evaluate(frame) > right.evaluate(frame) ? 1 : 0;
+        }
+    }
+
+    private static final class GreaterThanOrEqual extends BinaryOperation {
+        GreaterThanOrEqual(Expression left, Expression right) {
+            super(Op.GT_EQ, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            double a = left.evaluate();
+            double b = right.evaluate();
+            return a > b || FastMath.abs(a - b) < EPSILON ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            double a = left.evaluate(frame);
+            double b = right.evaluate(frame);
+            return a > b || FastMath.abs(a - b) < EPSILON ? 1 : 0;
+        }
+    }
+
+    private static final class Equal extends BinaryOperation {
+        Equal(Expression left, Expression right) {
+            super(Op.EQ, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return FastMath.abs(left.evaluate() - right.evaluate()) < EPSILON ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return FastMath.abs(left.evaluate(frame) - right.evaluate(frame)) < EPSILON ? 1 : 0;
+        }
+    }
+
+    private static final class NotEqual extends BinaryOperation {
+        NotEqual(Expression left, Expression right) {
+            super(Op.NEQ, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return FastMath.abs(left.evaluate() - right.evaluate()) > EPSILON ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return FastMath.abs(left.evaluate(frame) - right.evaluate(frame)) > EPSILON ? 1 : 0;
+        }
+    }
+
+    private static final class And extends BinaryOperation {
+        And(Expression left, Expression right) {
+            super(Op.AND, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return isTrue(left.evaluate()) && isTrue(right.evaluate()) ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return isTrue(left.evaluate(frame)) && isTrue(right.evaluate(frame)) ? 1 : 0;
+        }
+    }
+
+    private static final class Or extends BinaryOperation {
+        Or(Expression left, Expression right) {
+            super(Op.OR, left, right);
+        }
+
+        @Override
+        public double evaluate() {
+            return isTrue(left.evaluate()) || isTrue(right.evaluate()) ? 1 : 0;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return isTrue(left.evaluate(frame)) || isTrue(right.evaluate(frame)) ? 1 : 0;
+        }
+    }
+
     /**
      * Enumerates the operations supported by this expression.
      */
@@ -0,0 +1,132 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+/**
+ * Provides the element-wise loops used by {@link BatchExpression} to compute an instruction over a whole block.
+ * <p>
+ * This implementation uses plain scalar loops. When running on Java 17 or newer with the module
+ * <tt>jdk.incubator.vector</tt> present, {@link BlockOperationsFactory} provides a subclass which uses the Vector API
+ * instead (see <tt>src/main/java17</tt>, which is shipped in the versioned part of the multi-release jar).
+ * <p>
+ * All methods compute the first <tt>length</tt> elements of <tt>dst</tt>, which may be the same array as one of the
+ * operands.
+ */
+class BlockOperations {
+
+    /**
+     * Returns the name of this implementation.
+     *
+     * @return a short description of how the loops are executed
+     */
+    String getName() {
+        return "scalar";
+    }
+
+    void add(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] + b[i];
+        }
+    }
+
+    void subtract(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] - b[i];
+        }
+    }
+
+    void multiply(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] * b[i];
+        }
+    }
+
+    void divide(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] / b[i];
+        }
+    }
+
+    void modulo(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] % b[i];
+        }
+    }
+
+    void min(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.min(a[i], b[i]);
+        }
+    }
+
+    void max(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.max(a[i], b[i]);
+        }
+    }
+
+    void abs(double[] dst, double[] a, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.abs(a[i]);
+        }
+    }
+
+    void sqrt(double[] dst, double[] a, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.sqrt(a[i]);
+        }
+    }
+
+    void lessThan(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] < b[i] ? 1 : 0;
+        }
+    }
+
+    void lessOrEqual(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = a[i] < b[i] || FastMath.abs(a[i] - b[i]) < BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    void equal(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.abs(a[i] - b[i]) < BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    void notEqual(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.abs(a[i] - b[i]) > BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    void and(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.abs(a[i]) > 0 && FastMath.abs(b[i]) > 0 ? 1 : 0;
+        }
+    }
+
+    void or(double[] dst, double[] a, double[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = FastMath.abs(a[i]) > 0 || FastMath.abs(b[i]) > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Picks <tt>then</tt> or <tt>otherwise</tt> per element just like {@link Functions#IF} would.
+     */
+    void select(double[] dst, double[] check, double[] then, double[] otherwise, int length) {
+        for(int i = 0; i < length; i++) {
+            dst[i] = Program.select(check[i], then[i], otherwise[i]);
+        }
+    }
+}
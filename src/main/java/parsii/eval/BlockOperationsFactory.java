@@ -0,0 +1,30 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Selects the implementation of {@link BlockOperations} to use.
+ * <p>
+ * This class is replaced by a version which knows about the Vector API when running on Java 17 or newer (see
+ * <tt>src/main/java17</tt>). On older versions, the scalar loops are always used.
+ */
+final class BlockOperationsFactory {
+
+    private BlockOperationsFactory() {
+    }
+
+    /**
+     * Creates the block operations to use.
+     *
+     * @return the scalar implementation of the block operations
+     */
+    static BlockOperations create() {
+        return new BlockOperations();
+    }
+}
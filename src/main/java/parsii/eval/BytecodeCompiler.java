@@ -0,0 +1,644 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles an expression tree into a generated class which implements {@link Expression}.
+ * <p>
+ * Evaluating an expression tree requires an interface call per node. Also a {@link BinaryOperation} has to decide
+ * which operation to perform each time it is evaluated. The compiler therefore walks the tree once and emits the
+ * byte code of a single <tt>evaluate</tt> method: constants are inlined, variables are read from fields of the
+ * generated class and built-in functions (see {@link Functions}) are turned into direct calls of the static methods
+ * of {@link net.jafama.FastMath}.
+ * <p>
+ * The same is done for {@link Expression#evaluate(double[])}, where variables are read from the given frame at their
+ * slot instead. As the generated class has no mutable state, it can be shared by several threads which each evaluate
+ * their own frame. Just like the {@link LetExpression} itself, the code of a let expression stores its temporaries in
+ * a copy of the frame (or a new frame created from the variables), which is then passed on to all subtrees.
+ * <p>
+ * Custom functions are still invoked via {@link Function#eval(List)}, but their arguments are compiled on their own.
+ * The semantics of the tree interpreter are preserved exactly, including the handling of <tt>NaN</tt> values.
+ * <p>
+ * Compiling an expression is as simple as:
+ * {@code
+ * Expression expr = BytecodeCompiler.compile(new Parser().parse("3 + a * 4", scope));
+ * }
+ */
+public class BytecodeCompiler {
+
+    private static final String EXPRESSION = "parsii/eval/Expression";
+    private static final String EXPRESSION_TYPE = "L" + EXPRESSION + ";";
+    private static final String VARIABLE = "parsii/eval/Variable";
+    private static final String VARIABLE_TYPE = "L" + VARIABLE + ";";
+    private static final String BASE_CLASS = "parsii/eval/CompiledExpression";
+    private static final String FAST_MATH = "net/jafama/FastMath";
+    private static final String CLASS_NAME_PREFIX = "parsii.eval.GeneratedExpression";
+
+    /**
+     * Limits the size of the byte code of a generated method. Larger trees are partitioned into subtrees which are
+     * compiled into classes of their own. HotSpot doesn't compile methods larger than 8000 bytes (see
+     * <tt>-XX:HugeMethodLimit</tt>), which would therefore always be interpreted.
+     */
+    private static final int MAX_METHOD_SIZE = 8000;
+
+    /**
+     * Contains the size of the code which invokes a subtree compiled into a class of its own.
+     */
+    private static final int DELEGATE_SIZE = 11;
+
+    private static final AtomicLong classCounter = new AtomicLong();
+
+    private final Expression source;
+    private final String className;
+    private final ClassAssembler assembler = new ClassAssembler();
+    private final Map<Variable, String> variableFields = new IdentityHashMap<>();
+    private final List<Variable> variables = new ArrayList<>();
+    private final List<Expression> delegates = new ArrayList<>();
+    private final Map<Expression, String> delegateFields = new IdentityHashMap<>();
+    private final Map<Expression, Expression> compiledSubtrees = new IdentityHashMap<>();
+    private final Set<Expression> partitions;
+    private ClassAssembler.Method method;
+    private boolean framed;
+    private int frameLocal = 1;
+
+    private BytecodeCompiler(Expression source, Set<Expression> partitions) {
+        this.source = source;
+        this.partitions = partitions;
+        this.className = CLASS_NAME_PREFIX + classCounter.incrementAndGet();
+    }
+
+    /**
+     * Compiles the given expression into a generated class.
+     * <p>
+     * The given expression should be simplified first, which is automatically done by {@link Parser#parse()}.
+     *
+     * @param expression the expression to compile
+     * @return a new expression which computes the same results as the given one, but doesn't need to traverse the
+     * tree
+     */
+    public static Expression compile(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            if(expression.getClass().getClassLoader() instanceof ExpressionClassLoader) {
+                return expression;
+            }
+            return compile(((CompiledExpression) expression).getSource());
+        }
+        Set<Expression> partitions = Collections.newSetFromMap(new IdentityHashMap<>());
+        partition(expression, partitions);
+        return new BytecodeCompiler(expression, partitions).generate();
+    }
+
+    /*
+     * Determines the subtrees which are compiled into classes of their own. Walking bottom up, the largest children
+     * of a node are split off until its code (along with the final return instruction) fits into MAX_METHOD_SIZE.
+     * Returns the maximal size of the code which computes the given node within the current method.
+     */
+    private static int partition(Expression expr, Set<Expression> partitions) {
+        List<Expression> children = inlinedChildren(expr);
+        int[] sizes = new int[children.size()];
+        int result = maxCodeSize(expr);
+        for(int i = 0; i < sizes.length; i++) {
+            sizes[i] = partition(children.get(i), partitions);
+            result += sizes[i];
+        }
+        while(result >= MAX_METHOD_SIZE) {
+            int largest = 0;
+            for(int i = 1; i < sizes.length; i++) {
+                if(sizes[i] > sizes[largest]) {
+                    largest = i;
+                }
+            }
+            if(sizes.length == 0 || sizes[largest] <= DELEGATE_SIZE) {
+                // Only a let expression with thousands of temporaries ends up here
+                break;
+            }
+            partitions.add(children.get(largest));
+            result -= sizes[largest] - DELEGATE_SIZE;
+            sizes[largest] = DELEGATE_SIZE;
+        }
+        return result;
+    }
+
+    /*
+     * Computes an upper bound of the size of the code emitted for the given node itself, excluding the code of its
+     * inlined children. This has to match the emit methods below. Locals and constants are always referenced with
+     * their maximal size (2 bytes for a local instruction, 3 bytes for an int or double constant).
+     */
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private static int maxCodeSize(Expression expr) {
+        if(expr.isConstant()) {
+            return 3;
+        }
+        if(expr instanceof VariableReference) {
+            return 7;
+        }
+        if(expr instanceof BinaryOperation) {
+            switch(((BinaryOperation) expr).getOp()) {
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case MODULO:
+                    return 1;
+                case POWER:
+                    return 3;
+                case LT:
+                case GT:
+                    return 9;
+                case EQ:
+                case NEQ:
+                    return 16;
+                case LT_EQ:
+                case GT_EQ:
+                    return 32;
+                case AND:
+                case OR:
+                    return 21;
+                default:
+                    return DELEGATE_SIZE;
+            }
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            if(call.getFunction() == Functions.IF) {
+                return 17;
+            }
+            Intrinsic intrinsic = Intrinsic.of(call.getFunction());
+            if(intrinsic != null) {
+                // Unless the method propagates NaN, each argument is checked
+                if(intrinsic.isNanPropagating()) {
+                    return 4;
+                }
+                return call.getParameters().size() == 1 ? 10 : 22;
+            }
+        }
+        if(expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            return Math.max(8, 5 + 12 * let.variables.length) + 2 + 6 * let.getTemporaries().size();
+        }
+        return DELEGATE_SIZE;
+    }
+
+    private static List<Expression> inlinedChildren(Expression expr) {
+        if(expr.isConstant()) {
+            return Collections.emptyList();
+        }
+        if(expr instanceof BinaryOperation) {
+            return Arrays.asList(((BinaryOperation) expr).getLeft(), ((BinaryOperation) expr).getRight());
+        }
+        if(expr instanceof FunctionCall) {
+            Function function = ((FunctionCall) expr).getFunction();
+            if(function == Functions.IF || Intrinsic.of(function) != null) {
+                return ((FunctionCall) expr).getParameters();
+            }
+        }
+        if(expr instanceof LetExpression) {
+            List<Expression> result = new ArrayList<>();
+            for(Temporary temporary : ((LetExpression) expr).getTemporaries()) {
+                result.add(temporary.getExpression());
+            }
+            result.add(((LetExpression) expr).getBody());
+            return result;
+        }
+        return Collections.emptyList();
+    }
+
+    private Expression generate() {
+        method = assembler.method(ClassAssembler.ACC_PUBLIC, "evaluate", "()D", 1);
+        emit(source, true);
+        method.op(ClassAssembler.DRETURN, -2);
+        framed = true;
+        method = assembler.method(ClassAssembler.ACC_PUBLIC, "evaluate", "([D)D", 2);
+        emit(source, true);
+        method.op(ClassAssembler.DRETURN, -2);
+        generateConstructor();
+
+        byte[] code = assembler.toByteArray(ClassAssembler.ACC_PUBLIC | ClassAssembler.ACC_FINAL
+                                            | ClassAssembler.ACC_SUPER, className.replace('.', '/'), BASE_CLASS);
+        try {
+            ExpressionClassLoader loader = new ExpressionClassLoader(BytecodeCompiler.class.getClassLoader());
+            Class<?> generatedClass = loader.define(className, code);
+            return (Expression) generatedClass.getConstructor(Expression.class, Variable[].class, Expression[].class)
+                                              .newInstance(source,
+                                                           variables.toArray(new Variable[0]),
+                                                           delegates.toArray(new Expression[0]));
+        } catch(InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            throw new IllegalStateException(String.format("Cannot compile '%s': %s", source, e.getMessage()), e);
+        }
+    }
+
+    private void generateConstructor() {
+        ClassAssembler.Method init = assembler.method(ClassAssembler.ACC_PUBLIC,
+                                                      "<init>",
+                                                      "(" + EXPRESSION_TYPE + "[" + VARIABLE_TYPE + "["
+                                                      + EXPRESSION_TYPE + ")V",
+                                                      4);
+        init.op(ClassAssembler.ALOAD_0, 1);
+        init.local(ClassAssembler.ALOAD, 1);
+        init.invoke(ClassAssembler.INVOKESPECIAL, BASE_CLASS, "<init>", "(" + EXPRESSION_TYPE + ")V");
+        for(int i = 0; i < variables.size(); i++) {
+            assembler.field(ClassAssembler.ACC_PRIVATE | ClassAssembler.ACC_FINAL, "v" + i, VARIABLE_TYPE);
+            storeArrayElementInField(init, 2, i, "v" + i, VARIABLE_TYPE);
+        }
+        for(int i = 0; i < delegates.size(); i++) {
+            assembler.field(ClassAssembler.ACC_PRIVATE | ClassAssembler.ACC_FINAL, "e" + i, EXPRESSION_TYPE);
+            storeArrayElementInField(init, 3, i, "e" + i, EXPRESSION_TYPE);
+        }
+        init.op(ClassAssembler.RETURN, 0);
+    }
+
+    private void storeArrayElementInField(ClassAssembler.Method init,
+                                          int arrayParameter,
+                                          int index,
+                                          String field,
+                                          String descriptor) {
+        init.op(ClassAssembler.ALOAD_0, 1);
+        init.local(ClassAssembler.ALOAD, arrayParameter);
+        init.loadInt(index);
+        init.op(ClassAssembler.AALOAD, -1);
+        init.field(ClassAssembler.PUTFIELD, className.replace('.', '/'), field, descriptor);
+    }
+
+    /*
+     * Emits the code which pushes the value of the given expression onto the operand stack.
+     */
+    private void emit(Expression expr, boolean root) {
+        if(expr.isConstant()) {
+            method.loadDouble(expr.evaluate());
+        } else if(!root && partitions.contains(expr)) {
+            emitDelegate(compiledSubtrees.computeIfAbsent(expr, e -> new BytecodeCompiler(e, partitions).generate()));
+        } else if(expr instanceof VariableReference) {
+            emitVariable((VariableReference) expr);
+        } else if(expr instanceof BinaryOperation) {
+            emitBinaryOperation((BinaryOperation) expr);
+        } else if(expr instanceof FunctionCall) {
+            emitFunctionCall((FunctionCall) expr);
+        } else if(expr instanceof LetExpression) {
+            emitLet((LetExpression) expr);
+        } else if(expr instanceof Temporary && framed) {
+            emitFrameAccess(((Temporary) expr).getSlot());
+        } else {
+            emitDelegate(expr);
+        }
+    }
+
+    private void emitFrameAccess(int slot) {
+        method.local(ClassAssembler.ALOAD, frameLocal);
+        method.loadInt(slot);
+        method.op(ClassAssembler.DALOAD, 0);
+    }
+
+    /*
+     * Creates the frame of the let expression and stores it in a new local, which replaces the frame parameter while
+     * the temporaries and the body are computed.
+     */
+    private void emitLet(LetExpression let) {
+        int frame = method.newLocal(1);
+        if(framed) {
+            method.local(ClassAssembler.ALOAD, frameLocal);
+            method.loadInt(let.getFrameSize());
+            method.invoke(ClassAssembler.INVOKESTATIC, "java/util/Arrays", "copyOf", "([DI)[D");
+        } else {
+            method.loadInt(let.getFrameSize());
+            method.newDoubleArray();
+            for(int i = 0; i < let.variables.length; i++) {
+                method.op(ClassAssembler.DUP, 1);
+                method.loadInt(let.variableSlots[i]);
+                emitVariable(new VariableReference(let.variables[i]));
+                method.op(ClassAssembler.DASTORE, -4);
+            }
+        }
+        method.local(ClassAssembler.ASTORE, frame);
+
+        boolean wasFramed = framed;
+        int previousFrameLocal = frameLocal;
+        framed = true;
+        frameLocal = frame;
+        for(Temporary temporary : let.getTemporaries()) {
+            method.local(ClassAssembler.ALOAD, frame);
+            method.loadInt(temporary.getSlot());
+            emit(temporary.getExpression(), false);
+            method.op(ClassAssembler.DASTORE, -4);
+        }
+        emit(let.getBody(), false);
+        framed = wasFramed;
+        frameLocal = previousFrameLocal;
+        method.releaseLocal(frame);
+    }
+
+    private void emitVariable(VariableReference reference) {
+        if(framed && reference.getSlot() >= 0) {
+            emitFrameAccess(reference.getSlot());
+            return;
+        }
+        Variable variable = reference.getVariable();
+        String field = variableFields.get(variable);
+        if(field == null) {
+            field = "v" + variables.size();
+            variables.add(variable);
+            variableFields.put(variable, field);
+        }
+        method.op(ClassAssembler.ALOAD_0, 1);
+        method.field(ClassAssembler.GETFIELD, className.replace('.', '/'), field, VARIABLE_TYPE);
+        method.invoke(ClassAssembler.INVOKEVIRTUAL, VARIABLE, "getValue", "()D");
+    }
+
+    private void emitDelegate(Expression expr) {
+        String field = delegateFields.get(expr);
+        if(field == null) {
+            field = "e" + delegates.size();
+            delegates.add(expr);
+            delegateFields.put(expr, field);
+        }
+        method.op(ClassAssembler.ALOAD_0, 1);
+        method.field(ClassAssembler.GETFIELD, className.replace('.', '/'), field, EXPRESSION_TYPE);
+        if(framed) {
+            method.local(ClassAssembler.ALOAD, frameLocal);
+            method.invoke(ClassAssembler.INVOKEINTERFACE, EXPRESSION, "evaluate", "([D)D");
+        } else {
+            method.invoke(ClassAssembler.INVOKEINTERFACE, EXPRESSION, "evaluate", "()D");
+        }
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private void emitBinaryOperation(BinaryOperation op) {
+        switch(op.getOp()) {
+            case ADD:
+                emitArithmetic(op, ClassAssembler.DADD);
+                break;
+            case SUBTRACT:
+                emitArithmetic(op, ClassAssembler.DSUB);
+                break;
+            case MULTIPLY:
+                emitArithmetic(op, ClassAssembler.DMUL);
+                break;
+            case DIVIDE:
+                emitArithmetic(op, ClassAssembler.DDIV);
+                break;
+            case MODULO:
+                emitArithmetic(op, ClassAssembler.DREM);
+                break;
+            case POWER:
+                emit(op.getLeft(), false);
+                emit(op.getRight(), false);
+                method.invoke(ClassAssembler.INVOKESTATIC, FAST_MATH, "pow", "(DD)D");
+                break;
+            case LT:
+                emitComparison(op, ClassAssembler.DCMPG, ClassAssembler.IFGE);
+                break;
+            case GT:
+                emitComparison(op, ClassAssembler.DCMPL, ClassAssembler.IFLE);
+                break;
+            case LT_EQ:
+                emitInclusiveComparison(op, ClassAssembler.DCMPG, ClassAssembler.IFLT);
+                break;
+            case GT_EQ:
+                emitInclusiveComparison(op, ClassAssembler.DCMPL, ClassAssembler.IFGT);
+                break;
+            case EQ:
+                emitEpsilonComparison(op, ClassAssembler.DCMPG, ClassAssembler.IFGE);
+                break;
+            case NEQ:
+                emitEpsilonComparison(op, ClassAssembler.DCMPL, ClassAssembler.IFLE);
+                break;
+            case AND:
+            case OR:
+                emitLogicalOperation(op);
+                break;
+            default:
+                emitDelegate(op);
+        }
+    }
+
+    private void emitArithmetic(BinaryOperation op, int opcode) {
+        emit(op.getLeft(), false);
+        emit(op.getRight(), false);
+        method.op(opcode, -2);
+    }
+
+    /*
+     * Emits a < b or a > b. The compare instruction is chosen so that NaN always yields false.
+     */
+    private void emitComparison(BinaryOperation op, int compareOpcode, int jumpIfFalse) {
+        ClassAssembler.Label isFalse = new ClassAssembler.Label();
+        emit(op.getLeft(), false);
+        emit(op.getRight(), false);
+        method.op(compareOpcode, -3);
+        method.jump(jumpIfFalse, isFalse);
+        emitBooleanResult(null, isFalse);
+    }
+
+    /*
+     * Emits |a - b| < EPSILON or |a - b| > EPSILON.
+     */
+    private void emitEpsilonComparison(BinaryOperation op, int compareOpcode, int jumpIfFalse) {
+        ClassAssembler.Label isFalse = new ClassAssembler.Label();
+        emit(op.getLeft(), false);
+        emit(op.getRight(), false);
+        method.op(ClassAssembler.DSUB, -2);
+        method.invoke(ClassAssembler.INVOKESTATIC, FAST_MATH, "abs", "(D)D");
+        method.loadDouble(BinaryOperation.EPSILON);
+        method.op(compareOpcode, -3);
+        method.jump(jumpIfFalse, isFalse);
+        emitBooleanResult(null, isFalse);
+    }
+
+    /*
+     * Emits a < b || |a - b| < EPSILON or a > b || |a - b| < EPSILON. The locals are only reserved once both operands
+     * are computed, so that nested operations don't use up all locals.
+     */
+    private void emitInclusiveComparison(BinaryOperation op, int compareOpcode, int jumpIfTrue) {
+        ClassAssembler.Label isTrue = new ClassAssembler.Label();
+        ClassAssembler.Label isFalse = new ClassAssembler.Label();
+        emit(op.getLeft(), false);
+        emit(op.getRight(), false);
+        int a = method.newLocal(2);
+        int b = method.newLocal(2);
+        method.local(ClassAssembler.DSTORE, b);
+        method.local(ClassAssembler.DSTORE, a);
+        method.local(ClassAssembler.DLOAD, a);
+        method.local(ClassAssembler.DLOAD, b);
+        method.op(compareOpcode, -3);
+        method.jump(jumpIfTrue, isTrue);
+        method.local(ClassAssembler.DLOAD, a);
+        method.local(ClassAssembler.DLOAD, b);
+        method.op(ClassAssembler.DSUB, -2);
+        method.invoke(ClassAssembler.INVOKESTATIC, FAST_MATH, "abs", "(D)D");
+        method.loadDouble(BinaryOperation.EPSILON);
+        method.op(ClassAssembler.DCMPG, -3);
+        method.jump(ClassAssembler.IFGE, isFalse);
+        method.releaseLocal(a);
+        emitBooleanResult(isTrue, isFalse);
+    }
+
+    /*
+     * Emits |a| > 0 && |b| > 0 or |a| > 0 || |b| > 0. Just like the interpreter, the right operand is only evaluated
+     * if the left one doesn't determine the result.
+     */
+    private void emitLogicalOperation(BinaryOperation op) {
+        ClassAssembler.Label isTrue = new ClassAssembler.Label();
+        ClassAssembler.Label isFalse = new ClassAssembler.Label();
+        emit(op.getLeft(), false);
+        emitTruthTest();
+        method.jump(op.getOp() == BinaryOperation.Op.AND ? ClassAssembler.IFLE : ClassAssembler.IFGT,
+                    op.getOp() == BinaryOperation.Op.AND ? isFalse : isTrue);
+        emit(op.getRight(), false);
+        emitTruthTest();
+        method.jump(ClassAssembler.IFLE, isFalse);
+        emitBooleanResult(isTrue, isFalse);
+    }
+
+    /*
+     * Replaces the double on the stack by an int which is > 0 if |value| > 0 and <= 0 otherwise (which includes NaN).
+     */
+    private void emitTruthTest() {
+        method.invoke(ClassAssembler.INVOKESTATIC, FAST_MATH, "abs", "(D)D");
+        method.op(ClassAssembler.DCONST_0, 2);
+        method.op(ClassAssembler.DCMPL, -3);
+    }
+
+    private void emitBooleanResult(ClassAssembler.Label isTrue, ClassAssembler.Label isFalse) {
+        ClassAssembler.Label end = new ClassAssembler.Label();
+        if(isTrue != null) {
+            method.mark(isTrue);
+        }
+        method.op(ClassAssembler.DCONST_1, 2);
+        method.jump(ClassAssembler.GOTO, end);
+        method.mark(isFalse);
+        method.op(ClassAssembler.DCONST_0, 2);
+        method.mark(end);
+    }
+
+    private void emitFunctionCall(FunctionCall call) {
+        if(call.getFunction() == Functions.IF) {
+            emitIf(call.getParameters());
+            return;
+        }
+        Intrinsic intrinsic = Intrinsic.of(call.getFunction());
+        if(intrinsic != null) {
+            emitIntrinsic(intrinsic, call.getParameters());
+            return;
+        }
+
+        emitDelegate(compiledSubtrees.computeIfAbsent(call, BytecodeCompiler::compileParameters));
+    }
+
+    private static Expression compileParameters(Expression call) {
+        FunctionCall compiledCall = new FunctionCall();
+        compiledCall.setFunction(((FunctionCall) call).getFunction());
+        for(Expression parameter : ((FunctionCall) call).getParameters()) {
+            if(parameter instanceof Constant || parameter instanceof VariableReference) {
+                compiledCall.addParameter(parameter);
+            } else {
+                compiledCall.addParameter(compile(parameter));
+            }
+        }
+        return compiledCall;
+    }
+
+    /*
+     * Emits the equivalent of Functions.IF: NaN if the condition is NaN, otherwise only the selected branch is
+     * evaluated. A NaN condition is left on the stack as result.
+     */
+    private void emitIf(List<Expression> parameters) {
+        ClassAssembler.Label otherwise = new ClassAssembler.Label();
+        ClassAssembler.Label end = new ClassAssembler.Label();
+        emit(parameters.get(0), false);
+        emitNaNCheck(end);
+        emitTruthTest();
+        method.jump(ClassAssembler.IFLE, otherwise);
+        emit(parameters.get(1), false);
+        method.jump(ClassAssembler.GOTO, end);
+        method.mark(otherwise);
+        emit(parameters.get(2), false);
+        method.mark(end);
+    }
+
+    /*
+     * Emits a call to the static method behind a built-in function. If the method doesn't propagate NaN on its own,
+     * the checks performed by UnaryFunction and BinaryFunction are emitted as well: the first NaN argument is the
+     * result and the following arguments aren't evaluated.
+     */
+    private void emitIntrinsic(Intrinsic intrinsic, List<Expression> parameters) {
+        if(intrinsic.isNanPropagating()) {
+            for(Expression parameter : parameters) {
+                emit(parameter, false);
+            }
+            emitIntrinsicInvocation(intrinsic);
+            return;
+        }
+
+        ClassAssembler.Label end = new ClassAssembler.Label();
+        emit(parameters.get(0), false);
+        emitNaNCheck(end);
+        if(parameters.size() == 1) {
+            emitIntrinsicInvocation(intrinsic);
+            method.mark(end);
+            return;
+        }
+
+        ClassAssembler.Label isNaN = new ClassAssembler.Label();
+        emit(parameters.get(1), false);
+        emitNaNCheck(isNaN);
+        emitIntrinsicInvocation(intrinsic);
+        method.jump(ClassAssembler.GOTO, end);
+        // Drop the first argument below the NaN
+        method.mark(isNaN);
+        method.op(ClassAssembler.DUP2_X2, 2);
+        method.op(ClassAssembler.POP2, -2);
+        method.op(ClassAssembler.POP2, -2);
+        method.mark(end);
+    }
+
+    private void emitIntrinsicInvocation(Intrinsic intrinsic) {
+        method.invoke(ClassAssembler.INVOKESTATIC,
+                      intrinsic.getOwner(),
+                      intrinsic.getMethodName(),
+                      intrinsic.getDescriptor());
+        if(intrinsic.getDescriptor().endsWith("J")) {
+            method.op(ClassAssembler.L2D, 0);
+        }
+    }
+
+    /*
+     * Jumps to the given label if the double on the stack is NaN (which is the only value not equal to itself). The
+     * double remains on the stack in both cases.
+     */
+    private void emitNaNCheck(ClassAssembler.Label isNaN) {
+        method.op(ClassAssembler.DUP2, 2);
+        method.op(ClassAssembler.DUP2, 2);
+        method.op(ClassAssembler.DCMPL, -3);
+        method.jump(ClassAssembler.IFNE, isNaN);
+    }
+
+    /**
+     * Defines each generated class in a loader of its own, so that it can be unloaded once the compiled expression
+     * is no longer referenced.
+     */
+    private static class ExpressionClassLoader extends ClassLoader {
+
+        ExpressionClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+}
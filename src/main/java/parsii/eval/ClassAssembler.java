@@ -0,0 +1,537 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for Java class files as required by the {@link BytecodeCompiler}.
+ * <p>
+ * Only the small subset of the class file format needed to emit expression classes is supported: a constant pool,
+ * plain fields and methods with a <tt>Code</tt> attribute. Classes are written with version 49 (Java 5), so that no
+ * <tt>StackMapTable</tt> has to be computed - the JVM falls back to the type inferring verifier for such classes.
+ */
+final class ClassAssembler {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD = 0x19;
+    static final int DLOAD = 0x18;
+    static final int DSTORE = 0x39;
+    static final int ILOAD = 0x15;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int AALOAD = 0x32;
+    static final int DALOAD = 0x31;
+    static final int DASTORE = 0x52;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DUP2_X2 = 0x5e;
+    static final int POP2 = 0x58;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DREM = 0x73;
+    static final int DNEG = 0x77;
+    static final int L2D = 0x8a;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEWARRAY = 0xbc;
+    private static final int T_DOUBLE = 7;
+
+    private static final int CLASS_FILE_VERSION = 49;
+
+    private static final int TAG_UTF8 = 1;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_CLASS = 7;
+    private static final int TAG_FIELD_REF = 9;
+    private static final int TAG_METHOD_REF = 10;
+    private static final int TAG_INTERFACE_METHOD_REF = 11;
+    private static final int TAG_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+    private int fieldCount = 0;
+
+    private final List<Method> methods = new ArrayList<>();
+
+    /**
+     * Adds a field to the class being written.
+     *
+     * @param access     the access flags of the field
+     * @param name       the name of the field
+     * @param descriptor the type descriptor of the field
+     */
+    void field(int access, String name, String descriptor) {
+        try {
+            fields.writeShort(access);
+            fields.writeShort(utf8(name));
+            fields.writeShort(utf8(descriptor));
+            fields.writeShort(0);
+            fieldCount++;
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds a method to the class being written.
+     *
+     * @param access     the access flags of the method
+     * @param name       the name of the method
+     * @param descriptor     the method descriptor
+     * @param parameterSlots the number of local variable slots occupied by <tt>this</tt> and all parameters
+     * @return the method which can be used to emit the byte code of the method body
+     */
+    Method method(int access, String name, String descriptor, int parameterSlots) {
+        Method result = new Method(access, utf8(name), utf8(descriptor), parameterSlots);
+        methods.add(result);
+        return result;
+    }
+
+    /**
+     * Creates the final class file.
+     *
+     * @param access     the access flags of the class
+     * @param name       the internal name of the class
+     * @param superName  the internal name of the super class
+     * @param interfaces the internal names of all implemented interfaces
+     * @return the binary representation of the class
+     */
+    byte[] toByteArray(int access, String name, String superName, String... interfaces) {
+        try {
+            int thisIndex = classRef(name);
+            int superIndex = classRef(superName);
+            int[] interfaceIndices = new int[interfaces.length];
+            for(int i = 0; i < interfaces.length; i++) {
+                interfaceIndices[i] = classRef(interfaces[i]);
+            }
+            int codeIndex = utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            out.writeShort(poolSize);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for(int index : interfaceIndices) {
+                out.writeShort(index);
+            }
+            out.writeShort(fieldCount);
+            fields.flush();
+            fieldBytes.writeTo(out);
+            out.writeShort(methods.size());
+            for(Method method : methods) {
+                method.writeTo(out, codeIndex);
+            }
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolIndex.get(key);
+        if(index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(TAG_UTF8);
+            pool.writeUTF(value);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 1);
+    }
+
+    int classRef(String internalName) {
+        return reference("C" + internalName, TAG_CLASS, utf8(internalName), -1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member("F", TAG_FIELD_REF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member("M", TAG_METHOD_REF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return member("I", TAG_INTERFACE_METHOD_REF, owner, name, descriptor);
+    }
+
+    int integerConstant(int value) {
+        String key = "i" + value;
+        Integer index = poolIndex.get(key);
+        if(index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(TAG_INTEGER);
+            pool.writeInt(value);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 1);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "d" + bits;
+        Integer index = poolIndex.get(key);
+        if(index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(TAG_DOUBLE);
+            pool.writeLong(bits);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // Doubles occupy two entries of the constant pool
+        return register(key, 2);
+    }
+
+    private int member(String prefix, int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndType = reference("N" + name + ":" + descriptor, TAG_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+        return reference(prefix + owner + "." + name + ":" + descriptor, tag, ownerIndex, nameAndType);
+    }
+
+    private int reference(String key, int tag, int first, int second) {
+        Integer index = poolIndex.get(key);
+        if(index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if(second >= 0) {
+                pool.writeShort(second);
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 1);
+    }
+
+    private int register(String key, int slots) {
+        int index = poolSize;
+        poolSize += slots;
+        if(poolSize > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    /**
+     * Computes the number of operand stack slots occupied by the arguments and the return value of the given method
+     * descriptor.
+     */
+    private static int[] stackSlots(String descriptor) {
+        int arguments = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')') {
+            char type = descriptor.charAt(i);
+            if(type == 'D' || type == 'J') {
+                arguments += 2;
+                i++;
+            } else if(type == 'L') {
+                arguments++;
+                i = descriptor.indexOf(';', i) + 1;
+            } else if(type == '[') {
+                arguments++;
+                while(descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+            } else {
+                arguments++;
+                i++;
+            }
+        }
+        char returnType = descriptor.charAt(i + 1);
+        int result = returnType == 'V' ? 0 : (returnType == 'D' || returnType == 'J' ? 2 : 1);
+        return new int[]{arguments, result};
+    }
+
+    /**
+     * A jump target within a method.
+     */
+    static final class Label {
+        private int position = -1;
+        private int stackDepth = -1;
+        private final List<Integer> references = new ArrayList<>();
+    }
+
+    /**
+     * Collects the byte code of a single method.
+     * <p>
+     * Keeps track of the operand stack depth, so that the required <tt>max_stack</tt> is computed automatically.
+     */
+    final class Method {
+        private final int access;
+        private final int nameIndex;
+        private final int descriptorIndex;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        private int nextLocal;
+        private int maxLocals;
+
+        private Method(int access, int nameIndex, int descriptorIndex, int parameterSlots) {
+            this.access = access;
+            this.nameIndex = nameIndex;
+            this.descriptorIndex = descriptorIndex;
+            this.nextLocal = parameterSlots;
+            this.maxLocals = parameterSlots;
+        }
+
+        /**
+         * Reserves a new local variable.
+         * <p>
+         * Locals are managed like a stack: {@link #releaseLocal(int)} frees the given local along with all locals
+         * which were reserved after it.
+         *
+         * @param slots the number of slots to reserve (2 for <tt>double</tt> and <tt>long</tt>, 1 otherwise)
+         * @return the index of the reserved local
+         */
+        int newLocal(int slots) {
+            int result = nextLocal;
+            nextLocal += slots;
+            maxLocals = Math.max(maxLocals, nextLocal);
+            return result;
+        }
+
+        /**
+         * Releases the given local and all locals reserved after it.
+         *
+         * @param index the index of the local as returned by {@link #newLocal(int)}
+         */
+        void releaseLocal(int index) {
+            nextLocal = index;
+        }
+
+        /**
+         * Emits a single opcode without operands.
+         *
+         * @param opcode     the opcode to emit
+         * @param stackDelta the change of the operand stack depth caused by the instruction
+         */
+        void op(int opcode, int stackDelta) {
+            code.write(opcode);
+            adjustStack(stackDelta);
+        }
+
+        void loadDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if(bits == 0L) {
+                op(DCONST_0, 2);
+            } else if(value == 1d) {
+                op(DCONST_1, 2);
+            } else {
+                code.write(LDC2_W);
+                writeShort(doubleConstant(value));
+                adjustStack(2);
+            }
+        }
+
+        void loadInt(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+                adjustStack(1);
+            } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                writeShort(value);
+                adjustStack(1);
+            } else {
+                code.write(LDC_W);
+                writeShort(integerConstant(value));
+                adjustStack(1);
+            }
+        }
+
+        void local(int opcode, int index) {
+            if(index > 0xFF) {
+                throw new IllegalStateException("Too many local variables");
+            }
+            code.write(opcode);
+            code.write(index);
+            if(opcode == DLOAD) {
+                adjustStack(2);
+            } else if(opcode == DSTORE) {
+                adjustStack(-2);
+            } else if(opcode == ISTORE || opcode == ASTORE) {
+                adjustStack(-1);
+            } else {
+                adjustStack(1);
+            }
+        }
+
+        /**
+         * Emits the creation of a <tt>double[]</tt>, whose length has to be on the operand stack.
+         */
+        void newDoubleArray() {
+            code.write(NEWARRAY);
+            code.write(T_DOUBLE);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            code.write(opcode);
+            writeShort(fieldRef(owner, name, descriptor));
+            int size = "D".equals(descriptor) || "J".equals(descriptor) ? 2 : 1;
+            adjustStack(opcode == GETFIELD ? size - 1 : -size - 1);
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int[] slots = stackSlots(descriptor);
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+            code.write(opcode);
+            if(opcode == INVOKEINTERFACE) {
+                writeShort(interfaceMethodRef(owner, name, descriptor));
+                code.write(slots[0] + 1);
+                code.write(0);
+            } else {
+                writeShort(methodRef(owner, name, descriptor));
+            }
+            adjustStack(slots[1] - slots[0] - receiver);
+        }
+
+        void jump(int opcode, Label target) {
+            int delta = opcode == GOTO ? 0 : -1;
+            adjustStack(delta);
+            if(target.stackDepth < 0) {
+                target.stackDepth = stackDepth;
+            }
+            target.references.add(code.size());
+            code.write(opcode);
+            writeShort(0);
+            if(!labels.contains(target)) {
+                labels.add(target);
+            }
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+            if(label.stackDepth >= 0) {
+                stackDepth = label.stackDepth;
+            } else {
+                label.stackDepth = stackDepth;
+            }
+            if(!labels.contains(label)) {
+                labels.add(label);
+            }
+        }
+
+        /**
+         * Returns the number of bytes emitted so far.
+         *
+         * @return the current size of the method body
+         */
+        int size() {
+            return code.size();
+        }
+
+        private void adjustStack(int delta) {
+            stackDepth += delta;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+
+        private void writeShort(int value) {
+            code.write((value >> 8) & 0xFF);
+            code.write(value & 0xFF);
+        }
+
+        private void writeTo(DataOutputStream out, int codeIndex) throws IOException {
+            byte[] body = code.toByteArray();
+            for(Label label : labels) {
+                if(label.position < 0) {
+                    throw new IllegalStateException("Unresolved label");
+                }
+                for(int reference : label.references) {
+                    int offset = label.position - reference;
+                    if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("Jump offset out of range");
+                    }
+                    body[reference + 1] = (byte) ((offset >> 8) & 0xFF);
+                    body[reference + 2] = (byte) (offset & 0xFF);
+                }
+            }
+            if(body.length >= 0xFFFF) {
+                throw new IllegalStateException("Method too large");
+            }
+
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Converts an expression tree into a tree of pre-specialized closures.
+ * <p>
+ * This is a middle ground between the tree interpreter and the {@link BytecodeCompiler}, for environments which do not
+ * permit to generate classes at runtime. The tree is converted once, and each node is replaced by a lambda which is
+ * specialized for its operator and the shape of its operands. As an example <tt>x * 2</tt> becomes
+ * <tt>() -&gt; x.getValue() * 2</tt>, so neither the operator nor the constant operand has to be looked at while
+ * evaluating.
+ * <p>
+ * Functions with one or two arguments are invoked without building a list of arguments. The checks for
+ * <tt>NaN</tt> performed by {@link UnaryFunction} and {@link BinaryFunction} are skipped, where the function
+ * propagates <tt>NaN</tt> on its own or where an argument can never be <tt>NaN</tt> (e.g. the result of a
+ * comparison).
+ * <p>
+ * The closures read the variables themselves, therefore {@link Expression#evaluate(double[])} is delegated to the
+ * original expression tree. For the same reason a {@link LetExpression}, which keeps its temporaries in a frame, is
+ * evaluated by the tree interpreter.
+ * <p>
+ * Using closures is as simple as:
+ * {@code
+ * Expression expr = ClosureCompiler.compile(new Parser().parse("3 + a * 4", scope));
+ * }
+ */
+public class ClosureCompiler {
+
+    private ClosureCompiler() {
+    }
+
+    /**
+     * Converts the given expression into a tree of closures.
+     * <p>
+     * The given expression should be simplified first, which is automatically done by {@link Parser#parse()}.
+     *
+     * @param expression the expression to convert
+     * @return a new expression which computes the same results as the given one
+     */
+    public static Expression compile(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            return compile(((CompiledExpression) expression).getSource());
+        }
+        return new ClosureExpression(expression, closure(expression));
+    }
+
+    private static Expression closure(Expression expr) {
+        if(expr.isConstant()) {
+            double value = expr.evaluate();
+            return () -> value;
+        }
+        if(expr instanceof VariableReference) {
+            return ((VariableReference) expr).getVariable()::getValue;
+        }
+        if(expr instanceof BinaryOperation) {
+            return binaryOperation((BinaryOperation) expr);
+        }
+        if(expr instanceof FunctionCall) {
+            return functionCall((FunctionCall) expr);
+        }
+
+        return expr;
+    }
+
+    private static boolean isVariable(Expression expr) {
+        return expr instanceof VariableReference && !expr.isConstant();
+    }
+
+    private static Variable variable(Expression expr) {
+        return ((VariableReference) expr).getVariable();
+    }
+
+    /*
+     * Determines if the given expression is known to never yield NaN.
+     */
+    private static boolean isNeverNaN(Expression expr) {
+        if(expr.isConstant()) {
+            return !Double.isNaN(expr.evaluate());
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation.Op op = ((BinaryOperation) expr).getOp();
+            // Comparisons and logical operations always yield 0 or 1
+            return op.getPriority() <= BinaryOperation.Op.LT.getPriority();
+        }
+
+        return false;
+    }
+
+    @SuppressWarnings("squid:MethodCyclomaticComplexity")
+    private static Expression binaryOperation(BinaryOperation operation) {
+        BinaryOperation.Op op = operation.getOp();
+        Expression left = operation.getLeft();
+        Expression right = operation.getRight();
+        switch(op) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO:
+                return arithmetic(op, left, right);
+            case POWER:
+                return power(left, right);
+            case LT:
+            case LT_EQ:
+            case EQ:
+            case GT_EQ:
+            case GT:
+            case NEQ:
+                return comparison(op, left, right);
+            case AND:
+            case OR:
+                return logicalOperation(op, closure(left), closure(right));
+            default:
+                return operation;
+        }
+    }
+
+    private static Expression arithmetic(BinaryOperation.Op op, Expression left, Expression right) {
+        if(right.isConstant()) {
+            double constant = right.evaluate();
+            if(isVariable(left)) {
+                return variableConstant(op, variable(left), constant);
+            }
+            return expressionConstant(op, closure(left), constant);
+        }
+        if(left.isConstant()) {
+            double constant = left.evaluate();
+            if(isVariable(right)) {
+                return constantVariable(op, constant, variable(right));
+            }
+            return constantExpression(op, constant, closure(right));
+        }
+        if(isVariable(left) && isVariable(right)) {
+            return variableVariable(op, variable(left), variable(right));
+        }
+        if(isVariable(left)) {
+            return variableExpression(op, variable(left), closure(right));
+        }
+        if(isVariable(right)) {
+            return expressionVariable(op, closure(left), variable(right));
+        }
+
+        return expressionExpression(op, closure(left), closure(right));
+    }
+
+    private static Expression variableConstant(BinaryOperation.Op op, Variable a, double b) {
+        switch(op) {
+            case ADD:
+                return () -> a.getValue() + b;
+            case SUBTRACT:
+                return () -> a.getValue() - b;
+            case MULTIPLY:
+                return () -> a.getValue() * b;
+            case DIVIDE:
+                return () -> a.getValue() / b;
+            default:
+                return () -> a.getValue() % b;
+        }
+    }
+
+    private static Expression constantVariable(BinaryOperation.Op op, double a, Variable b) {
+        switch(op) {
+            case ADD:
+                return () -> a + b.getValue();
+            case SUBTRACT:
+                return () -> a - b.getValue();
+            case MULTIPLY:
+                return () -> a * b.getValue();
+            case DIVIDE:
+                return () -> a / b.getValue();
+            default:
+                return () -> a % b.getValue();
+        }
+    }
+
+    private static Expression variableVariable(BinaryOperation.Op op, Variable a, Variable b) {
+        switch(op) {
+            case ADD:
+                return () -> a.getValue() + b.getValue();
+            case SUBTRACT:
+                return () -> a.getValue() - b.getValue();
+            case MULTIPLY:
+                return () -> a.getValue() * b.getValue();
+            case DIVIDE:
+                return () -> a.getValue() / b.getValue();
+            default:
+                return () -> a.getValue() % b.getValue();
+        }
+    }
+
+    private static Expression expressionConstant(BinaryOperation.Op op, Expression a, double b) {
+        switch(op) {
+            case ADD:
+                return () -> a.evaluate() + b;
+            case SUBTRACT:
+                return () -> a.evaluate() - b;
+            case MULTIPLY:
+                return () -> a.evaluate() * b;
+            case DIVIDE:
+                return () -> a.evaluate() / b;
+            default:
+                return () -> a.evaluate() % b;
+        }
+    }
+
+    private static Expression constantExpression(BinaryOperation.Op op, double a, Expression b) {
+        switch(op) {
+            case ADD:
+                return () -> a + b.evaluate();
+            case SUBTRACT:
+                return () -> a - b.evaluate();
+            case MULTIPLY:
+                return () -> a * b.evaluate();
+            case DIVIDE:
+                return () -> a / b.evaluate();
+            default:
+                return () -> a % b.evaluate();
+        }
+    }
+
+    private static Expression variableExpression(BinaryOperation.Op op, Variable a, Expression b) {
+        switch(op) {
+            case ADD:
+                return () -> a.getValue() + b.evaluate();
+            case SUBTRACT:
+                return () -> a.getValue() - b.evaluate();
+            case MULTIPLY:
+                return () -> a.getValue() * b.evaluate();
+            case DIVIDE:
+                return () -> a.getValue() / b.evaluate();
+            default:
+                return () -> a.getValue() % b.evaluate();
+        }
+    }
+
+    private static Expression expressionVariable(BinaryOperation.Op op, Expression a, Variable b) {
+        switch(op) {
+            case ADD:
+                return () -> a.evaluate() + b.getValue();
+            case SUBTRACT:
+                return () -> a.evaluate() - b.getValue();
+            case MULTIPLY:
+                return () -> a.evaluate() * b.getValue();
+            case DIVIDE:
+                return () -> a.evaluate() / b.getValue();
+            default:
+                return () -> a.evaluate() % b.getValue();
+        }
+    }
+
+    private static Expression expressionExpression(BinaryOperation.Op op, Expression a, Expression b) {
+        switch(op) {
+            case ADD:
+                return () -> a.evaluate() + b.evaluate();
+            case SUBTRACT:
+                return () -> a.evaluate() - b.evaluate();
+            case MULTIPLY:
+                return () -> a.evaluate() * b.evaluate();
+            case DIVIDE:
+                return () -> a.evaluate() / b.evaluate();
+            default:
+                return () -> a.evaluate() % b.evaluate();
+        }
+    }
+
+    private static Expression power(Expression left, Expression right) {
+        Expression a = closure(left);
+        if(right.isConstant()) {
+            double b = right.evaluate();
+            return () -> FastMath.pow(a.evaluate(), b);
+        }
+        Expression b = closure(right);
+        return () -> FastMath.pow(a.evaluate(), b.evaluate());
+    }
+
+    @SuppressWarnings("squid:MethodCyclomaticComplexity")
+    private static Expression comparison(BinaryOperation.Op op, Expression left, Expression right) {
+        Expression a = closure(left);
+        if(right.isConstant()) {
+            double b = right.evaluate();
+            switch(op) {
+                case LT:
+                    return () -> a.evaluate() < b ? 1 : 0;
+                case GT:
+                    return () -> a.evaluate() > b ? 1 : 0;
+                case EQ:
+                    return () -> FastMath.abs(a.evaluate() - b) < BinaryOperation.EPSILON ? 1 : 0;
+                case NEQ:
+                    return () -> FastMath.abs(a.evaluate() - b) > BinaryOperation.EPSILON ? 1 : 0;
+                default:
+                    break;
+            }
+        }
+
+        Expression b = closure(right);
+        switch(op) {
+            case LT:
+                return () -> a.evaluate() < b.evaluate() ? 1 : 0;
+            case LT_EQ:
+                return () -> {
+                    double x = a.evaluate();
+                    double y = b.evaluate();
+                    return x < y || FastMath.abs(x - y) < BinaryOperation.EPSILON ? 1 : 0;
+                };
+            case GT:
+                return () -> a.evaluate() > b.evaluate() ? 1 : 0;
+            case GT_EQ:
+                return () -> {
+                    double x = a.evaluate();
+                    double y = b.evaluate();
+                    return x > y || FastMath.abs(x - y) < BinaryOperation.EPSILON ? 1 : 0;
+                };
+            case EQ:
+                return () -> FastMath.abs(a.evaluate() - b.evaluate()) < BinaryOperation.EPSILON ? 1 : 0;
+            default:
+                return () -> FastMath.abs(a.evaluate() - b.evaluate()) > BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    private static Expression logicalOperation(BinaryOperation.Op op, Expression a, Expression b) {
+        if(op == BinaryOperation.Op.AND) {
+            return () -> FastMath.abs(a.evaluate()) > 0 && FastMath.abs(b.evaluate()) > 0 ? 1 : 0;
+        }
+        return () -> FastMath.abs(a.evaluate()) > 0 || FastMath.abs(b.evaluate()) > 0 ? 1 : 0;
+    }
+
+    private static Expression functionCall(FunctionCall call) {
+        Function function = call.getFunction();
+        List<Expression> parameters = call.getParameters();
+        if(function == Functions.IF) {
+            return ifCall(closure(parameters.get(0)), closure(parameters.get(1)), closure(parameters.get(2)));
+        }
+        Intrinsic intrinsic = Intrinsic.of(function);
+        if(intrinsic != null && intrinsic.getUnaryOperator() != null) {
+            return unaryCall(intrinsic.getUnaryOperator(), parameters.get(0), intrinsic.isNanPropagating());
+        }
+        if(intrinsic != null) {
+            return binaryCall(intrinsic.getBinaryOperator(),
+                              parameters.get(0),
+                              parameters.get(1),
+                              intrinsic.isNanPropagating());
+        }
+        if(function instanceof UnaryFunction) {
+            return unaryCall(((UnaryFunction) function)::eval, parameters.get(0), false);
+        }
+        if(function instanceof BinaryFunction) {
+            return binaryCall(((BinaryFunction) function)::eval, parameters.get(0), parameters.get(1), false);
+        }
+
+        List<Expression> arguments = new ArrayList<>(parameters.size());
+        for(Expression parameter : parameters) {
+            arguments.add(closure(parameter));
+        }
+        List<Expression> unmodifiableArguments = Collections.unmodifiableList(arguments);
+        return () -> function.eval(unmodifiableArguments);
+    }
+
+    private static Expression ifCall(Expression condition, Expression whenTrue, Expression whenFalse) {
+        return () -> {
+            double check = condition.evaluate();
+            if(Double.isNaN(check)) {
+                return check;
+            }
+            return FastMath.abs(check) > 0 ? whenTrue.evaluate() : whenFalse.evaluate();
+        };
+    }
+
+    private static Expression unaryCall(DoubleUnaryOperator function, Expression argument, boolean nanPropagating) {
+        if(nanPropagating || isNeverNaN(argument)) {
+            if(isVariable(argument)) {
+                Variable a = variable(argument);
+                return () -> function.applyAsDouble(a.getValue());
+            }
+            Expression a = closure(argument);
+            return () -> function.applyAsDouble(a.evaluate());
+        }
+
+        Expression a = closure(argument);
+        return () -> {
+            double x = a.evaluate();
+            return Double.isNaN(x) ? x : function.applyAsDouble(x);
+        };
+    }
+
+    private static Expression binaryCall(DoubleBinaryOperator function,
+                                         Expression first,
+                                         Expression second,
+                                         boolean nanPropagating) {
+        Expression a = closure(first);
+        Expression b = closure(second);
+        if(nanPropagating || (isNeverNaN(first) && isNeverNaN(second))) {
+            return () -> function.applyAsDouble(a.evaluate(), b.evaluate());
+        }
+
+        return () -> {
+            double x = a.evaluate();
+            if(Double.isNaN(x)) {
+                return x;
+            }
+            double y = b.evaluate();
+            if(Double.isNaN(y)) {
+                return y;
+            }
+            return function.applyAsDouble(x, y);
+        };
+    }
+
+    /**
+     * Represents the root of a tree of closures.
+     */
+    private static final class ClosureExpression extends CompiledExpression {
+
+        private final Expression closure;
+
+        ClosureExpression(Expression source, Expression closure) {
+            super(source);
+            this.closure = closure;
+        }
+
+        @Override
+        public double evaluate() {
+            return closure.evaluate();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Base class of all expressions generated by the {@link BytecodeCompiler}.
+ * <p>
+ * Keeps the expression tree the class was generated from, so that the compiled expression can still be inspected and
+ * printed.
+ */
+public abstract class CompiledExpression implements Expression {
+
+    private final Expression source;
+
+    /**
+     * Creates a new compiled expression.
+     *
+     * @param source the expression tree which was compiled
+     */
+    protected CompiledExpression(Expression source) {
+        this.source = source;
+    }
+
+    /**
+     * Returns the expression tree which was compiled into this expression.
+     *
+     * @return the expression this class was generated from
+     */
+    public Expression getSource() {
+        return source;
+    }
+
+    /**
+     * Evaluates the expression against the given frame.
+     * <p>
+     * Unless overridden, this evaluates the expression tree which was compiled, as not every backend is able to
+     * access frames on its own.
+     *
+     * @param frame the values of all variables, e.g. created by {@link Scope#createFrame()}
+     * @return the double value as a result of evaluating this expression
+     */
+    @Override
+    public double evaluate(double[] frame) {
+        return source.evaluate(frame);
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
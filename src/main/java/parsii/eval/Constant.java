@@ -28,6 +28,11 @@ public class Constant implements Expression {
         return value;
     }
 
+    @Override
+    public double evaluate(double[] frame) {
+        return value;
+    }
+
     @Override
     public boolean isConstant() {
         return true;
@@ -37,4 +42,22 @@ public class Constant implements Expression {
     public String toString() {
         return String.valueOf(value);
     }
+
+    /**
+     * Two constants are equal if they have the same value. Other than <tt>==</tt>, <tt>NaN</tt> is equal to itself
+     * and <tt>0</tt> isn't equal to <tt>-0</tt>.
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is a constant with the same value, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Constant
+               && Double.doubleToLongBits(((Constant) obj).value) == Double.doubleToLongBits(value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(value);
+    }
 }
@@ -0,0 +1,282 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import parsii.tokenizer.ParseException;
+
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contains the derivatives of all operators and of the functions defined in {@link Functions}.
+ * <p>
+ * This is the single source of the rules applied by {@link GradientEvaluator} and {@link Differentiator}. As the
+ * symbolic derivative is optimized, its results might differ from the numeric ones by rounding and in the sign of a
+ * zero, but <tt>NaN</tt> and infinite results are the same. For each argument a rule is an expression of the
+ * arguments <tt>x</tt> and <tt>y</tt> and the value of the operation or call <tt>value</tt>, which computes the
+ * partial derivative for this argument. The gradient evaluator evaluates a rule against a frame containing these
+ * values (see {@link #createFrame(double, double, double)}), the differentiator substitutes the arguments and the
+ * call itself (see {@link #substitute(Expression, Expression, Expression, Expression)}).
+ * <p>
+ * Two kinds of rules are treated specially by both: a rule which is the constant <tt>0</tt> drops the derivatives of
+ * its argument, even if they are infinite or <tt>NaN</tt>, as the result doesn't depend on the argument. A rule which
+ * is a call of <tt>if</tt> only applies the selected branch, so that <tt>min</tt> and <tt>max</tt> only depend on
+ * the selected argument.
+ */
+final class DerivativeRules {
+
+    private static final Scope SCOPE = new Scope();
+    private static final Variable X = SCOPE.getVariable("x");
+    private static final Variable Y = SCOPE.getVariable("y");
+    private static final Variable VALUE = SCOPE.getVariable("value");
+
+    private static final Map<BinaryOperation.Op, Expression[]> OPERATIONS = new EnumMap<>(BinaryOperation.Op.class);
+    private static final Map<Function, Expression[]> FUNCTIONS = new IdentityHashMap<>();
+
+    static {
+        // Assign the slots read by createFrame before any rule is parsed
+        SCOPE.getSlot(X);
+        SCOPE.getSlot(Y);
+        SCOPE.getSlot(VALUE);
+
+        for(BinaryOperation.Op op : BinaryOperation.Op.values()) {
+            // Comparisons and logical operators are piecewise constant
+            operation(op, "0", "0");
+        }
+        operation(BinaryOperation.Op.ADD, "1", "1");
+        operation(BinaryOperation.Op.SUBTRACT, "1", "-1");
+        operation(BinaryOperation.Op.MULTIPLY, "y", "x");
+        operation(BinaryOperation.Op.DIVIDE, "1 / y", "-value / y");
+        // x % y = x - n * y, where n = (x - x % y) / y is the truncated quotient
+        operation(BinaryOperation.Op.MODULO, "1", "-(x - value) / y");
+        // x ^ y = exp(y * ln(x))
+        operation(BinaryOperation.Op.POWER, "y * x ^ (y - 1)", "value * ln(x)");
+
+        function(Functions.SIN, "cos(x)");
+        function(Functions.COS, "-sin(x)");
+        function(Functions.TAN, "1 + value * value");
+        function(Functions.SINH, "cosh(x)");
+        function(Functions.COSH, "sinh(x)");
+        function(Functions.TANH, "1 - value * value");
+        function(Functions.ABS, "sign(x)");
+        function(Functions.ASIN, "1 / sqrt(1 - x * x)");
+        function(Functions.ACOS, "-1 / sqrt(1 - x * x)");
+        function(Functions.ATAN, "1 / (1 + x * x)");
+        function(Functions.SQRT, "0.5 / value");
+        function(Functions.CBRT, "1 / (3 * value * value)");
+        function(Functions.EXP, "value");
+        function(Functions.LN, "1 / x");
+        function(Functions.LOG, "1 / (x * ln(10))");
+        function(Functions.DEG, "deg(1)");
+        function(Functions.RAD, "rad(1)");
+        function(Functions.RND, "value / x");
+        function(Functions.ATAN2, "y / (x * x + y * y)", "-x / (x * x + y * y)");
+        function(Functions.POW, "y * pow(x, y - 1)", "value * ln(x)");
+        function(Functions.ROOT, "value / (x * y)", "-value * ln(x) / (y * y)");
+        function(Functions.MIN, "if(x <= y, 1, 0)", "if(x <= y, 0, 1)");
+        function(Functions.MAX, "if(x >= y, 1, 0)", "if(x >= y, 0, 1)");
+        // 1 / exp(-y * x) is exp(y * x)
+        function(Functions.SIGMOID, "value * y", "value * x");
+        for(Function function : new Function[]{Functions.ROUND,
+                                               Functions.FLOOR,
+                                               Functions.CEIL,
+                                               Functions.SIGN,
+                                               Functions.INT_NOT,
+                                               Functions.DOUBLE_BITS_TO_LONG,
+                                               Functions.LONG_BITS_TO_DOUBLE,
+                                               Functions.FLOAT_BITS_TO_INT,
+                                               Functions.INT_BITS_TO_FLOAT}) {
+            function(function, "0");
+        }
+        for(Function function : new Function[]{Functions.INT_AND,
+                                               Functions.INT_OR,
+                                               Functions.INT_XOR,
+                                               Functions.INT_LEFT_SHIFT,
+                                               Functions.INT_RIGHT_SHIFT}) {
+            function(function, "0", "0");
+        }
+    }
+
+    private DerivativeRules() {
+    }
+
+    private static void operation(BinaryOperation.Op op, String dx, String dy) {
+        OPERATIONS.put(op, new Expression[]{parse(dx), parse(dy)});
+    }
+
+    private static void function(Function function, String... rules) {
+        Expression[] expressions = new Expression[rules.length];
+        for(int i = 0; i < rules.length; i++) {
+            expressions[i] = parse(rules[i]);
+        }
+        FUNCTIONS.put(function, expressions);
+    }
+
+    private static Expression parse(String rule) {
+        try {
+            return new Parser().parse(rule, SCOPE);
+        } catch(ParseException e) {
+            throw new IllegalStateException(rule, e);
+        }
+    }
+
+    /**
+     * Returns the rules for the given operation.
+     *
+     * @param op the operation to derive
+     * @return the rules for the left and the right operand
+     */
+    static Expression[] forOperation(BinaryOperation.Op op) {
+        return OPERATIONS.get(op);
+    }
+
+    /**
+     * Returns the rules for the given function.
+     *
+     * @param function the function to derive
+     * @return the rules for each argument or <tt>null</tt> if the function isn't known
+     */
+    static Expression[] forFunction(Function function) {
+        return FUNCTIONS.get(function);
+    }
+
+    /**
+     * Determines if the given rule drops the derivatives of its argument.
+     *
+     * @param rule the rule to check
+     * @return <tt>true</tt> if the rule is the constant <tt>0</tt>, <tt>false</tt> otherwise
+     */
+    static boolean isZero(Expression rule) {
+        return rule instanceof Constant && rule.evaluate() == 0;
+    }
+
+    /**
+     * Creates a frame which can be passed to {@link #select(Expression, double[])} and to the <tt>evaluate</tt>
+     * method of the selected rule.
+     *
+     * @param x     the value of the first argument
+     * @param y     the value of the second argument (if any)
+     * @param value the value of the operation or call
+     * @return a frame containing the given values
+     */
+    static double[] createFrame(double x, double y, double value) {
+        return new double[]{x, y, value};
+    }
+
+    /**
+     * Resolves calls of <tt>if</tt> in the given rule.
+     *
+     * @param rule  the rule to apply
+     * @param frame the arguments and the value of the derived operation or call
+     * @return the branch selected by the given frame, which is no call of <tt>if</tt>, or the constant <tt>NaN</tt>
+     * if a condition is <tt>NaN</tt>
+     */
+    static Expression select(Expression rule, double[] frame) {
+        while(rule instanceof FunctionCall && ((FunctionCall) rule).getFunction() == Functions.IF) {
+            List<Expression> parameters = ((FunctionCall) rule).getParameters();
+            double condition = parameters.get(0).evaluate(frame);
+            if(Double.isNaN(condition)) {
+                return new Constant(condition);
+            }
+            rule = parameters.get(BinaryOperation.isTrue(condition) ? 1 : 2);
+        }
+        return rule;
+    }
+
+    /**
+     * Determines if the derivative of the given expression for the given variable might be non-zero.
+     * <p>
+     * This is the case if the expression refers to the variable, unless only via arguments whose rule is
+     * <tt>0</tt>. For <tt>if</tt> both branches are considered, as a <tt>NaN</tt> condition makes the derivative
+     * <tt>NaN</tt> for every variable a branch depends on.
+     *
+     * @param expr     the expression to check
+     * @param variable the variable to derive for
+     * @return <tt>true</tt> if the expression depends on the variable, <tt>false</tt> if its derivative is always
+     * <tt>0</tt>
+     */
+    static boolean dependsOn(Expression expr, Variable variable) {
+        if(expr instanceof Constant) {
+            return false;
+        }
+        if(expr instanceof VariableReference) {
+            return ((VariableReference) expr).getVariable() == variable;
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression[] rules = forOperation(operation.getOp());
+            return !isZero(rules[0]) && dependsOn(operation.getLeft(), variable)
+                   || !isZero(rules[1]) && dependsOn(operation.getRight(), variable);
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            List<Expression> parameters = call.getParameters();
+            if(call.getFunction() == Functions.IF) {
+                return dependsOn(parameters.get(1), variable) || dependsOn(parameters.get(2), variable);
+            }
+            Expression[] rules = forFunction(call.getFunction());
+            for(int i = 0; i < parameters.size(); i++) {
+                if((rules == null || !isZero(rules[i])) && dependsOn(parameters.get(i), variable)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if(expr instanceof Temporary) {
+            return dependsOn(((Temporary) expr).getExpression(), variable);
+        }
+        if(expr instanceof LetExpression) {
+            return dependsOn(((LetExpression) expr).getBody(), variable);
+        }
+        if(expr instanceof CompiledExpression) {
+            return dependsOn(((CompiledExpression) expr).getSource(), variable);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the arguments and the value in the given rule.
+     *
+     * @param rule  the rule to apply
+     * @param x     the first argument
+     * @param y     the second argument (if any)
+     * @param value the derived operation or call
+     * @return a new expression which computes the partial derivative
+     */
+    static Expression substitute(Expression rule, Expression x, Expression y, Expression value) {
+        if(rule instanceof VariableReference) {
+            Variable variable = ((VariableReference) rule).getVariable();
+            if(variable == X) {
+                return x;
+            }
+            if(variable == Y) {
+                return y;
+            }
+            return variable == VALUE ? value : rule;
+        }
+        if(rule instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) rule;
+            return BinaryOperation.create(operation.getOp(),
+                                          substitute(operation.getLeft(), x, y, value),
+                                          substitute(operation.getRight(), x, y, value));
+        }
+        if(rule instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) rule;
+            FunctionCall result = new FunctionCall();
+            result.setFunction(call.getFunction());
+            for(Expression parameter : call.getParameters()) {
+                result.addParameter(substitute(parameter, x, y, value));
+            }
+            return result;
+        }
+        return rule;
+    }
+}
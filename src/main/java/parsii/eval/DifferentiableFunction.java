@@ -0,0 +1,29 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function which can compute its partial derivatives.
+ * <p>
+ * The derivatives of the functions defined in {@link Functions} are known to the {@link GradientEvaluator}. Custom
+ * functions have to implement this interface so that gradients of expressions which call them can be computed.
+ * Otherwise the partial derivatives of such a call are <tt>NaN</tt> if an argument depends on a variable of
+ * interest.
+ */
+public interface DifferentiableFunction extends Function {
+
+    /**
+     * Computes the partial derivative of the function with respect to one of its arguments.
+     *
+     * @param arguments the values of all arguments
+     * @param index     the index of the argument to derive for
+     * @return the partial derivative of the function at the given arguments
+     */
+    double derivative(double[] arguments, int index);
+}
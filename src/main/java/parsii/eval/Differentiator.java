@@ -0,0 +1,250 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the derivative of an expression as a new expression.
+ * <p>
+ * Other than {@link GradientEvaluator}, which computes derivatives numerically for each evaluation, the result is
+ * an expression tree which can be optimized, compiled or batched like any other expression. Therefore the derivative
+ * only has to be computed once and evaluating it is as cheap as evaluating a normal expression:
+ * {@code
+ * Expression dx = Program.compile(Differentiator.derive(density, x));
+ * }
+ * <p>
+ * The same rules as in {@link GradientEvaluator} are applied (both share their rules): comparisons, logical
+ * operators and functions like <tt>round</tt> have a derivative of <tt>0</tt>, <tt>if(c, a, b)</tt> becomes
+ * <tt>if(c, a', b')</tt> (or just <tt>a'</tt> if both branches are equal) and subtrees which don't depend on the
+ * variable are dropped, even if they would be multiplied by an infinite value.
+ * Calls of custom functions which implement {@link DifferentiableFunction} are derived into calls of a function
+ * which computes the respective partial derivative. Calls of other custom functions whose arguments depend on the
+ * variable are replaced by <tt>NaN</tt>.
+ * <p>
+ * The result is optimized as by {@link Optimizer#optimize(Expression)}, except that half-integer powers aren't
+ * replaced by <tt>sqrt</tt> and that negations and additions of <tt>0</tt> are kept, as these rewrites might change
+ * the result for infinite values or the sign of a zero. Therefore the derivative yields the same <tt>NaN</tt> and
+ * infinite results as {@link GradientEvaluator}, other results might differ by rounding. If the given expression is a
+ * {@link LetExpression}, common subexpressions are eliminated again (see {@link Optimizer#specialize(Expression,
+ * java.util.Map)}).
+ */
+public class Differentiator {
+
+    private static final Constant ZERO = new Constant(0);
+    private static final Constant ONE = new Constant(1);
+
+    private Differentiator() {
+    }
+
+    /**
+     * Computes the derivative of the given expression for the given variable.
+     * <p>
+     * The given expression is not modified.
+     *
+     * @param expression the expression to derive
+     * @param variable   the variable to derive for
+     * @return an expression which computes the partial derivative of the given expression
+     */
+    public static Expression derive(Expression expression, Variable variable) {
+        if(expression instanceof CompiledExpression) {
+            return derive(((CompiledExpression) expression).getSource(), variable);
+        }
+        Expression derivative = deriveNode(Optimizer.inline(expression), variable);
+        Expression result = Optimizer.optimizeKeepingSpecialValues(derivative);
+        if(expression instanceof LetExpression) {
+            return Optimizer.eliminateCommonSubexpressions(result);
+        }
+        return result;
+    }
+
+    private static Expression deriveNode(Expression expr, Variable variable) {
+        if(expr instanceof Constant) {
+            return ZERO;
+        }
+        if(expr instanceof VariableReference) {
+            return ((VariableReference) expr).getVariable() == variable ? ONE : ZERO;
+        }
+        if(expr instanceof BinaryOperation) {
+            return deriveOperation((BinaryOperation) expr, variable);
+        }
+        if(expr instanceof FunctionCall) {
+            return deriveCall((FunctionCall) expr, variable);
+        }
+        return new Constant(Double.NaN);
+    }
+
+    private static Expression deriveOperation(BinaryOperation operation, Variable variable) {
+        return chainRule(DerivativeRules.forOperation(operation.getOp()),
+                         operation,
+                         Arrays.asList(operation.getLeft(), operation.getRight()),
+                         variable);
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private static Expression deriveCall(FunctionCall call, Variable variable) {
+        Function function = call.getFunction();
+        List<Expression> parameters = call.getParameters();
+        if(function == Functions.IF) {
+            if(parameters.get(1).equals(parameters.get(2))) {
+                // if(c, e, e) is e (unless c is NaN)
+                return deriveNode(parameters.get(1), variable);
+            }
+            return choose(parameters.get(0),
+                          deriveNode(parameters.get(1), variable),
+                          deriveNode(parameters.get(2), variable));
+        }
+        Expression[] rules = DerivativeRules.forFunction(function);
+        if(rules != null) {
+            return chainRule(rules, call, parameters, variable);
+        }
+
+        Expression result = ZERO;
+        for(int i = 0; i < parameters.size(); i++) {
+            Expression derivative = deriveNode(parameters.get(i), variable);
+            if(!isZero(derivative)) {
+                result = add(result, multiply(partialDerivative(function, parameters, i), derivative));
+            }
+        }
+        return result;
+    }
+
+    private static Expression partialDerivative(Function function, List<Expression> parameters, int index) {
+        if(!(function instanceof DifferentiableFunction)) {
+            return new Constant(Double.NaN);
+        }
+        FunctionCall partial = new FunctionCall();
+        partial.setFunction(new PartialDerivative((DifferentiableFunction) function, index));
+        for(Expression parameter : parameters) {
+            partial.addParameter(parameter);
+        }
+        return partial;
+    }
+
+    /*
+     * Applies the rule of each argument (see DerivativeRules) to its derivative and sums them up.
+     */
+    private static Expression chainRule(Expression[] rules,
+                                        Expression value,
+                                        List<Expression> arguments,
+                                        Variable variable) {
+        Expression x = arguments.get(0);
+        Expression y = arguments.size() > 1 ? arguments.get(1) : null;
+        Expression result = ZERO;
+        for(int i = 0; i < arguments.size(); i++) {
+            if(!DerivativeRules.isZero(rules[i])) {
+                Expression derivative = deriveNode(arguments.get(i), variable);
+                result = add(result, applyRule(rules[i], x, y, value, derivative));
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Multiplies the given derivative by a rule. For a call of if, only the selected branch is applied, so that
+     * an argument which isn't selected is dropped, like in the GradientEvaluator.
+     */
+    private static Expression applyRule(Expression rule,
+                                        Expression x,
+                                        Expression y,
+                                        Expression value,
+                                        Expression derivative) {
+        if(DerivativeRules.isZero(rule) || isZero(derivative)) {
+            return ZERO;
+        }
+        if(isCondition(rule)) {
+            List<Expression> parameters = ((FunctionCall) rule).getParameters();
+            return choose(DerivativeRules.substitute(parameters.get(0), x, y, value),
+                          applyRule(parameters.get(1), x, y, value, derivative),
+                          applyRule(parameters.get(2), x, y, value, derivative));
+        }
+        return multiply(DerivativeRules.substitute(rule, x, y, value), derivative);
+    }
+
+    private static boolean isZero(Expression expr) {
+        return expr instanceof Constant && expr.evaluate() == 0;
+    }
+
+    private static Expression add(Expression a, Expression b) {
+        if(isZero(a)) {
+            return b;
+        }
+        if(isZero(b)) {
+            return a;
+        }
+        return BinaryOperation.create(BinaryOperation.Op.ADD, a, b);
+    }
+
+    /*
+     * Multiplies a factor by a derivative, which is dropped if it is 0, even if the factor is infinite or NaN.
+     */
+    private static Expression multiply(Expression factor, Expression derivative) {
+        if(isZero(derivative)) {
+            return ZERO;
+        }
+        if(factor instanceof Constant && factor.evaluate() == 1) {
+            return derivative;
+        }
+        return BinaryOperation.create(BinaryOperation.Op.MULTIPLY, factor, derivative);
+    }
+
+    private static boolean isCondition(Expression expr) {
+        return expr instanceof FunctionCall && ((FunctionCall) expr).getFunction() == Functions.IF;
+    }
+
+    /*
+     * Creates if(condition, a, b), which is 0 if both branches are 0. Otherwise a NaN condition would make the
+     * derivative NaN, although the expression doesn't depend on the variable at all.
+     */
+    private static Expression choose(Expression condition, Expression a, Expression b) {
+        if(isZero(a) && isZero(b)) {
+            return ZERO;
+        }
+        FunctionCall result = new FunctionCall();
+        result.setFunction(Functions.IF);
+        result.addParameter(condition);
+        result.addParameter(a);
+        result.addParameter(b);
+        return result;
+    }
+
+    /*
+     * Computes a partial derivative of a custom function numerically.
+     */
+    private static class PartialDerivative implements Function {
+
+        private final DifferentiableFunction function;
+        private final int index;
+
+        PartialDerivative(DifferentiableFunction function, int index) {
+            this.function = function;
+            this.index = index;
+        }
+
+        @Override
+        public int getNumberOfArguments() {
+            return function.getNumberOfArguments();
+        }
+
+        @Override
+        public double eval(List<Expression> args) {
+            double[] arguments = new double[args.size()];
+            for(int i = 0; i < arguments.length; i++) {
+                arguments[i] = args.get(i).evaluate();
+            }
+            return function.derivative(arguments, index);
+        }
+
+        @Override
+        public boolean isNaturalFunction() {
+            return function.isNaturalFunction();
+        }
+    }
+}
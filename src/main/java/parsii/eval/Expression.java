@@ -8,10 +8,21 @@
 
 package parsii.eval;
 
+import java.util.Map;
+
 /**
  * Represents the result of a parsed expression.
  * <p>
  * Can be evaluated to return a double value. If an error occurs {@code Double.NaN} will be returned.
+ * <p>
+ * Using {@link #evaluate(double[])} an expression can also be evaluated against a frame of variable values, laid out
+ * as defined by the {@link Scope} which was used to parse it. As the expression itself isn't modified while being
+ * evaluated, a single expression can be evaluated by several threads at once, as long as each uses its own frame.
+ * <p>
+ * {@link Constant}, {@link VariableReference}, {@link BinaryOperation} and {@link FunctionCall} implement
+ * <tt>equals</tt> and <tt>hashCode</tt> structurally, so that equal subtrees can be detected (see
+ * {@link Optimizer#eliminateCommonSubexpressions(Expression)}). As operations and calls can be modified, they must
+ * not be modified while being used as key of a hash map.
  */
 public interface Expression {
 
@@ -22,6 +33,59 @@ public interface Expression {
      */
     double evaluate();
 
+    /**
+     * Evaluates the expression to a double number, reading the values of variables from the given frame.
+     * <p>
+     * The value of each variable is read from the frame at the slot which was assigned by the {@link Scope} used
+     * to parse the expression (see {@link Scope#getSlot(Variable)}). The variables themselves are neither read nor
+     * modified. The default implementation is only suitable for expressions which do not reference any variable.
+     *
+     * @param frame the values of all variables, e.g. created by {@link Scope#createFrame()}
+     * @return the double value as a result of evaluating this expression. Returns NaN if an error occurs
+     */
+    default double evaluate(double[] frame) {
+        return evaluate();
+    }
+
+    /**
+     * Evaluates the expression for <tt>n</tt> points, reading the values of variables from the given columns.
+     * <p>
+     * The columns are laid out like a frame (see {@link #evaluate(double[])}): <tt>inputColumns[slot][i]</tt>
+     * contains the value of the variable with the given slot for the i-th point. Columns of variables which aren't
+     * referenced by the expression may be <tt>null</tt>.
+     * <p>
+     * The default implementation evaluates one point after another. Use {@link BatchExpression} to evaluate a whole
+     * block of points per node.
+     *
+     * @param inputColumns the values of all variables, indexed by their slot
+     * @param out          the array to store the result for each point in
+     * @param n            the number of points to evaluate
+     */
+    default void evaluateBatch(double[][] inputColumns, double[] out, int n) {
+        double[] frame = new double[inputColumns.length];
+        for(int i = 0; i < n; i++) {
+            for(int slot = 0; slot < frame.length; slot++) {
+                if(inputColumns[slot] != null) {
+                    frame[slot] = inputColumns[slot][i];
+                }
+            }
+            out[i] = evaluate(frame);
+        }
+    }
+
+    /**
+     * Evaluates the expression for each point of a regular grid.
+     * <p>
+     * See {@link GridEvaluator} for the layout of the results. Use {@link GridEvaluator#compile(Expression,
+     * GridEvaluator.Axis...)} to evaluate the same grid several times.
+     *
+     * @param out  the array to store the results in
+     * @param axes the axes of the grid, outermost first
+     */
+    default void evaluateGrid(double[] out, GridEvaluator.Axis... axes) {
+        GridEvaluator.create(this, axes).evaluate(out);
+    }
+
     /**
      * Returns a simplified version of this expression.
      *
@@ -31,6 +95,30 @@ public interface Expression {
         return this;
     }
 
+    /**
+     * Returns an optimized copy of this expression, which treats the given variables as constants.
+     * <p>
+     * This expression isn't modified. See {@link Optimizer#specialize(Expression, Map)} for details.
+     *
+     * @param values the values of the variables which are known upfront
+     * @return a specialized and optimized version of this expression
+     */
+    default Expression specialize(Map<Variable, Double> values) {
+        return Optimizer.specialize(this, values);
+    }
+
+    /**
+     * Returns an expression which computes the derivative of this expression for the given variable.
+     * <p>
+     * This expression isn't modified. See {@link Differentiator#derive(Expression, Variable)} for details.
+     *
+     * @param variable the variable to derive for
+     * @return the partial derivative of this expression as a new expression
+     */
+    default Expression derivative(Variable variable) {
+        return Differentiator.derive(this, variable);
+    }
+
     /**
      * Determines the this expression is constant
      *
@@ -8,6 +8,7 @@
 
 package parsii.eval;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -40,6 +41,36 @@ public interface Function {
      */
     double eval(List<Expression> args);
 
+    /**
+     * Executes the function with the given arguments, which are evaluated against the given frame.
+     * <p>
+     * The default implementation passes each argument to {@link #eval(List)} wrapped in an expression, which
+     * evaluates the argument against the given frame. Functions which evaluate their arguments on their own should
+     * override this method to avoid creating these wrappers.
+     *
+     * @param args  the arguments for this function
+     * @param frame the frame of variable values to evaluate the arguments with
+     * @return the result of the function evaluated with the given arguments
+     * @see Expression#evaluate(double[])
+     */
+    default double eval(List<Expression> args, double[] frame) {
+        List<Expression> boundArgs = new ArrayList<>(args.size());
+        for(Expression arg : args) {
+            boundArgs.add(new Expression() {
+                @Override
+                public double evaluate() {
+                    return arg.evaluate(frame);
+                }
+
+                @Override
+                public boolean isConstant() {
+                    return arg.isConstant();
+                }
+            });
+        }
+        return eval(boundArgs);
+    }
+
     /**
      * A natural function returns the same output for the same input.
      * <p>
@@ -30,6 +30,15 @@ public class FunctionCall implements Expression {
         this.function = function;
     }
 
+    /**
+     * Returns the function being evaluated.
+     *
+     * @return the function invoked by this call
+     */
+    public Function getFunction() {
+        return function;
+    }
+
     /**
      * Adds an expression as parameter.
      *
@@ -44,6 +53,11 @@ public class FunctionCall implements Expression {
         return function.eval(parameters);
     }
 
+    @Override
+    public double evaluate(double[] frame) {
+        return function.eval(parameters, frame);
+    }
+
     @Override
     public Expression simplify() {
         if(!function.isNaturalFunction()) {
@@ -57,6 +71,28 @@ public class FunctionCall implements Expression {
         return new Constant(evaluate());
     }
 
+    /**
+     * Two calls are equal if they invoke the same function with equal parameters.
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is a structurally equal call, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof FunctionCall)) {
+            return false;
+        }
+        return function == ((FunctionCall) obj).function && parameters.equals(((FunctionCall) obj).parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(function) * 31 + parameters.hashCode();
+    }
+
     /**
      * Returns all parameters added so far.
      *
@@ -0,0 +1,156 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Contains the functions which can be referenced by expressions.
+ * <p>
+ * A registry is immutable and can therefore be shared by any number of parsers and threads. It consists of layers:
+ * a function is searched in the topmost layer first and then in the layers below. {@link #BUILT_IN} contains the
+ * well known functions (<tt>sin</tt>, <tt>cos</tt>, ...) and is the bottom layer of all registries used by a
+ * {@link Parser}. Adding functions creates a new registry which shares all layers below the topmost one with the
+ * original registry, so that a small overlay (e.g. the functions of a tenant) is cheap to create:
+ * {@code
+ * FunctionRegistry tenantFunctions = FunctionRegistry.BUILT_IN.withLayer(customFunctions);
+ * Expression expr = new Parser(tenantFunctions).parse("lerp(a, b, 0.5)");
+ * }
+ */
+public final class FunctionRegistry {
+
+    /**
+     * Contains the functions which are known to every parser.
+     */
+    public static final FunctionRegistry BUILT_IN = createBuiltIns();
+
+    private final FunctionRegistry parent;
+    private final Map<String, Function> functions;
+
+    private FunctionRegistry(FunctionRegistry parent, Map<String, Function> functions) {
+        this.parent = parent;
+        this.functions = functions;
+    }
+
+    private static FunctionRegistry createBuiltIns() {
+        Map<String, Function> functions = new HashMap<>();
+        functions.put("sin", Functions.SIN);
+        functions.put("cos", Functions.COS);
+        functions.put("tan", Functions.TAN);
+        functions.put("sinh", Functions.SINH);
+        functions.put("cosh", Functions.COSH);
+        functions.put("tanh", Functions.TANH);
+        functions.put("asin", Functions.ASIN);
+        functions.put("acos", Functions.ACOS);
+        functions.put("atan", Functions.ATAN);
+        functions.put("atan2", Functions.ATAN2);
+        functions.put("deg", Functions.DEG);
+        functions.put("rad", Functions.RAD);
+        functions.put("abs", Functions.ABS);
+        functions.put("round", Functions.ROUND);
+        functions.put("ceil", Functions.CEIL);
+        functions.put("floor", Functions.FLOOR);
+        functions.put("exp", Functions.EXP);
+        functions.put("ln", Functions.LN);
+        functions.put("log", Functions.LOG);
+        functions.put("sqrt", Functions.SQRT);
+        functions.put("pow", Functions.POW);
+        functions.put("min", Functions.MIN);
+        functions.put("max", Functions.MAX);
+        functions.put("sign", Functions.SIGN);
+        functions.put("if", Functions.IF);
+        // custom functions
+        functions.put("root", Functions.ROOT);
+        functions.put("cbrt", Functions.CBRT);
+        functions.put("sigmoid", Functions.SIGMOID);
+        functions.put("int_and", Functions.INT_AND);
+        functions.put("int_left_bit_shift", Functions.INT_LEFT_SHIFT);
+        functions.put("int_right_bit_shift", Functions.INT_RIGHT_SHIFT);
+        functions.put("int_not", Functions.INT_NOT);
+        functions.put("int_or", Functions.INT_OR);
+        functions.put("int_xor", Functions.INT_XOR);
+        functions.put("double_to_long_bits", Functions.DOUBLE_BITS_TO_LONG);
+        functions.put("long_bits_to_double", Functions.LONG_BITS_TO_DOUBLE);
+        functions.put("float_bits_to_int", Functions.FLOAT_BITS_TO_INT);
+        functions.put("int_bits_to_float", Functions.INT_BITS_TO_FLOAT);
+
+        // pls no use
+        functions.put("rnd", Functions.RND);
+
+        return new FunctionRegistry(null, functions);
+    }
+
+    /**
+     * Returns a registry which contains the given functions in a new layer on top of this registry.
+     * <p>
+     * The given functions hide functions with the same name in this registry. The given map is copied.
+     *
+     * @param functions the functions to add, mapped by their name
+     * @return a new registry which contains the functions of this registry and the given ones
+     */
+    public FunctionRegistry withLayer(Map<String, Function> functions) {
+        return new FunctionRegistry(this, new HashMap<>(functions));
+    }
+
+    /**
+     * Returns a registry which additionally contains the given function.
+     * <p>
+     * Only the topmost layer of this registry is copied and extended by the given function, unless this is the
+     * bottom layer, in which case a new layer is created. Use {@link #withLayer(Map)} to add several functions at
+     * once.
+     *
+     * @param name     the name of the function. If a function with the same name is already available, it will be
+     *                 hidden
+     * @param function the function which is invoked as an expression is evaluated
+     * @return a new registry which contains the functions of this registry and the given one
+     */
+    public FunctionRegistry with(String name, Function function) {
+        if(parent == null) {
+            return withLayer(Collections.singletonMap(name, function));
+        }
+        Map<String, Function> copy = new HashMap<>(functions);
+        copy.put(name, function);
+        return new FunctionRegistry(parent, copy);
+    }
+
+    /**
+     * Returns the function with the given name.
+     *
+     * @param name the name of the function
+     * @return the function with the given name or <tt>null</tt> if no such function exists
+     */
+    public Function get(String name) {
+        FunctionRegistry registry = this;
+        while(registry != null) {
+            Function result = registry.functions.get(name);
+            if(result != null) {
+                return result;
+            }
+            registry = registry.parent;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names of all functions in this registry.
+     *
+     * @return the sorted names of all available functions
+     */
+    public Set<String> getNames() {
+        Set<String> result = new TreeSet<>();
+        for(FunctionRegistry registry = this; registry != null; registry = registry.parent) {
+            result.addAll(registry.functions.keySet());
+        }
+        return result;
+    }
+}
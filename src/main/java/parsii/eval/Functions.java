@@ -432,6 +432,19 @@ public class Functions {
             }
         }
 
+        @Override
+        public double eval(List<Expression> args, double[] frame) {
+            double check = args.get(0).evaluate(frame);
+            if(Double.isNaN(check)) {
+                return check;
+            }
+            if(FastMath.abs(check) > 0) {
+                return args.get(1).evaluate(frame);
+            } else {
+                return args.get(2).evaluate(frame);
+            }
+        }
+
         @Override
         public boolean isNaturalFunction() {
             return false;
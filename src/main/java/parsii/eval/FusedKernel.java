@@ -0,0 +1,177 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates a set of related expressions together, computing the subtrees they have in common only once.
+ * <p>
+ * All expressions have to be parsed using the same {@link Scope}. Common subexpressions are detected across all of
+ * them (see {@link Optimizer#eliminateCommonSubexpressions(Expression)}) and the whole set is lowered into a single
+ * {@link Program}, which computes the shared temporaries once and then the value of each expression. Therefore,
+ * evaluating a kernel is cheaper than evaluating each expression on its own - even if the expressions share nothing,
+ * as the variables are only loaded once.
+ * <p>
+ * Just like a program, {@link #evaluate(double[])} must not be used by several threads at once, whereas
+ * {@link #evaluate(double[], double[])} can be used concurrently.
+ * <p>
+ * Evaluating a kernel is as simple as:
+ * {@code
+ * FusedKernel kernel = FusedKernel.compile(Arrays.asList(parser.parse("a * b", scope),
+ *                                                        parser.parse("sqrt(a * b)", scope)));
+ * double[] results = new double[kernel.size()];
+ * kernel.evaluate(results);
+ * }
+ */
+public final class FusedKernel {
+
+    private final List<Expression> sources;
+    private final List<Temporary> temporaries;
+    private final List<Expression> expressions;
+    private final int frameSize;
+    private final Program program;
+
+    private FusedKernel(List<Expression> sources,
+                        List<Temporary> temporaries,
+                        List<Expression> expressions,
+                        Program program) {
+        this.sources = sources;
+        this.temporaries = temporaries;
+        this.expressions = expressions;
+        this.frameSize = temporaries.isEmpty() ? 0 : temporaries.get(temporaries.size() - 1).getSlot() + 1;
+        this.program = program;
+    }
+
+    /**
+     * Creates a kernel which computes the given expressions.
+     *
+     * @param expressions the expressions to compute, which have to be parsed using the same scope
+     * @return a kernel which computes the value of each given expression
+     */
+    public static FusedKernel compile(List<Expression> expressions) {
+        List<Expression> sources = new ArrayList<>(expressions.size());
+        for(Expression expression : expressions) {
+            if(expression instanceof CompiledExpression) {
+                sources.add(((CompiledExpression) expression).getSource());
+            } else {
+                sources.add(expression);
+            }
+        }
+        sources = Collections.unmodifiableList(sources);
+
+        List<Temporary> temporaries = new ArrayList<>();
+        List<Expression> shared = Optimizer.eliminateCommonSubexpressions(sources, temporaries);
+        ProgramBuilder builder = new ProgramBuilder();
+        if(builder.canKeepInRegisters(temporaries, shared)) {
+            return new FusedKernel(sources, temporaries, shared, builder.build(temporaries, shared));
+        }
+        return new FusedKernel(sources, temporaries, shared, null);
+    }
+
+    /**
+     * Returns the expressions computed by this kernel.
+     *
+     * @return the expressions passed to {@link #compile(List)}
+     */
+    public List<Expression> getSources() {
+        return sources;
+    }
+
+    /**
+     * Returns the number of expressions computed by this kernel.
+     *
+     * @return the number of results computed by each evaluation
+     */
+    public int size() {
+        return sources.size();
+    }
+
+    /**
+     * Returns the number of subexpressions which are shared by the expressions of this kernel.
+     *
+     * @return the number of subexpressions which are computed only once per evaluation
+     */
+    public int getNumberOfSharedSubexpressions() {
+        return temporaries.size();
+    }
+
+    /**
+     * Evaluates all expressions, reading the values of variables from the variables themselves.
+     *
+     * @param out the array to store the value of each expression in, in the order in which they were given
+     */
+    public void evaluate(double[] out) {
+        if(program == null) {
+            double[] frame = new double[frameSize];
+            for(Expression expression : sources) {
+                bindVariables(expression, frame);
+            }
+            run(frame, out);
+            return;
+        }
+        double[] r = program.loadRegisters(null);
+        program.run(r, null);
+        storeResults(r, out);
+    }
+
+    /**
+     * Evaluates all expressions, reading the values of variables from the given frame.
+     * <p>
+     * The given frame isn't modified.
+     *
+     * @param frame the values of all variables, e.g. created by {@link Scope#createFrame()}
+     * @param out   the array to store the value of each expression in, in the order in which they were given
+     */
+    public void evaluate(double[] frame, double[] out) {
+        if(program == null) {
+            run(Arrays.copyOf(frame, Math.max(frame.length, frameSize)), out);
+            return;
+        }
+        double[] r = program.loadRegisters(frame);
+        program.run(r, frame);
+        storeResults(r, out);
+    }
+
+    private void storeResults(double[] r, double[] out) {
+        int[] results = program.results;
+        for(int i = 0; i < results.length; i++) {
+            out[i] = r[results[i]];
+        }
+    }
+
+    /*
+     * Computes the temporaries into the given frame and evaluates the expressions using it. This is used if a
+     * temporary is referenced by the argument of a custom function, which is evaluated against the frame.
+     */
+    private void run(double[] frame, double[] out) {
+        for(Temporary temporary : temporaries) {
+            frame[temporary.getSlot()] = temporary.getExpression().evaluate(frame);
+        }
+        for(int i = 0; i < out.length && i < expressions.size(); i++) {
+            out[i] = expressions.get(i).evaluate(frame);
+        }
+    }
+
+    private static void bindVariables(Expression expr, double[] frame) {
+        if(expr instanceof VariableReference && ((VariableReference) expr).getSlot() >= 0) {
+            frame[((VariableReference) expr).getSlot()] = expr.evaluate();
+        } else if(expr instanceof BinaryOperation) {
+            bindVariables(((BinaryOperation) expr).getLeft(), frame);
+            bindVariables(((BinaryOperation) expr).getRight(), frame);
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                bindVariables(parameter, frame);
+            }
+        }
+    }
+}
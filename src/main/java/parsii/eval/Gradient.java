@@ -0,0 +1,89 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contains the value of an expression along with its partial derivatives for a list of variables.
+ * <p>
+ * Gradients are computed by {@link GradientEvaluator}.
+ */
+public final class Gradient {
+
+    private final List<Variable> variables;
+    private final double value;
+    private final double[] partialDerivatives;
+
+    Gradient(List<Variable> variables, double value, double[] partialDerivatives) {
+        this.variables = Collections.unmodifiableList(variables);
+        this.value = value;
+        this.partialDerivatives = partialDerivatives;
+    }
+
+    /**
+     * Returns the value of the expression.
+     *
+     * @return the result of evaluating the expression
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the variables for which the partial derivatives were computed.
+     *
+     * @return the variables in the order of the partial derivatives
+     */
+    public List<Variable> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns the partial derivative for the variable with the given index.
+     *
+     * @param index the index of the variable within {@link #getVariables()}
+     * @return the partial derivative of the expression for the variable
+     */
+    public double getPartialDerivative(int index) {
+        return partialDerivatives[index];
+    }
+
+    /**
+     * Returns the partial derivative for the given variable.
+     *
+     * @param variable the variable to fetch the derivative for
+     * @return the partial derivative of the expression for the given variable
+     * @throws IllegalArgumentException if no derivative was computed for the given variable
+     */
+    public double getPartialDerivative(Variable variable) {
+        for(int i = 0; i < variables.size(); i++) {
+            if(variables.get(i) == variable) {
+                return partialDerivatives[i];
+            }
+        }
+        throw new IllegalArgumentException("No derivative was computed for: " + variable.getName());
+    }
+
+    /**
+     * Returns all partial derivatives.
+     *
+     * @return a copy of the partial derivatives in the order of {@link #getVariables()}
+     */
+    public double[] getPartialDerivatives() {
+        return partialDerivatives.clone();
+    }
+
+    @Override
+    public String toString() {
+        return value + " " + Arrays.toString(partialDerivatives);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the value of an expression along with its partial derivatives for some variables in a single pass.
+ * <p>
+ * This uses forward-mode automatic differentiation: each node yields its value and the partial derivatives of its
+ * value, which are combined using the chain rule. Therefore the derivatives are exact up to rounding errors, other
+ * than finite differences, and cost about as much as evaluating the expression once per variable.
+ * <p>
+ * All operators and the functions defined in {@link Functions} are supported, using the same rules as the
+ * {@link Differentiator}. Comparisons, logical operators and functions like <tt>round</tt> are piecewise constant,
+ * their derivative is <tt>0</tt> (even at a discontinuity or for <tt>NaN</tt> arguments). Otherwise a <tt>NaN</tt>
+ * argument only yields <tt>NaN</tt> partial derivatives for the variables it depends on. For <tt>if</tt> only the
+ * selected branch is evaluated and derived, a <tt>NaN</tt> condition yields <tt>NaN</tt> partial derivatives for
+ * the variables either branch depends on (unless both branches are equal). Custom functions have to implement
+ * {@link DifferentiableFunction} to provide their derivatives, otherwise the partial derivatives of a call are
+ * <tt>NaN</tt> for every variable an argument depends on. Note that all arguments of a custom function are evaluated
+ * before it is called.
+ * <p>
+ * Computing a gradient is as simple as:
+ * {@code
+ * Gradient gradient = GradientEvaluator.evaluate(density, Arrays.asList(x, y, z));
+ * double dx = gradient.getPartialDerivative(x);
+ * }
+ */
+public class GradientEvaluator {
+
+    private final Map<Variable, Integer> indices = new IdentityHashMap<>();
+    private final double[] frame;
+    private final Map<Temporary, Dual> temporaries = new IdentityHashMap<>();
+    private final Map<Expression, boolean[]> dependencies = new IdentityHashMap<>();
+
+    /*
+     * Contains a value and its partial derivatives. As a derivative might be 0 although the value depends on the
+     * variable, the variables the value depends on are tracked separately. Both are null if the value doesn't depend
+     * on any variable.
+     */
+    private static class Dual {
+        private final double value;
+        private final double[] partials;
+        private final boolean[] depends;
+
+        Dual(double value) {
+            this(value, null, null);
+        }
+
+        Dual(double value, double[] partials, boolean[] depends) {
+            this.value = value;
+            this.partials = partials;
+            this.depends = depends;
+        }
+    }
+
+    private GradientEvaluator(List<Variable> variables, double[] frame) {
+        for(int i = 0; i < variables.size(); i++) {
+            indices.put(variables.get(i), i);
+        }
+        this.frame = frame;
+    }
+
+    /**
+     * Evaluates the given expression and its partial derivatives for the given variables.
+     *
+     * @param expression the expression to evaluate
+     * @param variables  the variables to compute the partial derivatives for
+     * @return the value and the gradient of the expression
+     */
+    public static Gradient evaluate(Expression expression, List<Variable> variables) {
+        return evaluate(expression, variables, null);
+    }
+
+    /**
+     * Evaluates the given expression and its partial derivatives, reading the values of variables from the given
+     * frame.
+     *
+     * @param expression the expression to evaluate
+     * @param variables  the variables to compute the partial derivatives for
+     * @param frame      the values of all variables, e.g. created by {@link Scope#createFrame()}
+     * @return the value and the gradient of the expression
+     * @see Expression#evaluate(double[])
+     */
+    public static Gradient evaluate(Expression expression, List<Variable> variables, double[] frame) {
+        GradientEvaluator evaluator = new GradientEvaluator(variables, frame);
+        Dual result = evaluator.evaluate(expression);
+        double[] partials = result.partials == null ? new double[variables.size()] : result.partials;
+        return new Gradient(new ArrayList<>(variables), result.value, partials);
+    }
+
+    private Dual evaluate(Expression expr) {
+        if(expr instanceof Constant) {
+            return new Dual(expr.evaluate());
+        }
+        if(expr instanceof VariableReference) {
+            VariableReference reference = (VariableReference) expr;
+            double value = frame == null ? reference.evaluate() : reference.evaluate(frame);
+            Integer index = indices.get(reference.getVariable());
+            if(index == null) {
+                return new Dual(value);
+            }
+            double[] partials = new double[indices.size()];
+            boolean[] depends = new boolean[partials.length];
+            partials[index] = 1;
+            depends[index] = true;
+            return new Dual(value, partials, depends);
+        }
+        if(expr instanceof BinaryOperation) {
+            return evaluateOperation((BinaryOperation) expr);
+        }
+        if(expr instanceof FunctionCall) {
+            return evaluateCall((FunctionCall) expr);
+        }
+        if(expr instanceof Temporary) {
+            Dual value = temporaries.get(expr);
+            return value == null ? evaluate(((Temporary) expr).getExpression()) : value;
+        }
+        if(expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            for(Temporary temporary : let.getTemporaries()) {
+                temporaries.put(temporary, evaluate(temporary.getExpression()));
+            }
+            return evaluate(let.getBody());
+        }
+        if(expr instanceof CompiledExpression) {
+            return evaluate(((CompiledExpression) expr).getSource());
+        }
+        return unknown(frame == null ? expr.evaluate() : expr.evaluate(frame));
+    }
+
+    private Dual evaluateOperation(BinaryOperation operation) {
+        BinaryOperation.Op op = operation.getOp();
+        if(op == BinaryOperation.Op.AND) {
+            boolean result = BinaryOperation.isTrue(evaluate(operation.getLeft()).value)
+                             && BinaryOperation.isTrue(evaluate(operation.getRight()).value);
+            return new Dual(result ? 1 : 0);
+        }
+        if(op == BinaryOperation.Op.OR) {
+            boolean result = BinaryOperation.isTrue(evaluate(operation.getLeft()).value)
+                             || BinaryOperation.isTrue(evaluate(operation.getRight()).value);
+            return new Dual(result ? 1 : 0);
+        }
+
+        Dual a = evaluate(operation.getLeft());
+        Dual b = evaluate(operation.getRight());
+        double value = operation.apply(a.value, b.value);
+        return chainRule(DerivativeRules.forOperation(op),
+                         DerivativeRules.createFrame(a.value, b.value, value),
+                         value,
+                         a,
+                         b);
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private Dual evaluateCall(FunctionCall call) {
+        Function function = call.getFunction();
+        List<Expression> parameters = call.getParameters();
+        if(function == Functions.IF) {
+            return evaluateCondition(parameters.get(0), parameters.get(1), parameters.get(2));
+        }
+
+        Dual[] arguments = new Dual[parameters.size()];
+        double[] values = new double[arguments.length];
+        for(int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(parameters.get(i));
+            values[i] = arguments[i].value;
+        }
+        double value = apply(function, values);
+        Expression[] rules = DerivativeRules.forFunction(function);
+        if(rules != null) {
+            // A NaN argument yields NaN partial derivatives, but only for the variables it depends on
+            return chainRule(rules,
+                             DerivativeRules.createFrame(values[0], values.length > 1 ? values[1] : 0, value),
+                             value,
+                             arguments);
+        }
+
+        double[] partials = new double[indices.size()];
+        boolean[] depends = new boolean[partials.length];
+        for(int i = 0; i < arguments.length; i++) {
+            if(arguments[i].depends != null) {
+                double derivative = function instanceof DifferentiableFunction ?
+                                    ((DifferentiableFunction) function).derivative(values, i) :
+                                    Double.NaN;
+                accumulate(partials, depends, derivative, arguments[i]);
+            }
+        }
+        return dual(value, partials, depends);
+    }
+
+    /*
+     * Only the selected branch is evaluated, but the result depends on the variables of both branches (see
+     * DerivativeRules.dependsOn), just like if(c, a', b') computed by the Differentiator.
+     */
+    private Dual evaluateCondition(Expression condition, Expression a, Expression b) {
+        double value = evaluate(condition).value;
+        if(a.equals(b)) {
+            // The derivative of if(c, e, e) is the one of e, even if c is NaN
+            Dual branch = evaluate(a);
+            return new Dual(Double.isNaN(value) ? value : branch.value, branch.partials, branch.depends);
+        }
+        double[] partials = new double[indices.size()];
+        boolean[] depends = new boolean[partials.length];
+        if(Double.isNaN(value)) {
+            // The result is NaN, and so are the derivatives for all variables either branch depends on
+            merge(partials, depends, a, Double.NaN);
+            merge(partials, depends, b, Double.NaN);
+            return dual(value, partials, depends);
+        }
+        boolean isTrue = BinaryOperation.isTrue(value);
+        Dual branch = evaluate(isTrue ? a : b);
+        if(branch.depends != null) {
+            accumulate(partials, depends, 1, branch);
+        }
+        merge(partials, depends, isTrue ? b : a, 0);
+        return dual(branch.value, partials, depends);
+    }
+
+    /*
+     * Marks the variables the given (unevaluated) expression depends on, setting their derivative to the given
+     * value unless it has already been computed.
+     */
+    private void merge(double[] partials, boolean[] depends, Expression expr, double derivative) {
+        boolean[] variables = dependencies.get(expr);
+        if(variables == null) {
+            variables = new boolean[indices.size()];
+            for(Map.Entry<Variable, Integer> entry : indices.entrySet()) {
+                variables[entry.getValue()] = DerivativeRules.dependsOn(expr, entry.getKey());
+            }
+            dependencies.put(expr, variables);
+        }
+        for(int i = 0; i < partials.length; i++) {
+            if(variables[i] && !depends[i]) {
+                partials[i] = derivative;
+                depends[i] = true;
+            }
+        }
+    }
+
+    private static double apply(Function function, double[] values) {
+        if(function instanceof UnaryFunction) {
+            return Double.isNaN(values[0]) ? values[0] : ((UnaryFunction) function).eval(values[0]);
+        }
+        if(function instanceof BinaryFunction) {
+            return Double.isNaN(values[0]) || Double.isNaN(values[1]) ?
+                   Double.NaN :
+                   ((BinaryFunction) function).eval(values[0], values[1]);
+        }
+        List<Expression> constants = new ArrayList<>(values.length);
+        for(double value : values) {
+            constants.add(new Constant(value));
+        }
+        return function.eval(constants);
+    }
+
+    /*
+     * Applies the rule of each argument (see DerivativeRules) to its partial derivatives and sums them up.
+     */
+    private Dual chainRule(Expression[] rules, double[] ruleFrame, double value, Dual... arguments) {
+        double[] partials = null;
+        boolean[] depends = null;
+        for(int i = 0; i < arguments.length; i++) {
+            if(arguments[i].depends != null && !DerivativeRules.isZero(rules[i])) {
+                if(partials == null) {
+                    partials = new double[indices.size()];
+                    depends = new boolean[partials.length];
+                }
+                Expression rule = DerivativeRules.select(rules[i], ruleFrame);
+                if(DerivativeRules.isZero(rule)) {
+                    // The argument isn't selected (e.g. by min), but the result still depends on its variables
+                    for(int j = 0; j < depends.length; j++) {
+                        depends[j] |= arguments[i].depends[j];
+                    }
+                } else {
+                    accumulate(partials, depends, rule.evaluate(ruleFrame), arguments[i]);
+                }
+            }
+        }
+        return new Dual(value, partials, depends);
+    }
+
+    /*
+     * Adds the partial derivatives of the given argument multiplied by the given factor. Only the variables the
+     * argument depends on are considered, so that an infinite or NaN factor doesn't affect the derivatives for other
+     * variables.
+     */
+    private static void accumulate(double[] partials, boolean[] depends, double factor, Dual argument) {
+        for(int i = 0; i < partials.length; i++) {
+            if(argument.depends[i]) {
+                partials[i] += factor * argument.partials[i];
+                depends[i] = true;
+            }
+        }
+    }
+
+    private static Dual dual(double value, double[] partials, boolean[] depends) {
+        for(boolean dependent : depends) {
+            if(dependent) {
+                return new Dual(value, partials, depends);
+            }
+        }
+        return new Dual(value);
+    }
+
+    private Dual unknown(double value) {
+        double[] partials = new double[indices.size()];
+        boolean[] depends = new boolean[partials.length];
+        Arrays.fill(partials, Double.NaN);
+        Arrays.fill(depends, true);
+        return new Dual(value, partials, depends);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates an expression for all points of a regular grid.
+ * <p>
+ * Each axis of the grid binds a variable to <tt>count</tt> values, starting at <tt>origin</tt> and increasing by
+ * <tt>step</tt>. The first axis is the outermost loop, the last one the innermost. The results are stored in a flat
+ * array, where the last axis changes fastest: the result for the indices <tt>i, j, k</tt> of a three dimensional
+ * grid is stored at <tt>(i * countJ + j) * countK + k</tt>.
+ * <p>
+ * Subtrees which don't depend on the variable of the innermost axis are hoisted out of the loop which they are
+ * invariant to: a subtree which only depends on the variable of the outermost axis is computed once per plane
+ * instead of once per point, and subtrees which depend on no axis at all are computed only once. Only pure subtrees
+ * (see {@link Optimizer}) are hoisted. Variables which aren't bound to an axis keep their current value. As the
+ * axes are passed via frames, the expression has to be parsed using the {@link Scope} of the axis variables.
+ * <p>
+ * Evaluating a grid is as simple as:
+ * {@code
+ * GridEvaluator grid = GridEvaluator.compile(density,
+ *                                            new GridEvaluator.Axis(x, 0, 1, 16),
+ *                                            new GridEvaluator.Axis(z, 0, 1, 16),
+ *                                            new GridEvaluator.Axis(y, 64, 0.5, 32));
+ * double[] values = new double[grid.size()];
+ * grid.evaluate(values);
+ * }
+ * <p>
+ * As each call of {@link #evaluate(double[])} uses a frame of its own, a grid evaluator can be used by several
+ * threads at once, as long as the variables which aren't bound to an axis aren't modified.
+ */
+public class GridEvaluator {
+
+    /**
+     * Contains the minimal estimated cost of a subtree, which is worth being hoisted out of a loop.
+     */
+    private static final int MIN_HOISTED_COST = 3;
+
+    /**
+     * Binds a variable to a range of equidistant values.
+     */
+    public static final class Axis {
+
+        private final Variable variable;
+        private final double origin;
+        private final double step;
+        private final int count;
+
+        /**
+         * Creates a new axis.
+         *
+         * @param variable the variable to bind
+         * @param origin   the first value of the variable
+         * @param step     the difference between two consecutive values
+         * @param count    the number of values
+         */
+        public Axis(Variable variable, double origin, double step, int count) {
+            if(count < 0) {
+                throw new IllegalArgumentException("count must not be negative");
+            }
+            this.variable = variable;
+            this.origin = origin;
+            this.step = step;
+            this.count = count;
+        }
+
+        /**
+         * Returns the variable bound by this axis.
+         *
+         * @return the variable which is set to the values of this axis
+         */
+        public Variable getVariable() {
+            return variable;
+        }
+
+        /**
+         * Returns the value of the variable for the given index.
+         *
+         * @param index the index of the point along this axis
+         * @return the value of the variable for the given point
+         */
+        public double getValue(int index) {
+            return origin + index * step;
+        }
+
+        /**
+         * Returns the number of points along this axis.
+         *
+         * @return the number of values of this axis
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private final Axis[] axes;
+    private final int[] axisSlots;
+    private final Variable[] variables;
+    private final int[] variableSlots;
+    private final int frameSize;
+    private final List<List<Temporary>> temporaries;
+    private final Expression[][] hoisted;
+    private final Expression body;
+    private final int size;
+
+    private GridEvaluator(Expression expression, Axis[] axes, boolean compile) {
+        this.axes = axes.clone();
+        int numberOfPoints = 1;
+        for(Axis axis : axes) {
+            numberOfPoints = Math.multiplyExact(numberOfPoints, axis.count);
+        }
+        this.size = numberOfPoints;
+
+        Map<Variable, Integer> slots = new IdentityHashMap<>();
+        collectSlots(expression, slots);
+        this.axisSlots = new int[axes.length];
+        for(int i = 0; i < axes.length; i++) {
+            Integer slot = slots.remove(axes[i].variable);
+            axisSlots[i] = slot == null ? -1 : slot;
+        }
+        this.variables = slots.keySet().toArray(new Variable[0]);
+        this.variableSlots = new int[variables.length];
+        int maxSlot = -1;
+        for(int i = 0; i < variables.length; i++) {
+            variableSlots[i] = slots.get(variables[i]);
+            maxSlot = Math.max(maxSlot, variableSlots[i]);
+        }
+        for(int slot : axisSlots) {
+            maxSlot = Math.max(maxSlot, slot);
+        }
+
+        // Level i contains the temporaries computed in the loop of axis i - 1, level 0 is computed once upfront
+        this.temporaries = new ArrayList<>();
+        for(int i = 0; i <= axes.length; i++) {
+            temporaries.add(new ArrayList<>());
+        }
+        Map<Expression, Integer> depths = new IdentityHashMap<>();
+        computeDepth(expression, depths);
+        int[] nextSlot = {maxSlot + 1};
+        Expression root = hoist(expression, axes.length - 1, depths, nextSlot);
+        this.frameSize = nextSlot[0];
+
+        this.hoisted = new Expression[temporaries.size()][];
+        for(int level = 0; level < hoisted.length; level++) {
+            List<Temporary> list = temporaries.get(level);
+            hoisted[level] = new Expression[list.size()];
+            for(int i = 0; i < list.size(); i++) {
+                Expression value = list.get(i).getExpression();
+                hoisted[level][i] = compile ? BytecodeCompiler.compile(value) : value;
+            }
+        }
+        this.body = compile ? BytecodeCompiler.compile(root) : root;
+    }
+
+    /**
+     * Prepares the evaluation of the given expression on the given grid, evaluating the tree directly.
+     *
+     * @param expression the expression to evaluate
+     * @param axes       the axes of the grid, outermost first
+     * @return an evaluator which computes the expression for each point of the grid
+     */
+    public static GridEvaluator create(Expression expression, Axis... axes) {
+        return new GridEvaluator(inline(expression), axes, false);
+    }
+
+    /**
+     * Prepares the evaluation of the given expression on the given grid, compiling the hoisted subtrees and the
+     * remaining expression using the {@link BytecodeCompiler}.
+     * <p>
+     * This takes more time upfront than {@link #create(Expression, Axis...)}, but pays off for large grids or if the
+     * grid is evaluated several times.
+     *
+     * @param expression the expression to evaluate
+     * @param axes       the axes of the grid, outermost first
+     * @return an evaluator which computes the expression for each point of the grid
+     */
+    public static GridEvaluator compile(Expression expression, Axis... axes) {
+        return new GridEvaluator(inline(expression), axes, true);
+    }
+
+    private static Expression inline(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            return inline(((CompiledExpression) expression).getSource());
+        }
+        return Optimizer.inline(expression);
+    }
+
+    private static void collectSlots(Expression expr, Map<Variable, Integer> slots) {
+        if(expr instanceof VariableReference && ((VariableReference) expr).getSlot() >= 0) {
+            slots.put(((VariableReference) expr).getVariable(), ((VariableReference) expr).getSlot());
+        } else if(expr instanceof BinaryOperation) {
+            collectSlots(((BinaryOperation) expr).getLeft(), slots);
+            collectSlots(((BinaryOperation) expr).getRight(), slots);
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                collectSlots(parameter, slots);
+            }
+        }
+    }
+
+    /*
+     * Determines the innermost axis each subtree depends on (-1 if it doesn't depend on any axis). Impure and
+     * unknown subtrees are considered to depend on the innermost axis, so that they are never hoisted.
+     */
+    private int computeDepth(Expression expr, Map<Expression, Integer> depths) {
+        int depth = -1;
+        if(expr instanceof VariableReference) {
+            depth = indexOf(((VariableReference) expr).getVariable());
+        } else if(expr instanceof BinaryOperation) {
+            depth = Math.max(computeDepth(((BinaryOperation) expr).getLeft(), depths),
+                             computeDepth(((BinaryOperation) expr).getRight(), depths));
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                depth = Math.max(depth, computeDepth(parameter, depths));
+            }
+            Function function = ((FunctionCall) expr).getFunction();
+            if(function != Functions.IF && !Optimizer.isPure(function)) {
+                depth = axes.length - 1;
+            }
+        } else if(!(expr instanceof Constant)) {
+            depth = axes.length - 1;
+        }
+        depths.put(expr, depth);
+        return depth;
+    }
+
+    private int indexOf(Variable variable) {
+        for(int i = axes.length - 1; i >= 0; i--) {
+            if(axes[i].variable == variable) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Replaces each subtree which is invariant to a loop its parent depends on by a temporary, which is computed
+     * once per iteration of the innermost axis the subtree depends on.
+     */
+    private Expression hoist(Expression expr, int parentDepth, Map<Expression, Integer> depths, int[] nextSlot) {
+        int depth = depths.get(expr);
+        Expression result = expr;
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression left = hoist(operation.getLeft(), depth, depths, nextSlot);
+            Expression right = hoist(operation.getRight(), depth, depths, nextSlot);
+            if(left != operation.getLeft() || right != operation.getRight()) {
+                result = BinaryOperation.create(operation.getOp(), left, right);
+            }
+        } else if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            List<Expression> parameters = new ArrayList<>(call.getParameters().size());
+            boolean changed = false;
+            for(Expression parameter : call.getParameters()) {
+                Expression hoistedParameter = hoist(parameter, depth, depths, nextSlot);
+                parameters.add(hoistedParameter);
+                changed |= hoistedParameter != parameter;
+            }
+            if(changed) {
+                FunctionCall copy = new FunctionCall();
+                copy.setFunction(call.getFunction());
+                parameters.forEach(copy::addParameter);
+                result = copy;
+            }
+        }
+        if(depth < parentDepth && Optimizer.estimateCost(expr) >= MIN_HOISTED_COST) {
+            Temporary temporary = new Temporary(result, nextSlot[0]++);
+            temporaries.get(depth + 1).add(temporary);
+            return temporary;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of points of the grid.
+     *
+     * @return the number of results computed by {@link #evaluate(double[])}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of subtrees which are hoisted out of the innermost loop.
+     *
+     * @return the number of subtrees which are computed less often than once per point
+     */
+    public int getNumberOfHoistedSubtrees() {
+        int result = 0;
+        for(Expression[] level : hoisted) {
+            result += level.length;
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression for each point of the grid.
+     *
+     * @param out the array to store the results in, which has to contain at least {@link #size()} elements
+     */
+    public void evaluate(double[] out) {
+        if(out.length < size) {
+            throw new IllegalArgumentException("The output array has to contain at least " + size + " elements");
+        }
+        double[] frame = new double[frameSize];
+        for(int i = 0; i < variables.length; i++) {
+            frame[variableSlots[i]] = variables[i].getValue();
+        }
+        computeTemporaries(0, frame);
+        if(axes.length == 0) {
+            out[0] = body.evaluate(frame);
+        } else {
+            evaluate(0, 0, frame, out);
+        }
+    }
+
+    private int evaluate(int axisIndex, int offset, double[] frame, double[] out) {
+        Axis axis = axes[axisIndex];
+        int slot = axisSlots[axisIndex];
+        boolean isInnermost = axisIndex == axes.length - 1;
+        int index = offset;
+        for(int i = 0; i < axis.count; i++) {
+            if(slot >= 0) {
+                frame[slot] = axis.getValue(i);
+            }
+            if(isInnermost) {
+                out[index++] = body.evaluate(frame);
+            } else {
+                computeTemporaries(axisIndex + 1, frame);
+                index = evaluate(axisIndex + 1, index, frame, out);
+            }
+        }
+        return index;
+    }
+
+    private void computeTemporaries(int level, double[] frame) {
+        List<Temporary> list = temporaries.get(level);
+        for(int i = 0; i < list.size(); i++) {
+            frame[list.get(i).getSlot()] = hoisted[level][i].evaluate(frame);
+        }
+    }
+}
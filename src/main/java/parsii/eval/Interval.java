@@ -0,0 +1,169 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a closed range of values, which may additionally contain <tt>NaN</tt>.
+ * <p>
+ * Intervals are used by {@link IntervalEvaluator} to bound the values an expression can take. The bounds may be
+ * infinite. An interval whose lower bound is greater than its upper bound contains no number at all, which is used
+ * to represent a value which is always <tt>NaN</tt> (see {@link #NAN}). As the sign of zero isn't tracked, an
+ * interval containing <tt>0</tt> also contains <tt>-0</tt>.
+ */
+public final class Interval {
+
+    /**
+     * Contains an interval which only contains <tt>NaN</tt>.
+     */
+    public static final Interval NAN = new Interval(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true);
+
+    /**
+     * Contains an interval which contains every value, including <tt>NaN</tt>.
+     */
+    public static final Interval ALL = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+
+    private final double lowerBound;
+    private final double upperBound;
+    private final boolean nan;
+
+    Interval(double lowerBound, double upperBound, boolean nan) {
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.nan = nan;
+    }
+
+    /**
+     * Creates an interval which contains all values between the given bounds (inclusive).
+     *
+     * @param lowerBound the smallest value in the interval
+     * @param upperBound the largest value in the interval
+     * @return a new interval containing the given range of values
+     * @throws IllegalArgumentException if a bound is <tt>NaN</tt> or if the lower bound is greater than the upper
+     *                                  bound
+     */
+    public static Interval of(double lowerBound, double upperBound) {
+        if(!(lowerBound <= upperBound)) {
+            throw new IllegalArgumentException("Invalid interval: [" + lowerBound + ", " + upperBound + "]");
+        }
+        return new Interval(lowerBound, upperBound, false);
+    }
+
+    /**
+     * Creates an interval which only contains the given value.
+     *
+     * @param value the value to represent
+     * @return a new interval containing only the given value or {@link #NAN} if the value is <tt>NaN</tt>
+     */
+    public static Interval of(double value) {
+        if(Double.isNaN(value)) {
+            return NAN;
+        }
+        return new Interval(value, value, false);
+    }
+
+    /**
+     * Returns the smallest number in this interval.
+     *
+     * @return the lower bound of this interval, which is <tt>+&#8734;</tt> if the interval contains no number
+     */
+    public double getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * Returns the largest number in this interval.
+     *
+     * @return the upper bound of this interval, which is <tt>-&#8734;</tt> if the interval contains no number
+     */
+    public double getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * Determines if this interval contains <tt>NaN</tt>.
+     *
+     * @return <tt>true</tt> if <tt>NaN</tt> is one of the values represented by this interval, <tt>false</tt>
+     * otherwise
+     */
+    public boolean mayBeNaN() {
+        return nan;
+    }
+
+    /**
+     * Determines if this interval contains no number, i.e. if it only contains <tt>NaN</tt>.
+     *
+     * @return <tt>true</tt> if the interval contains no number, <tt>false</tt> otherwise
+     */
+    public boolean isEmpty() {
+        return lowerBound > upperBound;
+    }
+
+    /**
+     * Determines if this interval contains exactly one number.
+     *
+     * @return <tt>true</tt> if the lower and the upper bound are equal, <tt>false</tt> otherwise
+     */
+    public boolean isPoint() {
+        return lowerBound == upperBound;
+    }
+
+    /**
+     * Determines if the given value is contained in this interval.
+     *
+     * @param value the value to check
+     * @return <tt>true</tt> if the value is within the bounds of the interval or if it is <tt>NaN</tt> and the
+     * interval may be <tt>NaN</tt>, <tt>false</tt> otherwise
+     */
+    public boolean contains(double value) {
+        if(Double.isNaN(value)) {
+            return nan;
+        }
+        return lowerBound <= value && value <= upperBound;
+    }
+
+    /**
+     * Returns the smallest interval which contains all values of this and the given interval.
+     *
+     * @param other the interval to merge with
+     * @return an interval containing all values of both intervals
+     */
+    public Interval union(Interval other) {
+        return new Interval(Math.min(lowerBound, other.lowerBound),
+                            Math.max(upperBound, other.upperBound),
+                            nan || other.nan);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(!(obj instanceof Interval)) {
+            return false;
+        }
+        Interval other = (Interval) obj;
+        if(isEmpty() || other.isEmpty()) {
+            return isEmpty() == other.isEmpty() && nan == other.nan;
+        }
+        return lowerBound == other.lowerBound && upperBound == other.upperBound && nan == other.nan;
+    }
+
+    @Override
+    public int hashCode() {
+        if(isEmpty()) {
+            return nan ? 1 : 0;
+        }
+        return (Double.hashCode(lowerBound + 0d) * 31 + Double.hashCode(upperBound + 0d)) * 31 + (nan ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        if(isEmpty()) {
+            return nan ? "NaN" : "[]";
+        }
+        return "[" + lowerBound + ", " + upperBound + "]" + (nan ? " or NaN" : "");
+    }
+}
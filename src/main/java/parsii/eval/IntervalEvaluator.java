@@ -0,0 +1,619 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes conservative bounds of the values an expression can take, if its variables are within given ranges.
+ * <p>
+ * This can be used to skip whole regions of an input space without sampling every point, e.g. to determine if an
+ * expression can ever be greater than <tt>0</tt> within a box:
+ * {@code
+ * Map<Variable, Interval> box = new HashMap<>();
+ * box.put(x, Interval.of(0, 16));
+ * box.put(y, Interval.of(64, 80));
+ * if (IntervalEvaluator.evaluate(density, box).getUpperBound() <= 0) {
+ *     // density is never positive within the box (it might be NaN though)
+ * }
+ * }
+ * <p>
+ * The computed interval is guaranteed to contain the result of {@link Expression#evaluate()} for every combination
+ * of variable values within the given intervals (and <tt>NaN</tt> if it may be <tt>NaN</tt>), but it may be wider
+ * than necessary: as each variable is treated independently, <tt>x - x</tt> yields <tt>[-2, 2]</tt> for
+ * <tt>x</tt> in <tt>[0, 2]</tt>. All operators, the functions defined in {@link Functions} and <tt>if</tt> are
+ * supported. Arithmetic operations are bounded exactly, as IEEE-754 rounding is monotonic. The functions computed
+ * by {@link FastMath} aren't guaranteed to be monotonic, therefore their bounds are widened by a few ulps. Calls of
+ * other functions may yield any value (see {@link Interval#ALL}).
+ */
+public class IntervalEvaluator {
+
+    /**
+     * Contains the number of ulps by which the bounds of results of math routines are widened.
+     */
+    private static final int ROUNDING_ULPS = 4;
+
+    /**
+     * Contains the relative tolerance used to determine if the extremum of a periodic function is within an interval.
+     */
+    private static final double PERIOD_TOLERANCE = 1e-9;
+
+    /**
+     * Contains the largest absolute argument of <tt>sin</tt>, <tt>cos</tt> and <tt>tan</tt> for which extrema are
+     * located. Beyond this, multiples of pi cannot be computed precisely enough.
+     */
+    private static final double MAX_PERIODIC_ARGUMENT = 1e9;
+
+    private static final Interval NOTHING =
+            new Interval(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, false);
+    private static final Interval BOOLEAN = new Interval(0, 1, false);
+    private static final Interval TRUE = new Interval(1, 1, false);
+    private static final Interval FALSE = new Interval(0, 0, false);
+    private static final Interval RANDOM = new Interval(0, 1, false);
+    private static final Interval LONG_RANGE = new Interval(Long.MIN_VALUE, Long.MAX_VALUE, false);
+    private static final Interval INT_RANGE = new Interval(Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+
+    private static final Set<Function> MONOTONIC_FUNCTIONS = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final Set<Function> INTEGER_FUNCTIONS = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final Set<Function> EXACT_FUNCTIONS = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static {
+        MONOTONIC_FUNCTIONS.add(Functions.SINH);
+        MONOTONIC_FUNCTIONS.add(Functions.TANH);
+        MONOTONIC_FUNCTIONS.add(Functions.ATAN);
+        MONOTONIC_FUNCTIONS.add(Functions.ROUND);
+        MONOTONIC_FUNCTIONS.add(Functions.FLOOR);
+        MONOTONIC_FUNCTIONS.add(Functions.CEIL);
+        MONOTONIC_FUNCTIONS.add(Functions.CBRT);
+        MONOTONIC_FUNCTIONS.add(Functions.EXP);
+        MONOTONIC_FUNCTIONS.add(Functions.SIGN);
+        MONOTONIC_FUNCTIONS.add(Functions.DEG);
+        MONOTONIC_FUNCTIONS.add(Functions.RAD);
+
+        INTEGER_FUNCTIONS.add(Functions.INT_AND);
+        INTEGER_FUNCTIONS.add(Functions.INT_OR);
+        INTEGER_FUNCTIONS.add(Functions.INT_XOR);
+        INTEGER_FUNCTIONS.add(Functions.INT_LEFT_SHIFT);
+        INTEGER_FUNCTIONS.add(Functions.INT_RIGHT_SHIFT);
+
+        EXACT_FUNCTIONS.add(Functions.ROUND);
+        EXACT_FUNCTIONS.add(Functions.FLOOR);
+        EXACT_FUNCTIONS.add(Functions.CEIL);
+        EXACT_FUNCTIONS.add(Functions.SIGN);
+        EXACT_FUNCTIONS.add(Functions.SQRT);
+        EXACT_FUNCTIONS.add(Functions.INT_NOT);
+    }
+
+    private IntervalEvaluator() {
+    }
+
+    /**
+     * Computes the range of values the given expression can take.
+     * <p>
+     * Variables which aren't contained in the given map are treated as constants with their current value.
+     *
+     * @param expression the expression to bound
+     * @param ranges     the ranges of the variables which vary
+     * @return an interval which contains every result of the expression for all values within the given ranges
+     */
+    public static Interval evaluate(Expression expression, Map<Variable, Interval> ranges) {
+        return evaluate(expression, ranges, new IdentityHashMap<>());
+    }
+
+    private static Interval evaluate(Expression expr,
+                                     Map<Variable, Interval> ranges,
+                                     Map<Temporary, Interval> temporaries) {
+        if(expr instanceof Constant) {
+            return Interval.of(expr.evaluate());
+        }
+        if(expr instanceof VariableReference) {
+            Variable variable = ((VariableReference) expr).getVariable();
+            Interval range = ranges.get(variable);
+            return range == null ? Interval.of(variable.getValue()) : range;
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            return evaluate(operation.getOp(),
+                            evaluate(operation.getLeft(), ranges, temporaries),
+                            evaluate(operation.getRight(), ranges, temporaries));
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            Interval[] parameters = new Interval[call.getParameters().size()];
+            for(int i = 0; i < parameters.length; i++) {
+                parameters[i] = evaluate(call.getParameters().get(i), ranges, temporaries);
+            }
+            return evaluate(call.getFunction(), parameters);
+        }
+        if(expr instanceof Temporary) {
+            Interval value = temporaries.get(expr);
+            if(value != null) {
+                return value;
+            }
+            return evaluate(((Temporary) expr).getExpression(), ranges, temporaries);
+        }
+        if(expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            for(Temporary temporary : let.getTemporaries()) {
+                temporaries.put(temporary, evaluate(temporary.getExpression(), ranges, temporaries));
+            }
+            return evaluate(let.getBody(), ranges, temporaries);
+        }
+        if(expr instanceof CompiledExpression) {
+            return evaluate(((CompiledExpression) expr).getSource(), ranges, temporaries);
+        }
+        return Interval.ALL;
+    }
+
+    private static Interval evaluate(BinaryOperation.Op op, Interval a, Interval b) {
+        switch(op) {
+            case ADD:
+                return add(a, b);
+            case SUBTRACT:
+                return subtract(a, b);
+            case MULTIPLY:
+                return multiply(a, b);
+            case DIVIDE:
+                return divide(a, b);
+            case MODULO:
+                return modulo(a, b);
+            case POWER:
+                return power(a, b, true);
+            case LT:
+                return lessThan(subtract(a, b), 0);
+            case LT_EQ:
+                return lessThan(subtract(a, b), BinaryOperation.EPSILON);
+            case GT:
+                return greaterThan(subtract(a, b), 0);
+            case GT_EQ:
+                return greaterThan(subtract(a, b), -BinaryOperation.EPSILON);
+            case EQ:
+                return equal(subtract(a, b));
+            case NEQ:
+                return notEqual(subtract(a, b));
+            case AND:
+                return truth(mayBeTrue(a) && mayBeTrue(b), mayBeFalse(a) || mayBeFalse(b));
+            case OR:
+                return truth(mayBeTrue(a) || mayBeTrue(b), mayBeFalse(a) && mayBeFalse(b));
+            default:
+                return Interval.ALL;
+        }
+    }
+
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private static Interval evaluate(Function function, Interval[] parameters) {
+        if(function == Functions.IF) {
+            return conditional(parameters[0], parameters[1], parameters[2]);
+        }
+        if(function instanceof UnaryFunction) {
+            Interval a = parameters[0];
+            if(a.isEmpty()) {
+                return Interval.NAN;
+            }
+            if(MONOTONIC_FUNCTIONS.contains(function)) {
+                return round(function, monotonic((UnaryFunction) function, a, a.mayBeNaN()));
+            }
+            if(function == Functions.ASIN) {
+                return round(function, restricted((UnaryFunction) function, a, -1, 1));
+            }
+            if(function == Functions.SQRT || function == Functions.LN || function == Functions.LOG) {
+                return round(function, restricted((UnaryFunction) function, a, 0, Double.POSITIVE_INFINITY));
+            }
+            if(function == Functions.ACOS) {
+                return round(function, restricted((UnaryFunction) function, a, -1, 1));
+            }
+            if(function == Functions.INT_NOT) {
+                return monotonic((UnaryFunction) function, a, a.mayBeNaN());
+            }
+            if(function == Functions.ABS) {
+                return abs(a);
+            }
+            if(function == Functions.COSH) {
+                return round(function, monotonic((UnaryFunction) function, abs(a), a.mayBeNaN()));
+            }
+            if(function == Functions.SIN) {
+                return periodic((UnaryFunction) function, a, Math.PI / 2);
+            }
+            if(function == Functions.COS) {
+                return periodic((UnaryFunction) function, a, 0);
+            }
+            if(function == Functions.TAN) {
+                return tan(a);
+            }
+            if(function == Functions.RND) {
+                return multiply(RANDOM, a);
+            }
+            if(function == Functions.DOUBLE_BITS_TO_LONG) {
+                return with(LONG_RANGE, a.mayBeNaN());
+            }
+            if(function == Functions.FLOAT_BITS_TO_INT) {
+                return with(INT_RANGE, a.mayBeNaN());
+            }
+            return Interval.ALL;
+        }
+        if(function instanceof BinaryFunction) {
+            Interval a = parameters[0];
+            Interval b = parameters[1];
+            if(a.isEmpty() || b.isEmpty()) {
+                return Interval.NAN;
+            }
+            if(function == Functions.MIN) {
+                return new Interval(Math.min(a.getLowerBound(), b.getLowerBound()),
+                                    Math.min(a.getUpperBound(), b.getUpperBound()),
+                                    a.mayBeNaN() || b.mayBeNaN());
+            }
+            if(function == Functions.MAX) {
+                return new Interval(Math.max(a.getLowerBound(), b.getLowerBound()),
+                                    Math.max(a.getUpperBound(), b.getUpperBound()),
+                                    a.mayBeNaN() || b.mayBeNaN());
+            }
+            if(function == Functions.POW) {
+                return power(a, b, false);
+            }
+            if(function == Functions.ATAN2) {
+                return atan2(a, b);
+            }
+            if(function == Functions.ROOT) {
+                Interval log = round(Functions.LN,
+                                     restricted((UnaryFunction) Functions.LN, a, 0, Double.POSITIVE_INFINITY));
+                return with(power(Interval.of(FastMath.E), divide(log, b), false), a.mayBeNaN() || b.mayBeNaN());
+            }
+            if(function == Functions.SIGMOID) {
+                Interval exponent = multiply(multiply(Interval.of(-1), a), b);
+                Interval exp = round(Functions.EXP,
+                                     monotonic((UnaryFunction) Functions.EXP, exponent, exponent.mayBeNaN()));
+                return with(divide(Interval.of(1), exp), a.mayBeNaN() || b.mayBeNaN());
+            }
+            if(INTEGER_FUNCTIONS.contains(function)) {
+                return with(LONG_RANGE, a.mayBeNaN() || b.mayBeNaN());
+            }
+        }
+        return Interval.ALL;
+    }
+
+    private static Interval add(Interval a, Interval b) {
+        if(a.isEmpty() || b.isEmpty()) {
+            return Interval.NAN;
+        }
+        return hull(a.mayBeNaN() || b.mayBeNaN(),
+                    a.getLowerBound() + b.getLowerBound(),
+                    a.getLowerBound() + b.getUpperBound(),
+                    a.getUpperBound() + b.getLowerBound(),
+                    a.getUpperBound() + b.getUpperBound());
+    }
+
+    private static Interval subtract(Interval a, Interval b) {
+        if(a.isEmpty() || b.isEmpty()) {
+            return Interval.NAN;
+        }
+        return hull(a.mayBeNaN() || b.mayBeNaN(),
+                    a.getLowerBound() - b.getLowerBound(),
+                    a.getLowerBound() - b.getUpperBound(),
+                    a.getUpperBound() - b.getLowerBound(),
+                    a.getUpperBound() - b.getUpperBound());
+    }
+
+    private static Interval multiply(Interval a, Interval b) {
+        if(a.isEmpty() || b.isEmpty()) {
+            return Interval.NAN;
+        }
+        // 0 * inf is NaN, but an interior zero isn't one of the corners
+        boolean nan = a.mayBeNaN()
+                      || b.mayBeNaN()
+                      || containsZero(a) && isUnbounded(b)
+                      || containsZero(b) && isUnbounded(a);
+        return hull(nan,
+                    product(a.getLowerBound(), b.getLowerBound()),
+                    product(a.getLowerBound(), b.getUpperBound()),
+                    product(a.getUpperBound(), b.getLowerBound()),
+                    product(a.getUpperBound(), b.getUpperBound()));
+    }
+
+    /*
+     * Multiplies two bounds. A zero bound multiplied by an infinite one yields NaN (which is covered by the NaN flag
+     * of multiply), but a finite value multiplied by zero yields zero. Larger values next to the zero bound are
+     * covered by the other corners, as their product with the infinite bound is infinite.
+     */
+    private static double product(double a, double b) {
+        double result = a * b;
+        return Double.isNaN(result) ? 0 : result;
+    }
+
+    private static Interval divide(Interval a, Interval b) {
+        if(a.isEmpty() || b.isEmpty()) {
+            return Interval.NAN;
+        }
+        boolean nan = a.mayBeNaN() || b.mayBeNaN() || isUnbounded(a) && isUnbounded(b);
+        if(containsZero(b)) {
+            // The sign of a zero divisor isn't known, therefore the result may be infinite in both directions
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, nan || containsZero(a));
+        }
+        return hull(nan,
+                    quotient(a.getLowerBound(), b.getLowerBound()),
+                    quotient(a.getLowerBound(), b.getUpperBound()),
+                    quotient(a.getUpperBound(), b.getLowerBound()),
+                    quotient(a.getUpperBound(), b.getUpperBound()));
+    }
+
+    /*
+     * Divides two bounds. An infinite bound divided by an infinite one yields NaN (which is covered by the NaN flag
+     * of divide), but a finite value divided by infinity yields zero.
+     */
+    private static double quotient(double a, double b) {
+        double result = a / b;
+        return Double.isNaN(result) ? 0 : result;
+    }
+
+    private static Interval modulo(Interval a, Interval b) {
+        if(a.isEmpty() || b.isEmpty()) {
+            return Interval.NAN;
+        }
+        // The result has the sign of the dividend and is smaller than the divisor in magnitude
+        double divisor = Math.max(Math.abs(b.getLowerBound()), Math.abs(b.getUpperBound()));
+        return new Interval(a.getLowerBound() >= 0 ? 0 : Math.max(a.getLowerBound(), -divisor),
+                            a.getUpperBound() <= 0 ? 0 : Math.min(a.getUpperBound(), divisor),
+                            a.mayBeNaN() || b.mayBeNaN() || containsZero(b) || isUnbounded(a));
+    }
+
+    /*
+     * Bounds FastMath.pow. The power operator yields 1 for NaN ^ 0, whereas the function yields NaN.
+     */
+    private static Interval power(Interval a, Interval b, boolean isOperator) {
+        if(b.isEmpty()) {
+            return Interval.NAN;
+        }
+        Interval result = a.isEmpty() ? NOTHING : round(Functions.POW, powerOfNumbers(a, b));
+        if(isOperator && a.mayBeNaN() && containsZero(b)) {
+            result = result.union(Interval.of(1));
+        }
+        boolean isZeroExponent = b.isPoint() && b.getLowerBound() == 0;
+        return with(result, a.mayBeNaN() && !(isOperator && isZeroExponent) || b.mayBeNaN());
+    }
+
+    private static Interval powerOfNumbers(Interval a, Interval b) {
+        // x ^ y is monotonic in x and in y for non-negative x, therefore the extrema of |x| ^ y are at the corners
+        Interval base = abs(a);
+        Interval magnitude = hull(base.contains(1) && isUnbounded(b),
+                                  powerOfBounds(base.getLowerBound(), b.getLowerBound()),
+                                  powerOfBounds(base.getLowerBound(), b.getUpperBound()),
+                                  powerOfBounds(base.getUpperBound(), b.getLowerBound()),
+                                  powerOfBounds(base.getUpperBound(), b.getUpperBound()));
+        if(a.getLowerBound() > 0 || a.getLowerBound() == 0 && b.getLowerBound() > -1) {
+            return magnitude;
+        }
+        double exponent = b.getLowerBound();
+        boolean isInteger = b.isPoint() && !Double.isInfinite(exponent) && Math.rint(exponent) == exponent;
+        if(isInteger && exponent % 2 == 0) {
+            return magnitude;
+        }
+        if(isInteger && a.getUpperBound() < 0) {
+            return new Interval(-magnitude.getUpperBound(), -magnitude.getLowerBound(), magnitude.mayBeNaN());
+        }
+        // A negative base yields NaN for non-integer exponents, -0 ^ -1 is -inf
+        return new Interval(-magnitude.getUpperBound(),
+                            magnitude.getUpperBound(),
+                            magnitude.mayBeNaN() || !isInteger && a.getLowerBound() < 0);
+    }
+
+    /*
+     * Raises a non-negative bound to the power of another. 1 ^ inf yields NaN (which is covered by the NaN flag of
+     * powerOfNumbers), but 1 raised to any finite power yields 1. Values of the base next to 1 are covered by the
+     * other corners, as their powers approach 0 or infinity.
+     */
+    private static double powerOfBounds(double a, double b) {
+        double result = FastMath.pow(a, b);
+        return Double.isNaN(result) ? 1 : result;
+    }
+
+    private static Interval abs(Interval a) {
+        if(a.isEmpty()) {
+            return a;
+        }
+        double lower = Math.abs(a.getLowerBound());
+        double upper = Math.abs(a.getUpperBound());
+        if(containsZero(a)) {
+            return new Interval(0, Math.max(lower, upper), a.mayBeNaN());
+        }
+        return new Interval(Math.min(lower, upper), Math.max(lower, upper), a.mayBeNaN());
+    }
+
+    private static Interval atan2(Interval y, Interval x) {
+        boolean nan = y.mayBeNaN() || x.mayBeNaN();
+        if(x.getLowerBound() > 0 || y.getLowerBound() > 0 || y.getUpperBound() < 0) {
+            // Away from the branch cut along the negative x axis, atan2 is continuous and monotonic in x and y
+            return round(Functions.ATAN2,
+                         hull(nan,
+                              FastMath.atan2(y.getLowerBound(), x.getLowerBound()),
+                              FastMath.atan2(y.getLowerBound(), x.getUpperBound()),
+                              FastMath.atan2(y.getUpperBound(), x.getLowerBound()),
+                              FastMath.atan2(y.getUpperBound(), x.getUpperBound())));
+        }
+        return round(Functions.ATAN2, new Interval(-Math.PI, Math.PI, nan));
+    }
+
+    /*
+     * Bounds sin or cos, whose maxima are at phase + 2k * pi and minima at phase + (2k + 1) * pi.
+     */
+    private static Interval periodic(UnaryFunction function, Interval a, double phase) {
+        boolean nan = a.mayBeNaN() || isUnbounded(a);
+        if(isUnbounded(a)
+           || a.getUpperBound() - a.getLowerBound() >= 2 * Math.PI
+           || Math.max(-a.getLowerBound(), a.getUpperBound()) > MAX_PERIODIC_ARGUMENT) {
+            return round(function, new Interval(-1, 1, nan));
+        }
+        double first = function.eval(a.getLowerBound());
+        double last = function.eval(a.getUpperBound());
+        double lower = Math.min(first, last);
+        double upper = Math.max(first, last);
+        for(long k = (long) Math.floor((a.getLowerBound() - phase) / Math.PI) - 1;
+             phase + k * Math.PI <= a.getUpperBound() + tolerance(a.getUpperBound());
+             k++) {
+            if(phase + k * Math.PI >= a.getLowerBound() - tolerance(a.getLowerBound())) {
+                if((k & 1) == 0) {
+                    upper = 1;
+                } else {
+                    lower = -1;
+                }
+            }
+        }
+        return round(function, new Interval(lower, upper, nan));
+    }
+
+    private static Interval tan(Interval a) {
+        boolean nan = a.mayBeNaN() || isUnbounded(a);
+        if(isUnbounded(a)
+           || a.getUpperBound() - a.getLowerBound() >= Math.PI
+           || Math.max(-a.getLowerBound(), a.getUpperBound()) > MAX_PERIODIC_ARGUMENT) {
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, nan);
+        }
+        double pole = Math.PI / 2 + Math.ceil((a.getLowerBound() - Math.PI / 2) / Math.PI) * Math.PI;
+        if(pole - tolerance(pole) <= a.getUpperBound() || pole - Math.PI + tolerance(pole) >= a.getLowerBound()) {
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, nan);
+        }
+        return round(Functions.TAN, monotonic((UnaryFunction) Functions.TAN, a, nan));
+    }
+
+    private static double tolerance(double x) {
+        return PERIOD_TOLERANCE * (1 + Math.abs(x));
+    }
+
+    private static Interval monotonic(UnaryFunction function, Interval a, boolean nan) {
+        if(a.isEmpty()) {
+            return Interval.NAN;
+        }
+        double lower = function.eval(a.getLowerBound());
+        double upper = function.eval(a.getUpperBound());
+        return new Interval(Math.min(lower, upper), Math.max(lower, upper), nan);
+    }
+
+    /*
+     * Bounds a monotonic function which is only defined within the given domain and yields NaN outside of it.
+     */
+    private static Interval restricted(UnaryFunction function, Interval a, double min, double max) {
+        boolean nan = a.mayBeNaN() || a.getLowerBound() < min || a.getUpperBound() > max;
+        double lower = Math.max(a.getLowerBound(), min);
+        double upper = Math.min(a.getUpperBound(), max);
+        if(lower > upper) {
+            return Interval.NAN;
+        }
+        return monotonic(function, new Interval(lower, upper, false), nan);
+    }
+
+    private static Interval conditional(Interval condition, Interval then, Interval otherwise) {
+        // if returns a NaN condition as its result
+        Interval result = condition.mayBeNaN() ? Interval.NAN : NOTHING;
+        if(mayBeTrue(condition)) {
+            result = result.union(then);
+        }
+        if(!condition.isEmpty() && containsZero(condition)) {
+            result = result.union(otherwise);
+        }
+        return result;
+    }
+
+    private static Interval lessThan(Interval difference, double threshold) {
+        return truth(!difference.isEmpty() && difference.getLowerBound() < threshold,
+                     difference.mayBeNaN() || difference.getUpperBound() >= threshold);
+    }
+
+    private static Interval greaterThan(Interval difference, double threshold) {
+        return truth(!difference.isEmpty() && difference.getUpperBound() > threshold,
+                     difference.mayBeNaN() || difference.getLowerBound() <= threshold);
+    }
+
+    private static Interval equal(Interval difference) {
+        double epsilon = BinaryOperation.EPSILON;
+        return truth(difference.getLowerBound() < epsilon && difference.getUpperBound() > -epsilon,
+                     difference.mayBeNaN()
+                     || !difference.isEmpty()
+                        && (difference.getLowerBound() <= -epsilon || difference.getUpperBound() >= epsilon));
+    }
+
+    private static Interval notEqual(Interval difference) {
+        double epsilon = BinaryOperation.EPSILON;
+        return truth(!difference.isEmpty()
+                     && (difference.getLowerBound() < -epsilon || difference.getUpperBound() > epsilon),
+                     difference.mayBeNaN()
+                     || difference.getLowerBound() <= epsilon && difference.getUpperBound() >= -epsilon);
+    }
+
+    private static Interval truth(boolean mayBeTrue, boolean mayBeFalse) {
+        if(mayBeTrue) {
+            return mayBeFalse ? BOOLEAN : TRUE;
+        }
+        return FALSE;
+    }
+
+    /*
+     * Mirrors BinaryOperation.isTrue: a value is true if it is neither zero nor NaN.
+     */
+    private static boolean mayBeTrue(Interval a) {
+        return !a.isEmpty() && (a.getLowerBound() < 0 || a.getUpperBound() > 0);
+    }
+
+    private static boolean mayBeFalse(Interval a) {
+        return a.mayBeNaN() || containsZero(a);
+    }
+
+    private static boolean containsZero(Interval a) {
+        return a.getLowerBound() <= 0 && a.getUpperBound() >= 0;
+    }
+
+    private static boolean isUnbounded(Interval a) {
+        return a.getLowerBound() == Double.NEGATIVE_INFINITY || a.getUpperBound() == Double.POSITIVE_INFINITY;
+    }
+
+    /*
+     * Returns the smallest interval containing all given values, which may be NaN.
+     */
+    private static Interval hull(boolean nan, double... values) {
+        double lower = Double.POSITIVE_INFINITY;
+        double upper = Double.NEGATIVE_INFINITY;
+        for(double value : values) {
+            if(Double.isNaN(value)) {
+                nan = true;
+            } else {
+                lower = Math.min(lower, value);
+                upper = Math.max(upper, value);
+            }
+        }
+        return new Interval(lower, upper, nan);
+    }
+
+    private static Interval with(Interval a, boolean nan) {
+        if(!nan || a.mayBeNaN()) {
+            return a;
+        }
+        return new Interval(a.getLowerBound(), a.getUpperBound(), true);
+    }
+
+    /*
+     * Widens the bounds computed by a math routine, which isn't guaranteed to be monotonic.
+     */
+    private static Interval round(Function function, Interval a) {
+        if(a.isEmpty() || EXACT_FUNCTIONS.contains(function)) {
+            return a;
+        }
+        return new Interval(widen(a.getLowerBound(), -ROUNDING_ULPS),
+                            widen(a.getUpperBound(), ROUNDING_ULPS),
+                            a.mayBeNaN());
+    }
+
+    private static double widen(double bound, int ulps) {
+        if(Double.isInfinite(bound)) {
+            return bound;
+        }
+        return bound + ulps * Math.ulp(bound);
+    }
+}
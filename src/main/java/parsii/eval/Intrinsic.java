@@ -0,0 +1,185 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Describes how a built-in function of {@link Functions} maps onto a static method of {@link FastMath}.
+ * <p>
+ * Evaluation backends which bypass {@link Function#eval(java.util.List)} use this table to invoke the underlying
+ * math routine directly. As {@link UnaryFunction} and {@link BinaryFunction} return <tt>NaN</tt> as soon as an
+ * argument is <tt>NaN</tt>, each intrinsic also reports whether the math routine already behaves that way, so that
+ * backends only need to emit an explicit check where it makes a difference.
+ */
+final class Intrinsic {
+
+    private static final String FAST_MATH = "net/jafama/FastMath";
+    private static final Map<Function, Intrinsic> INTRINSICS = new IdentityHashMap<>();
+
+    static {
+        unary(Functions.SIN, "sin", FastMath::sin);
+        unary(Functions.SINH, "sinh", FastMath::sinh);
+        unary(Functions.COS, "cos", FastMath::cos);
+        unary(Functions.COSH, "cosh", FastMath::cosh);
+        unary(Functions.TAN, "tan", FastMath::tan);
+        unary(Functions.TANH, "tanh", FastMath::tanh);
+        unary(Functions.ABS, "abs", FastMath::abs);
+        unary(Functions.ASIN, "asin", FastMath::asin);
+        unary(Functions.ACOS, "acos", FastMath::acos);
+        unary(Functions.ATAN, "atan", FastMath::atan);
+        unary(Functions.FLOOR, "floor", FastMath::floor);
+        unary(Functions.CEIL, "ceil", FastMath::ceil);
+        unary(Functions.SQRT, "sqrt", FastMath::sqrt);
+        unary(Functions.CBRT, "cbrt", FastMath::cbrt);
+        unary(Functions.EXP, "exp", FastMath::exp);
+        unary(Functions.LN, "log", FastMath::log);
+        unary(Functions.LOG, "log10", FastMath::log10);
+        unary(Functions.SIGN, "signum", FastMath::signum);
+        unary(Functions.DEG, "toDegrees", FastMath::toDegrees);
+        unary(Functions.RAD, "toRadians", FastMath::toRadians);
+        // FastMath.round(NaN) yields 0, therefore the NaN check of UnaryFunction has to be retained
+        register(new Intrinsic(Functions.ROUND, "round", "(D)J", 1, false, a -> FastMath.round(a), null));
+        binary(Functions.ATAN2, "atan2", true, FastMath::atan2);
+        binary(Functions.MIN, "min", true, FastMath::min);
+        binary(Functions.MAX, "max", true, FastMath::max);
+        // FastMath.pow(NaN, 0) yields 1, therefore the NaN checks of BinaryFunction have to be retained
+        binary(Functions.POW, "pow", false, FastMath::pow);
+    }
+
+    private final Function function;
+    private final String methodName;
+    private final String descriptor;
+    private final int numberOfArguments;
+    private final boolean nanPropagating;
+    private final DoubleUnaryOperator unaryOperator;
+    private final DoubleBinaryOperator binaryOperator;
+
+    @SuppressWarnings("squid:S00107")
+    private Intrinsic(Function function,
+                      String methodName,
+                      String descriptor,
+                      int numberOfArguments,
+                      boolean nanPropagating,
+                      DoubleUnaryOperator unaryOperator,
+                      DoubleBinaryOperator binaryOperator) {
+        this.function = function;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.numberOfArguments = numberOfArguments;
+        this.nanPropagating = nanPropagating;
+        this.unaryOperator = unaryOperator;
+        this.binaryOperator = binaryOperator;
+    }
+
+    private static void unary(Function function, String methodName, DoubleUnaryOperator operator) {
+        register(new Intrinsic(function, methodName, "(D)D", 1, true, operator, null));
+    }
+
+    private static void binary(Function function,
+                               String methodName,
+                               boolean nanPropagating,
+                               DoubleBinaryOperator operator) {
+        register(new Intrinsic(function, methodName, "(DD)D", 2, nanPropagating, null, operator));
+    }
+
+    private static void register(Intrinsic intrinsic) {
+        INTRINSICS.put(intrinsic.function, intrinsic);
+    }
+
+    /**
+     * Determines the intrinsic for the given function.
+     *
+     * @param function the function to lookup
+     * @return the intrinsic which implements the given function or <tt>null</tt> if the function isn't a built-in
+     * which maps onto a static method
+     */
+    static Intrinsic of(Function function) {
+        return INTRINSICS.get(function);
+    }
+
+    /**
+     * Returns the function implemented by this intrinsic.
+     *
+     * @return the built-in function
+     */
+    Function getFunction() {
+        return function;
+    }
+
+    /**
+     * Returns the internal name of the class declaring the static method.
+     *
+     * @return the owner of the static method
+     */
+    String getOwner() {
+        return FAST_MATH;
+    }
+
+    /**
+     * Returns the name of the static method.
+     *
+     * @return the name of the static method
+     */
+    String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * Returns the descriptor of the static method.
+     * <p>
+     * Note that some methods (e.g. <tt>round</tt>) return a <tt>long</tt> which has to be converted to a double.
+     *
+     * @return the method descriptor of the static method
+     */
+    String getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Returns the number of arguments of the function.
+     *
+     * @return the number of arguments of the function
+     */
+    int getNumberOfArguments() {
+        return numberOfArguments;
+    }
+
+    /**
+     * Determines if the static method returns <tt>NaN</tt> for every <tt>NaN</tt> argument on its own.
+     *
+     * @return <tt>true</tt> if no explicit <tt>NaN</tt> check is required, <tt>false</tt> otherwise
+     */
+    boolean isNanPropagating() {
+        return nanPropagating;
+    }
+
+    /**
+     * Returns the static method of a function with one argument as operator.
+     *
+     * @return the operator which invokes the static method or <tt>null</tt> if the function has two arguments
+     */
+    DoubleUnaryOperator getUnaryOperator() {
+        return unaryOperator;
+    }
+
+    /**
+     * Returns the static method of a function with two arguments as operator.
+     *
+     * @return the operator which invokes the static method or <tt>null</tt> if the function has one argument
+     */
+    DoubleBinaryOperator getBinaryOperator() {
+        return binaryOperator;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a list of temporaries once and then evaluates a body which refers to them.
+ * <p>
+ * The temporaries are stored in a frame, after the slots of all variables referenced by the expression. A frame
+ * given to {@link #evaluate(double[])} is therefore copied into a larger one first, the given frame isn't modified.
+ * {@link #evaluate()} creates a frame from the current values of the variables. As the temporaries only live in the
+ * frame, a let expression can be evaluated by several threads at once, just like any other expression.
+ * <p>
+ * Let expressions are created by {@link Optimizer#eliminateCommonSubexpressions(Expression)}.
+ */
+public class LetExpression implements Expression {
+
+    private final List<Temporary> temporaries;
+    private final Expression body;
+    private final int frameSize;
+    final Variable[] variables;
+    final int[] variableSlots;
+
+    /**
+     * Creates a new let expression.
+     *
+     * @param temporaries the temporaries to compute, a temporary may only refer to temporaries listed before itself
+     * @param body        the expression to compute the result
+     * @param frameSize   the size of the frame, which has to contain the slots of all variables and temporaries
+     */
+    public LetExpression(List<Temporary> temporaries, Expression body, int frameSize) {
+        this.temporaries = Collections.unmodifiableList(new ArrayList<>(temporaries));
+        this.body = body;
+        this.frameSize = frameSize;
+
+        Map<Variable, Integer> slots = new IdentityHashMap<>();
+        for(Temporary temporary : temporaries) {
+            collectVariables(temporary.getExpression(), slots);
+        }
+        collectVariables(body, slots);
+        this.variables = slots.keySet().toArray(new Variable[0]);
+        this.variableSlots = new int[variables.length];
+        for(int i = 0; i < variables.length; i++) {
+            variableSlots[i] = slots.get(variables[i]);
+        }
+    }
+
+    private static void collectVariables(Expression expr, Map<Variable, Integer> slots) {
+        if(expr instanceof VariableReference && ((VariableReference) expr).getSlot() >= 0) {
+            slots.put(((VariableReference) expr).getVariable(), ((VariableReference) expr).getSlot());
+        } else if(expr instanceof BinaryOperation) {
+            collectVariables(((BinaryOperation) expr).getLeft(), slots);
+            collectVariables(((BinaryOperation) expr).getRight(), slots);
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                collectVariables(parameter, slots);
+            }
+        } else if(expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            for(int i = 0; i < let.variables.length; i++) {
+                slots.put(let.variables[i], let.variableSlots[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the temporaries in the order in which they are computed.
+     *
+     * @return the temporaries of this expression
+     */
+    public List<Temporary> getTemporaries() {
+        return temporaries;
+    }
+
+    /**
+     * Returns the expression which computes the result.
+     *
+     * @return the body of this expression
+     */
+    public Expression getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the size of the frames used to evaluate this expression.
+     *
+     * @return the number of slots required for all variables and temporaries
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    @Override
+    public double evaluate() {
+        double[] frame = new double[frameSize];
+        for(int i = 0; i < variables.length; i++) {
+            frame[variableSlots[i]] = variables[i].getValue();
+        }
+        return run(frame);
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return run(Arrays.copyOf(frame, frameSize));
+    }
+
+    private double run(double[] frame) {
+        for(Temporary temporary : temporaries) {
+            frame[temporary.getSlot()] = temporary.getExpression().evaluate(frame);
+        }
+        return body.evaluate(frame);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("let");
+        for(Temporary temporary : temporaries) {
+            sb.append(sb.length() > 3 ? ", " : " ").append(temporary).append(" = ").append(temporary.getExpression());
+        }
+        return sb.append(" in ").append(body).toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Caches the value of an expression until one of the variables it depends on is modified.
+ * <p>
+ * When evaluated via {@link #evaluate()}, the versions of all variables referenced by the expression (see
+ * {@link Variable#getVersion()}) are compared against the ones seen by the last evaluation. If none was modified, the
+ * cached value is returned without evaluating the expression. This pays off for expensive subtrees which only depend
+ * on variables that rarely change, e.g. subtrees which only depend on <tt>x</tt> and <tt>z</tt> while <tt>y</tt> is
+ * changed for each evaluation. {@link Optimizer#memoize(Expression)} wraps all such subtrees of an expression.
+ * <p>
+ * Only pure expressions (see {@link Optimizer}) are cached, other expressions are evaluated each time. Evaluating a
+ * memoized expression against a frame (see {@link #evaluate(double[])}) never uses the cache, as the values are
+ * taken from the frame. As the cache is updated by {@link #evaluate()}, it must not be called by several threads at
+ * once (which would also require the variables to be shared between those threads).
+ */
+public class MemoizedExpression implements Expression {
+
+    private final Expression expression;
+    private final Variable[] variables;
+    private final long[] versions;
+    private final boolean cacheable;
+    private boolean valid;
+    private double value;
+
+    /**
+     * Creates a new memoized expression.
+     *
+     * @param expression the expression whose value should be cached
+     */
+    public MemoizedExpression(Expression expression) {
+        this.expression = expression;
+        this.cacheable = Optimizer.isPure(expression);
+        Set<Variable> dependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+        if(cacheable) {
+            collectVariables(expression, dependencies);
+        }
+        this.variables = dependencies.toArray(new Variable[0]);
+        this.versions = new long[variables.length];
+    }
+
+    private static void collectVariables(Expression expr, Set<Variable> variables) {
+        if(expr instanceof VariableReference) {
+            Variable variable = ((VariableReference) expr).getVariable();
+            if(!variable.isConstant()) {
+                variables.add(variable);
+            }
+        } else if(expr instanceof BinaryOperation) {
+            collectVariables(((BinaryOperation) expr).getLeft(), variables);
+            collectVariables(((BinaryOperation) expr).getRight(), variables);
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                collectVariables(parameter, variables);
+            }
+        } else if(expr instanceof MemoizedExpression) {
+            Collections.addAll(variables, ((MemoizedExpression) expr).variables);
+        }
+    }
+
+    /**
+     * Returns the expression whose value is cached.
+     *
+     * @return the wrapped expression
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Determines if the value of the expression is cached at all.
+     *
+     * @return <tt>true</tt> if the expression is pure and therefore cached, <tt>false</tt> otherwise
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    @Override
+    public double evaluate() {
+        if(!cacheable) {
+            return expression.evaluate();
+        }
+        if(valid && isUpToDate()) {
+            return value;
+        }
+        for(int i = 0; i < variables.length; i++) {
+            versions[i] = variables[i].getVersion();
+        }
+        value = expression.evaluate();
+        valid = true;
+        return value;
+    }
+
+    private boolean isUpToDate() {
+        for(int i = 0; i < variables.length; i++) {
+            if(variables[i].getVersion() != versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return expression.evaluate(frame);
+    }
+
+    @Override
+    public boolean isConstant() {
+        return expression.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return "memo(" + expression + ")";
+    }
+}
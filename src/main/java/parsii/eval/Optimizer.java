@@ -0,0 +1,956 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites an expression tree into an equivalent one which is cheaper to evaluate.
+ * <p>
+ * Next to folding constants like {@link Expression#simplify()}, the optimizer applies algebraic identities (like
+ * <tt>x * 1 = x</tt>), replaces powers with small integer or half-integer exponents by multiplications and
+ * <tt>sqrt</tt>, moves the cheaper of two pure operands of <tt>&amp;&amp;</tt> and <tt>||</tt> to the left, drops the
+ * dead branch of an <tt>if</tt> with a constant condition and hoists pure operands which both branches have in
+ * common. An expression is pure if it only calls natural functions (see {@link Function#isNaturalFunction()}) and
+ * <tt>if</tt>. Rules which aren't <tt>NaN</tt>-safe (like <tt>x * 0 = 0</tt> or <tt>x - x = 0</tt>) are not applied.
+ * Separate passes eliminate common subexpressions ({@link #eliminateCommonSubexpressions(Expression)}), cache
+ * expensive subtrees ({@link #memoize(Expression)}) or replace variables by known values
+ * ({@link #specialize(Expression, Map)}).
+ * <p>
+ * The result computes the same values as the given expression, up to rounding, with two exceptions:
+ * <ul>
+ * <li>The sign of a zero result may change: as negation is represented as <tt>0 - x</tt>, dropping <tt>+ 0</tt> or
+ * removing or moving a negation may turn <tt>-0</tt> into <tt>0</tt> or vice versa (e.g. <tt>--x</tt> is <tt>0</tt>
+ * for <tt>x = -0</tt>, but the rewritten <tt>x</tt> is <tt>-0</tt>). This is only observable by dividing by the
+ * result, raising it to a negative power, passing it as first argument of <tt>atan2</tt> or by
+ * <tt>double_to_long_bits</tt> and <tt>float_bits_to_int</tt>.</li>
+ * <li>A half-integer power yields <tt>NaN</tt> instead of <tt>&#8734;</tt> or <tt>0</tt> for <tt>x = -&#8734;</tt>
+ * and the sign of a zero or infinite result may change for <tt>x = -0</tt>, as <tt>sqrt(-0)</tt> is <tt>-0</tt>
+ * (e.g. <tt>x ^ -0.5</tt> yields <tt>-&#8734;</tt> instead of <tt>&#8734;</tt>).</li>
+ * </ul>
+ * <p>
+ * The given expression is not modified, unchanged subtrees are shared between the given and the returned
+ * expression:
+ * {@code
+ * Expression expr = Optimizer.optimize(new Parser().parse("x * 1 + y / 4", scope));
+ * }
+ */
+public class Optimizer {
+
+    /**
+     * Contains the maximal number of nodes which may be duplicated by strength reducing a power.
+     */
+    public static final int MAX_DUPLICATED_NODES = 8;
+
+    /**
+     * Contains the largest absolute exponent which is strength reduced.
+     */
+    private static final int MAX_REDUCED_EXPONENT = 16;
+
+    /**
+     * Contains the largest absolute negative exponent which is strength reduced, as each factor requires a division.
+     */
+    private static final int MAX_REDUCED_NEGATIVE_EXPONENT = 4;
+
+    /**
+     * Contains the estimated cost of a call to a function which isn't known to the optimizer.
+     */
+    private static final int UNKNOWN_FUNCTION_COST = 50;
+
+    /**
+     * Contains the estimated cost of the built-in functions which are mapped onto a few machine instructions.
+     */
+    private static final int CHEAP_FUNCTION_COST = 2;
+
+    /**
+     * Contains the estimated cost of the built-in functions which are computed by a math routine.
+     */
+    private static final int MATH_FUNCTION_COST = 20;
+
+    /**
+     * Contains the minimal estimated cost of a subtree, which is worth being computed only once.
+     */
+    private static final int MIN_SHARED_COST = 3;
+
+    /**
+     * Contains the minimal estimated cost of a subtree, which is worth being memoized.
+     */
+    private static final int MIN_MEMOIZED_COST = MATH_FUNCTION_COST;
+
+    private static final Set<Function> CHEAP_FUNCTIONS = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static {
+        CHEAP_FUNCTIONS.add(Functions.ABS);
+        CHEAP_FUNCTIONS.add(Functions.SIGN);
+        CHEAP_FUNCTIONS.add(Functions.FLOOR);
+        CHEAP_FUNCTIONS.add(Functions.CEIL);
+        CHEAP_FUNCTIONS.add(Functions.ROUND);
+        CHEAP_FUNCTIONS.add(Functions.MIN);
+        CHEAP_FUNCTIONS.add(Functions.MAX);
+        CHEAP_FUNCTIONS.add(Functions.SQRT);
+        CHEAP_FUNCTIONS.add(Functions.DEG);
+        CHEAP_FUNCTIONS.add(Functions.RAD);
+    }
+
+    /**
+     * Determines if the rewrites which might change a NaN, infinite or zero result are skipped.
+     */
+    private final boolean keepSpecialValues;
+
+    private Optimizer(boolean keepSpecialValues) {
+        this.keepSpecialValues = keepSpecialValues;
+    }
+
+    /**
+     * Optimizes the given expression.
+     *
+     * @param expression the expression to optimize
+     * @return an expression which computes the same results (as described above) but is cheaper to evaluate
+     */
+    public static Expression optimize(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            return optimize(((CompiledExpression) expression).getSource());
+        }
+        return new Optimizer(false).rewrite(expression);
+    }
+
+    /*
+     * Optimizes the given expression like optimize, but skips the rewrites which might turn a special value into
+     * another one: the strength reduction of half-integer powers (which differs at -Infinity and -0) and the rewrites
+     * which might change the sign of a zero (dropping + 0 and moving negations). The result might still differ by
+     * rounding.
+     */
+    static Expression optimizeKeepingSpecialValues(Expression expression) {
+        return new Optimizer(true).rewrite(expression);
+    }
+
+    /**
+     * Specializes the given expression for known values of some of its variables.
+     * <p>
+     * Each reference to one of the given variables is replaced by a constant with the given value and the result is
+     * optimized (see {@link #optimize(Expression)}), which folds all subtrees that only depend on the given variables
+     * and drops branches of <tt>if</tt> whose condition became constant. If the given expression is a
+     * {@link LetExpression}, its temporaries are inlined first and common subexpressions are eliminated again
+     * afterwards, as the shared subtrees may have changed. References to other variables are kept, so that the
+     * result can still be evaluated against a frame created by the scope of the given expression.
+     * <p>
+     * The given expression and its variables are not modified:
+     * {@code
+     * Expression perVoxel = Optimizer.specialize(expr, Collections.singletonMap(seed, 42d));
+     * }
+     *
+     * @param expression the expression to specialize
+     * @param values     the values of the variables to treat as constants
+     * @return an optimized expression which computes the same results as the given one, as long as the given
+     * variables have the given values
+     */
+    public static Expression specialize(Expression expression, Map<Variable, Double> values) {
+        if(expression instanceof CompiledExpression) {
+            return specialize(((CompiledExpression) expression).getSource(), values);
+        }
+        Expression result = new Optimizer(false).rewrite(substitute(expression, values, new IdentityHashMap<>()));
+        if(expression instanceof LetExpression) {
+            return eliminateCommonSubexpressions(result);
+        }
+        return result;
+    }
+
+    /**
+     * Caches the values of expensive subtrees until a variable they depend on is modified.
+     * <p>
+     * Each pure subtree whose estimated cost (see {@link #estimateCost(Expression)}) is at least the one of a call to
+     * a math routine, and which depends on fewer variables than its parent, is wrapped in a
+     * {@link MemoizedExpression}. Therefore, if only some variables change between two evaluations, the subtrees
+     * which don't depend on them aren't computed again. The whole expression is memoized as well, if it is expensive
+     * enough. As checking the versions of the variables isn't free, this only pays off for expensive expressions
+     * whose variables don't all change between consecutive evaluations.
+     * <p>
+     * Memoization should be the last step, as memoized expressions are neither rewritten by
+     * {@link #optimize(Expression)} nor shared by {@link #eliminateCommonSubexpressions(Expression)}. The given
+     * expression is not modified.
+     *
+     * @param expression the expression to memoize
+     * @return an expression which caches the values of expensive subtrees
+     */
+    public static Expression memoize(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            return memoize(((CompiledExpression) expression).getSource());
+        }
+        Set<Variable> variables = freeVariables(expression);
+        Expression result = memoizeChildren(expression, variables);
+        if(variables != null && isPure(expression) && estimateCost(expression) >= MIN_MEMOIZED_COST) {
+            return new MemoizedExpression(result);
+        }
+        return result;
+    }
+
+    private static Expression memoizeChildren(Expression expr, Set<Variable> variables) {
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression left = memoize(operation.getLeft(), variables);
+            Expression right = memoize(operation.getRight(), variables);
+            if(left == operation.getLeft() && right == operation.getRight()) {
+                return operation;
+            }
+            return BinaryOperation.create(operation.getOp(), left, right);
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            Expression[] parameters = new Expression[call.getParameters().size()];
+            boolean changed = false;
+            for(int i = 0; i < parameters.length; i++) {
+                parameters[i] = memoize(call.getParameters().get(i), variables);
+                changed |= parameters[i] != call.getParameters().get(i);
+            }
+            return changed ? call(call.getFunction(), parameters) : call;
+        }
+        return expr;
+    }
+
+    /*
+     * Memoizes the given child of a node which depends on the given variables (or unknown ones if null).
+     */
+    private static Expression memoize(Expression expr, Set<Variable> parentVariables) {
+        Set<Variable> variables = freeVariables(expr);
+        Expression result = memoizeChildren(expr, variables);
+        if(variables != null
+           && (parentVariables == null || variables.size() < parentVariables.size())
+           && isPure(expr)
+           && estimateCost(expr) >= MIN_MEMOIZED_COST) {
+            return new MemoizedExpression(result);
+        }
+        return result;
+    }
+
+    /*
+     * Returns the non-constant variables referenced by the given expression or null if it contains unknown nodes.
+     */
+    private static Set<Variable> freeVariables(Expression expr) {
+        Set<Variable> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        return collectVariables(expr, result) ? result : null;
+    }
+
+    private static boolean collectVariables(Expression expr, Set<Variable> variables) {
+        if(expr instanceof Constant) {
+            return true;
+        }
+        if(expr instanceof VariableReference) {
+            Variable variable = ((VariableReference) expr).getVariable();
+            if(!variable.isConstant()) {
+                variables.add(variable);
+            }
+            return true;
+        }
+        if(expr instanceof BinaryOperation) {
+            return collectVariables(((BinaryOperation) expr).getLeft(), variables)
+                   && collectVariables(((BinaryOperation) expr).getRight(), variables);
+        }
+        if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                if(!collectVariables(parameter, variables)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Replaces all temporaries of let expressions by their expression.
+     */
+    static Expression inline(Expression expression) {
+        return substitute(expression, Collections.emptyMap(), new IdentityHashMap<>());
+    }
+
+    /*
+     * Replaces references to the given variables by constants and temporaries by their (substituted) expression.
+     */
+    private static Expression substitute(Expression expr,
+                                         Map<Variable, Double> values,
+                                         Map<Temporary, Expression> temporaries) {
+        if(expr instanceof VariableReference) {
+            Double value = values.get(((VariableReference) expr).getVariable());
+            return value == null ? expr : new Constant(value);
+        }
+        if(expr instanceof Temporary) {
+            Expression inlined = temporaries.get(expr);
+            return inlined == null ? expr : inlined;
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression left = substitute(operation.getLeft(), values, temporaries);
+            Expression right = substitute(operation.getRight(), values, temporaries);
+            if(left == operation.getLeft() && right == operation.getRight()) {
+                return operation;
+            }
+            return BinaryOperation.create(operation.getOp(), left, right);
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            Expression[] parameters = new Expression[call.getParameters().size()];
+            boolean changed = false;
+            for(int i = 0; i < parameters.length; i++) {
+                parameters[i] = substitute(call.getParameters().get(i), values, temporaries);
+                changed |= parameters[i] != call.getParameters().get(i);
+            }
+            return changed ? call(call.getFunction(), parameters).simplify() : call;
+        }
+        if(expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            for(Temporary temporary : let.getTemporaries()) {
+                temporaries.put(temporary, substitute(temporary.getExpression(), values, temporaries));
+            }
+            return substitute(let.getBody(), values, temporaries);
+        }
+        return expr;
+    }
+
+    /**
+     * Computes each subtree which occurs several times in the given expression only once per evaluation.
+     * <p>
+     * Equal subtrees (see {@link Expression}) are replaced by a {@link Temporary}, which is computed by the returned
+     * {@link LetExpression} before the remaining expression is evaluated. As the value of a temporary is computed
+     * eagerly, a subtree is only shared if it is pure (see above), not trivial (e.g. <tt>-x</tt> or a variable)
+     * and at least one occurrence is evaluated unconditionally - i.e. not within a branch of <tt>if</tt> or the
+     * right operand of <tt>&amp;&amp;</tt> or <tt>||</tt>. Otherwise computing it upfront could be more expensive
+     * than evaluating the original expression. Subtrees of a shared subtree are only shared if they also occur
+     * elsewhere.
+     * <p>
+     * The given expression is not modified. If there are no common subexpressions or if the expression contains
+     * nodes other than constants, variables, operations and calls, the given expression is returned.
+     *
+     * @param expression the expression to process
+     * @return a let expression which computes common subexpressions once or the given expression
+     */
+    public static Expression eliminateCommonSubexpressions(Expression expression) {
+        if(expression instanceof CompiledExpression) {
+            return eliminateCommonSubexpressions(((CompiledExpression) expression).getSource());
+        }
+        List<Temporary> temporaries = new ArrayList<>();
+        Expression body = eliminateCommonSubexpressions(Collections.singletonList(expression), temporaries).get(0);
+        if(temporaries.isEmpty()) {
+            return expression;
+        }
+        return new LetExpression(temporaries, body, temporaries.get(temporaries.size() - 1).getSlot() + 1);
+    }
+
+    /**
+     * Computes each subtree which occurs several times in the given expressions only once.
+     * <p>
+     * This works like {@link #eliminateCommonSubexpressions(Expression)}, but subtrees are shared across all given
+     * expressions, which therefore have to be parsed using the same {@link Scope}. The temporaries occupy the slots
+     * after the last slot of a referenced variable, in the order in which they have to be computed.
+     *
+     * @param expressions the expressions to process
+     * @param temporaries the list to add the temporaries to, which remains empty if there are no common
+     *                    subexpressions
+     * @return the expressions which use the temporaries (or the given ones, if no temporaries were created)
+     */
+    static List<Expression> eliminateCommonSubexpressions(List<Expression> expressions, List<Temporary> temporaries) {
+        Map<Expression, int[]> occurrences = new HashMap<>();
+        int maxSlot = -1;
+        for(Expression expression : expressions) {
+            if(!countOccurrences(expression, true, occurrences)) {
+                return expressions;
+            }
+            maxSlot = Math.max(maxSlot, maxSlot(expression));
+        }
+        int[] nextSlot = {maxSlot + 1};
+        Map<Expression, Temporary> shared = new HashMap<>();
+        List<Expression> result = new ArrayList<>(expressions.size());
+        for(Expression expression : expressions) {
+            result.add(share(expression, occurrences, shared, temporaries, nextSlot));
+        }
+        return result;
+    }
+
+    /*
+     * Counts the total and the unconditional occurrences of each subtree. The subtrees of a repeated occurrence
+     * are not counted again. Returns false if an unknown node is encountered.
+     */
+    private static boolean countOccurrences(Expression expr, boolean unconditional, Map<Expression, int[]> counts) {
+        if(expr.isConstant() || expr instanceof VariableReference) {
+            return true;
+        }
+        if(!(expr instanceof BinaryOperation) && !(expr instanceof FunctionCall)) {
+            return false;
+        }
+        int[] count = counts.computeIfAbsent(expr, e -> new int[2]);
+        count[0]++;
+        if(unconditional) {
+            count[1]++;
+        }
+        if(count[0] > 1) {
+            return true;
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            boolean logical = operation.getOp() == BinaryOperation.Op.AND
+                              || operation.getOp() == BinaryOperation.Op.OR;
+            return countOccurrences(operation.getLeft(), unconditional, counts)
+                   && countOccurrences(operation.getRight(), unconditional && !logical, counts);
+        }
+        boolean conditional = ((FunctionCall) expr).getFunction() == Functions.IF;
+        List<Expression> parameters = ((FunctionCall) expr).getParameters();
+        for(int i = 0; i < parameters.size(); i++) {
+            if(!countOccurrences(parameters.get(i), unconditional && (!conditional || i == 0), counts)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int maxSlot(Expression expr) {
+        if(expr instanceof VariableReference) {
+            return ((VariableReference) expr).getSlot();
+        }
+        int result = -1;
+        if(expr instanceof BinaryOperation) {
+            result = Math.max(maxSlot(((BinaryOperation) expr).getLeft()), maxSlot(((BinaryOperation) expr).getRight()));
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                result = Math.max(result, maxSlot(parameter));
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Replaces shared subtrees by temporaries, walking top down so that the largest shared subtrees are found
+     * first. The temporaries are created bottom up, so that each one only refers to temporaries created before.
+     */
+    private static Expression share(Expression expr,
+                                    Map<Expression, int[]> occurrences,
+                                    Map<Expression, Temporary> shared,
+                                    List<Temporary> temporaries,
+                                    int[] nextSlot) {
+        if(expr.isConstant() || expr instanceof VariableReference) {
+            return expr;
+        }
+        Temporary temporary = shared.get(expr);
+        if(temporary != null) {
+            return temporary;
+        }
+        int[] count = occurrences.get(expr);
+        boolean isShared = count[0] > 1 && count[1] > 0 && estimateCost(expr) >= MIN_SHARED_COST && isPure(expr);
+
+        Expression result = expr;
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression left = share(operation.getLeft(), occurrences, shared, temporaries, nextSlot);
+            Expression right = share(operation.getRight(), occurrences, shared, temporaries, nextSlot);
+            if(left != operation.getLeft() || right != operation.getRight()) {
+                result = BinaryOperation.create(operation.getOp(), left, right);
+            }
+        } else {
+            FunctionCall call = (FunctionCall) expr;
+            List<Expression> parameters = new ArrayList<>(call.getParameters().size());
+            boolean changed = false;
+            for(Expression parameter : call.getParameters()) {
+                Expression rewritten = share(parameter, occurrences, shared, temporaries, nextSlot);
+                parameters.add(rewritten);
+                changed |= rewritten != parameter;
+            }
+            if(changed) {
+                result = call(call.getFunction(), parameters.toArray(new Expression[0]));
+            }
+        }
+
+        if(!isShared) {
+            return result;
+        }
+        temporary = new Temporary(result, nextSlot[0]++);
+        temporaries.add(temporary);
+        shared.put(expr, temporary);
+        return temporary;
+    }
+
+    private Expression rewrite(Expression expr) {
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            Expression left = rewrite(operation.getLeft());
+            Expression right = rewrite(operation.getRight());
+            Expression result = rewriteBinaryOperation(operation.getOp(), left, right);
+            if(result != null) {
+                return result;
+            }
+            if(left == operation.getLeft() && right == operation.getRight()) {
+                return operation;
+            }
+            return BinaryOperation.create(operation.getOp(), left, right);
+        }
+        if(expr instanceof FunctionCall) {
+            return rewriteFunctionCall((FunctionCall) expr);
+        }
+        return expr;
+    }
+
+    /*
+     * Folds constants and applies the algebraic identities. Returns null if nothing applies.
+     *
+     * All identities hold for NaN and infinite values, as IEEE-754 guarantees NaN + 0, NaN * 1 and NaN / 1 to be NaN
+     * and x ^ 0 to be 1 for every x (including NaN). Dropping + 0 and moving negations (which the parser represents
+     * as 0 - x) might only change the sign of a zero result, which is why they are skipped if special values are kept.
+     */
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity"})
+    private Expression rewriteBinaryOperation(BinaryOperation.Op op, Expression left, Expression right) {
+        if(left.isConstant() && right.isConstant()) {
+            return new Constant(BinaryOperation.create(op, left, right).evaluate());
+        }
+        switch(op) {
+            case ADD:
+                if(keepSpecialValues) {
+                    // -0 + 0 is 0
+                    return null;
+                }
+                if(isConstant(left, 0)) {
+                    return right;
+                }
+                if(isConstant(right, 0)) {
+                    return left;
+                }
+                // a + -b and -b + a become a - b
+                if(isNegation(right)) {
+                    return rewrite(BinaryOperation.Op.SUBTRACT, left, negated(right));
+                }
+                if(isNegation(left)) {
+                    return rewrite(BinaryOperation.Op.SUBTRACT, right, negated(left));
+                }
+                return null;
+            case SUBTRACT:
+                if(isConstant(right, 0)) {
+                    return left;
+                }
+                if(keepSpecialValues) {
+                    return null;
+                }
+                // --x becomes x and a - -b becomes a + b
+                if(isConstant(left, 0) && isNegation(right)) {
+                    return negated(right);
+                }
+                if(isNegation(right)) {
+                    return rewrite(BinaryOperation.Op.ADD, left, negated(right));
+                }
+                return null;
+            case MULTIPLY:
+                if(isConstant(left, 1)) {
+                    return right;
+                }
+                if(isConstant(right, 1)) {
+                    return left;
+                }
+                if(!keepSpecialValues && isNegation(left) && isNegation(right)) {
+                    return rewrite(op, negated(left), negated(right));
+                }
+                return null;
+            case DIVIDE:
+                if(isConstant(right, 1)) {
+                    return left;
+                }
+                // Multiplying is much cheaper than dividing. This is exact if c is a power of two, otherwise the result
+                // differs by at most one ulp from the quotient
+                if(right.isConstant() && !left.isConstant() && hasNormalReciprocal(right.evaluate())) {
+                    return BinaryOperation.create(BinaryOperation.Op.MULTIPLY,
+                                                  new Constant(1 / right.evaluate()),
+                                                  left);
+                }
+                if(!keepSpecialValues && isNegation(left) && isNegation(right)) {
+                    return rewrite(op, negated(left), negated(right));
+                }
+                return null;
+            case POWER:
+                if(isConstant(right, 0)) {
+                    return new Constant(1);
+                }
+                if(isConstant(right, 1)) {
+                    return left;
+                }
+                return right.isConstant() ? reducePower(left, right.evaluate()) : null;
+            case AND:
+            case OR:
+                return rewriteLogicalOperation(op, left, right);
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Moves the cheaper operand of a pure && or || to the left and drops the right operand if the left one is a
+     * constant which determines the result.
+     *
+     * Both operators only evaluate their right operand if the left one doesn't determine the result. As they treat
+     * their operands symmetrically (NaN is false on either side), swapping pure operands never changes the result.
+     */
+    private Expression rewriteLogicalOperation(BinaryOperation.Op op, Expression left, Expression right) {
+        if(isPure(left) && isPure(right) && estimateCost(right) < estimateCost(left)) {
+            return rewrite(op, right, left);
+        }
+        if(left.isConstant() && (Math.abs(left.evaluate()) > 0) == (op == BinaryOperation.Op.OR)) {
+            return new Constant(op == BinaryOperation.Op.OR ? 1 : 0);
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the cost of evaluating the given expression.
+     * <p>
+     * The cost is a rough estimate in units of a floating point addition: reading a variable or performing an
+     * addition, multiplication or comparison costs 1, a division 4, a power or a call of a math routine like
+     * <tt>sin</tt> or <tt>exp</tt> 20 and a call of a function which is not built-in 50. For <tt>if</tt> the more
+     * expensive branch is assumed to be taken.
+     *
+     * @param expr the expression to estimate the cost for
+     * @return the estimated cost of evaluating the given expression
+     */
+    public static int estimateCost(Expression expr) {
+        if(expr.isConstant()) {
+            return 0;
+        }
+        if(expr instanceof VariableReference) {
+            return 1;
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            return estimateCost(operation.getOp())
+                   + estimateCost(operation.getLeft())
+                   + estimateCost(operation.getRight());
+        }
+        if(expr instanceof FunctionCall) {
+            return estimateCost((FunctionCall) expr);
+        }
+        return UNKNOWN_FUNCTION_COST;
+    }
+
+    private static int estimateCost(BinaryOperation.Op op) {
+        switch(op) {
+            case DIVIDE:
+            case MODULO:
+                return 4;
+            case POWER:
+                return MATH_FUNCTION_COST;
+            default:
+                return 1;
+        }
+    }
+
+    private static int estimateCost(FunctionCall call) {
+        List<Expression> parameters = call.getParameters();
+        if(call.getFunction() == Functions.IF) {
+            return 1 + estimateCost(parameters.get(0)) + Math.max(estimateCost(parameters.get(1)),
+                                                                  estimateCost(parameters.get(2)));
+        }
+        int result;
+        if(CHEAP_FUNCTIONS.contains(call.getFunction())) {
+            result = CHEAP_FUNCTION_COST;
+        } else if(Intrinsic.of(call.getFunction()) != null) {
+            result = MATH_FUNCTION_COST;
+        } else {
+            result = UNKNOWN_FUNCTION_COST;
+        }
+        for(Expression parameter : parameters) {
+            result += estimateCost(parameter);
+        }
+        return result;
+    }
+
+    /*
+     * Determines if evaluating the given expression has no side effects and always yields the same result for the
+     * same variable values, so that it doesn't matter if, or in which order, it is evaluated.
+     */
+    static boolean isPure(Expression expr) {
+        if(expr instanceof Constant || expr instanceof VariableReference) {
+            return true;
+        }
+        if(expr instanceof MemoizedExpression) {
+            return isPure(((MemoizedExpression) expr).getExpression());
+        }
+        if(expr instanceof BinaryOperation) {
+            return isPure(((BinaryOperation) expr).getLeft()) && isPure(((BinaryOperation) expr).getRight());
+        }
+        if(expr instanceof FunctionCall) {
+            if(((FunctionCall) expr).getFunction() != Functions.IF && !isPure(((FunctionCall) expr).getFunction())) {
+                return false;
+            }
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                if(!isPure(parameter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * RND claims to be natural, although it isn't. IF on the other hand only reports not to be natural as it
+     * evaluates its arguments lazily, which is handled by the caller.
+     */
+    static boolean isPure(Function function) {
+        return function.isNaturalFunction() && function != Functions.RND;
+    }
+
+    /*
+     * Applies the identities to an operation created by a rewrite, or creates the operation if none applies.
+     */
+    private Expression rewrite(BinaryOperation.Op op, Expression left, Expression right) {
+        Expression result = rewriteBinaryOperation(op, left, right);
+        if(result != null) {
+            return result;
+        }
+        return BinaryOperation.create(op, left, right);
+    }
+
+    private Expression rewriteFunctionCall(FunctionCall call) {
+        List<Expression> parameters = new ArrayList<>(call.getParameters().size());
+        boolean changed = false;
+        for(Expression parameter : call.getParameters()) {
+            Expression rewritten = rewrite(parameter);
+            parameters.add(rewritten);
+            changed |= rewritten != parameter;
+        }
+        if(call.getFunction() == Functions.IF) {
+            Expression result = rewriteIf(parameters.get(0), parameters.get(1), parameters.get(2));
+            if(result != null) {
+                return result;
+            }
+        }
+        // Other than x ^ 0, pow(x, 0) isn't replaced by 1, as pow returns NaN for a NaN base
+        if(call.getFunction() == Functions.POW && parameters.get(1).isConstant()) {
+            double exponent = parameters.get(1).evaluate();
+            Expression result = exponent == 1 ? parameters.get(0) : reducePower(parameters.get(0), exponent);
+            if(result != null) {
+                return result;
+            }
+        }
+        if(!changed) {
+            return call;
+        }
+        return call(call.getFunction(), parameters.toArray(new Expression[0])).simplify();
+    }
+
+    /*
+     * Drops the dead branch of an if with a constant condition or hoists an operand which both branches have in
+     * common. Returns null if nothing applies.
+     *
+     * As if evaluates its arguments lazily, it isn't a natural function and therefore never folded by simplify. A
+     * condition might also have become constant via Variable.makeConstant. A NaN condition yields NaN.
+     */
+    private Expression rewriteIf(Expression condition, Expression then, Expression otherwise) {
+        if(condition.isConstant()) {
+            double check = condition.evaluate();
+            if(Double.isNaN(check)) {
+                return new Constant(check);
+            }
+            return Math.abs(check) > 0 ? then : otherwise;
+        }
+        if(then instanceof BinaryOperation && otherwise instanceof BinaryOperation) {
+            return hoistCommonOperand(condition, (BinaryOperation) then, (BinaryOperation) otherwise);
+        }
+        if(then instanceof FunctionCall && otherwise instanceof FunctionCall) {
+            return hoistCommonParameters(condition, (FunctionCall) then, (FunctionCall) otherwise);
+        }
+        return null;
+    }
+
+    /*
+     * Rewrites if(c, k op a, k op b) into k op if(c, a, b) and if(c, a op k, b op k) into if(c, a, b) op k. For +
+     * and * the common operand may also be on opposite sides.
+     *
+     * This is only done for operations which yield NaN for a NaN operand, so that a NaN condition still yields NaN.
+     */
+    @SuppressWarnings("squid:S3776")
+    private Expression hoistCommonOperand(Expression condition, BinaryOperation then, BinaryOperation otherwise) {
+        BinaryOperation.Op op = then.getOp();
+        if(op != otherwise.getOp() || !isNaNPropagating(op)) {
+            return null;
+        }
+        boolean commutative = op == BinaryOperation.Op.ADD || op == BinaryOperation.Op.MULTIPLY;
+        if(isCommon(then.getLeft(), otherwise.getLeft())) {
+            return rewrite(op, then.getLeft(), conditional(condition, then.getRight(), otherwise.getRight()));
+        }
+        if(isCommon(then.getRight(), otherwise.getRight())) {
+            return rewrite(op, conditional(condition, then.getLeft(), otherwise.getLeft()), then.getRight());
+        }
+        if(commutative && isCommon(then.getLeft(), otherwise.getRight())) {
+            return rewrite(op, then.getLeft(), conditional(condition, then.getRight(), otherwise.getLeft()));
+        }
+        if(commutative && isCommon(then.getRight(), otherwise.getLeft())) {
+            return rewrite(op, then.getRight(), conditional(condition, then.getLeft(), otherwise.getRight()));
+        }
+        return null;
+    }
+
+    private static boolean isNaNPropagating(BinaryOperation.Op op) {
+        return op == BinaryOperation.Op.ADD
+               || op == BinaryOperation.Op.SUBTRACT
+               || op == BinaryOperation.Op.MULTIPLY
+               || op == BinaryOperation.Op.DIVIDE
+               || op == BinaryOperation.Op.MODULO;
+    }
+
+    /*
+     * Rewrites if(c, f(k, a), f(k, b)) into f(k, if(c, a, b)) if all but one parameter are common.
+     */
+    private Expression hoistCommonParameters(Expression condition, FunctionCall then, FunctionCall otherwise) {
+        Function function = then.getFunction();
+        if(function != otherwise.getFunction()
+           || !(function instanceof UnaryFunction || function instanceof BinaryFunction)
+           || !isPure(function)) {
+            return null;
+        }
+        int differingParameter = -1;
+        for(int i = 0; i < then.getParameters().size(); i++) {
+            if(!isCommon(then.getParameters().get(i), otherwise.getParameters().get(i))) {
+                if(differingParameter >= 0) {
+                    return null;
+                }
+                differingParameter = i;
+            }
+        }
+        if(differingParameter < 0) {
+            return null;
+        }
+        Expression[] parameters = then.getParameters().toArray(new Expression[0]);
+        parameters[differingParameter] = conditional(condition,
+                                                     parameters[differingParameter],
+                                                     otherwise.getParameters().get(differingParameter));
+        return call(function, parameters);
+    }
+
+    private static boolean isCommon(Expression a, Expression b) {
+        return isPure(a) && a.equals(b);
+    }
+
+    /*
+     * Creates if(condition, then, otherwise), unless the new conditional can be rewritten itself.
+     */
+    private Expression conditional(Expression condition, Expression then, Expression otherwise) {
+        Expression result = rewriteIf(condition, then, otherwise);
+        if(result != null) {
+            return result;
+        }
+        return call(Functions.IF, condition, then, otherwise);
+    }
+
+    private static FunctionCall call(Function function, Expression... parameters) {
+        FunctionCall result = new FunctionCall();
+        result.setFunction(function);
+        for(Expression parameter : parameters) {
+            result.addParameter(parameter);
+        }
+        return result;
+    }
+
+    /*
+     * Replaces x ^ exponent by multiplications and sqrt. Returns null if the exponent isn't a small integer or
+     * half-integer or if the base would have to be duplicated too often.
+     *
+     * FastMath.pow takes tens of nanoseconds, even for x ^ 2. An integer power therefore becomes a balanced tree of
+     * n - 1 multiplications (x ^ 4 becomes (x * x) * (x * x)) and x ^ (k + 0.5) becomes x ^ k * sqrt(x). Negative
+     * exponents multiply the reciprocals (x ^ -2 becomes (1 / x) * (1 / x)), so that no intermediate result overflows
+     * or underflows unless the power itself does. As each of their factors requires a division, only exponents down to
+     * -4 are reduced.
+     *
+     * Each rounding contributes a relative error of at most 2^-53 and a reciprocal raised to the |n|-th power
+     * contributes |n| times its error. Therefore the result is within n - 1 ulps of the exact power for positive
+     * integers, n + 1 ulps for positive half-integers, 2|n| - 1 ulps for negative integers and 2|n| ulps for negative
+     * half-integers. FastMath.pow isn't exact either: 3 ^ 2 yields 9.000000000000004, whereas 3 * 3 is exactly 9.
+     * NaN, infinities and zeros (including their sign) behave exactly like pow for integer exponents, but not for
+     * half-integers (see the class comment), which is why these are skipped if special values are kept.
+     */
+    private Expression reducePower(Expression base, double exponent) {
+        if(base.isConstant() || Math.abs(exponent) > MAX_REDUCED_EXPONENT || Math.rint(2 * exponent) != 2 * exponent) {
+            return null;
+        }
+        if(exponent < -MAX_REDUCED_NEGATIVE_EXPONENT) {
+            return null;
+        }
+        int n = (int) Math.abs(exponent);
+        boolean halfInteger = Math.abs(exponent) != n;
+        if(n == 0 && !halfInteger || halfInteger && keepSpecialValues) {
+            return null;
+        }
+        int multiplications = halfInteger ? n : n - 1;
+        if(!(base instanceof VariableReference) && multiplications * countNodes(base) > MAX_DUPLICATED_NODES) {
+            return null;
+        }
+        Expression root = halfInteger ? call(Functions.SQRT, base) : null;
+        if(exponent < 0) {
+            // Multiply the reciprocals, as the reciprocal of the product might overflow or underflow
+            Expression power = n > 0 ? multiply(reciprocal(base), n) : new Constant(1);
+            return root == null ? power : BinaryOperation.create(BinaryOperation.Op.DIVIDE, power, root);
+        }
+        Expression power = n > 0 ? multiply(base, n) : null;
+        if(root == null) {
+            return power;
+        }
+        return power == null ? root : BinaryOperation.create(BinaryOperation.Op.MULTIPLY, power, root);
+    }
+
+    private static Expression reciprocal(Expression expr) {
+        return BinaryOperation.create(BinaryOperation.Op.DIVIDE, new Constant(1), expr);
+    }
+
+    /*
+     * Builds a balanced tree of n - 1 multiplications, so that independent products can be computed in parallel.
+     */
+    private static Expression multiply(Expression base, int n) {
+        if(n == 1) {
+            return base;
+        }
+        return BinaryOperation.create(BinaryOperation.Op.MULTIPLY, multiply(base, n / 2), multiply(base, n - n / 2));
+    }
+
+    private static int countNodes(Expression expr) {
+        int result = 1;
+        if(expr instanceof BinaryOperation) {
+            result += countNodes(((BinaryOperation) expr).getLeft()) + countNodes(((BinaryOperation) expr).getRight());
+        } else if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                result += countNodes(parameter);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isConstant(Expression expr, double value) {
+        return expr.isConstant() && expr.evaluate() == value;
+    }
+
+    /*
+     * Determines if the given expression is a negation, which the parser represents as "0 - x".
+     */
+    private static boolean isNegation(Expression expr) {
+        return expr instanceof BinaryOperation
+               && ((BinaryOperation) expr).getOp() == BinaryOperation.Op.SUBTRACT
+               && isConstant(((BinaryOperation) expr).getLeft(), 0);
+    }
+
+    private static Expression negated(Expression negation) {
+        return ((BinaryOperation) negation).getRight();
+    }
+
+    /*
+     * A reciprocal which is subnormal (or infinite) would lose precision, so x / c is only rewritten if 1 / c is a
+     * normal number.
+     */
+    private static boolean hasNormalReciprocal(double value) {
+        double reciprocal = 1 / value;
+        return !Double.isNaN(reciprocal)
+               && !Double.isInfinite(reciprocal)
+               && Math.abs(reciprocal) >= Double.MIN_NORMAL;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import parsii.tokenizer.ParseError;
+import parsii.tokenizer.ParseException;
+import parsii.tokenizer.Position;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches parsed and optimized expressions, so that the same source isn't tokenized and parsed over and over again.
+ * <p>
+ * Entries are keyed by the source (with runs of whitespace collapsed and leading and trailing whitespace removed) and
+ * the {@link FunctionRegistry} of the parser. Parsers sharing a registry therefore share their entries. As
+ * registering a function with a parser replaces its registry, all previously cached expressions of this parser
+ * become unreachable, as they might refer to a replaced function. If more than the given number of expressions are
+ * cached, the least recently used one is evicted.
+ * <p>
+ * Each entry is parsed once against a scope of its own and optimized (see {@link Optimizer#optimize(Expression)}).
+ * Therefore callers always receive the optimized tree, whose results might differ from the tree returned by
+ * {@link Parser#parse()} within the bounds documented by the optimizer (e.g. in the last bits or in the sign of a
+ * zero result). Only the functions of the given parser are used, therefore subclasses of {@link Parser} (which
+ * might parse differently) are rejected.
+ * <p>
+ * A cache hit returns a copy of the cached tree whose variable references are rebound to the variables of the given
+ * scope (including their slot, so that the result can be evaluated against frames of this scope). Constants like
+ * <tt>pi</tt> are folded while rebinding, exactly as if the expression had been parsed using the given scope.
+ * <p>
+ * A cache can be shared by several threads:
+ * {@code
+ * ParseCache cache = new ParseCache(4096);
+ * Expression expr = cache.parse(parser, "3 + a * 4", scope);
+ * }
+ */
+public class ParseCache {
+
+    private final int maxSize;
+    private final Map<Key, Expression> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache which holds up to the given number of expressions.
+     *
+     * @param maxSize the maximal number of cached expressions
+     */
+    public ParseCache(int maxSize) {
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, Expression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 3520418637455312847L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Expression> eldest) {
+                if(size() > ParseCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static final class Key {
+        private final String source;
+        private final FunctionRegistry functions;
+
+        Key(String source, FunctionRegistry functions) {
+            this.source = source;
+            this.functions = functions;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return other.functions == functions && other.source.equals(source);
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode() * 31 + System.identityHashCode(functions);
+        }
+    }
+
+    /**
+     * Parses the given input using the functions of the given parser and a new scope.
+     *
+     * @param parser the parser which provides the functions
+     * @param input  the expression to be parsed
+     * @return the resulting optimized AST as expression
+     * @throws ParseException           if the expression contains one or more errors
+     * @throws IllegalArgumentException if the given parser is a subclass of {@link Parser}
+     */
+    public Expression parse(Parser parser, String input) throws ParseException {
+        return parse(parser, input, new Scope());
+    }
+
+    /**
+     * Parses the given input using the functions of the given parser and the given scope.
+     *
+     * @param parser the parser which provides the functions
+     * @param input  the expression to be parsed
+     * @param scope  the scope used to resolve variables
+     * @return the resulting optimized AST as expression
+     * @throws ParseException           if the expression contains one or more errors
+     * @throws IllegalArgumentException if the given parser is a subclass of {@link Parser}
+     */
+    public Expression parse(Parser parser, String input, Scope scope) throws ParseException {
+        if(parser.getClass() != Parser.class) {
+            // The cache parses its entries itself, which would silently ignore the behaviour of the subclass
+            throw new IllegalArgumentException("Subclasses of Parser cannot be cached: "
+                                               + parser.getClass().getName());
+        }
+        FunctionRegistry functions = parser.getFunctions();
+        Key key = new Key(normalize(input), functions);
+        Expression template;
+        synchronized(entries) {
+            template = entries.get(key);
+        }
+        if(template != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            // Parse the original input, so that errors report the correct positions
+            Parser templateParser = new Parser(input, Scope.createDetached(), functions);
+            template = Optimizer.optimize(templateParser.parse());
+            synchronized(entries) {
+                entries.put(key, template);
+            }
+        }
+
+        List<ParseError> errors = new ArrayList<>();
+        boolean[] foundConstant = {false};
+        Expression result = rebind(template, scope, errors, foundConstant);
+        if(!errors.isEmpty()) {
+            throw ParseException.create(errors);
+        }
+        return foundConstant[0] ? Optimizer.optimize(result.simplify()) : result;
+    }
+
+    /*
+     * Collapses all runs of whitespace into a single character. Runs containing a line break are collapsed into a
+     * line break, as it might terminate a line comment.
+     */
+    private static String normalize(String input) {
+        String trimmed = input.trim();
+        StringBuilder sb = new StringBuilder(trimmed.length());
+        boolean inWhitespace = false;
+        boolean hasLineBreak = false;
+        for(int i = 0; i < trimmed.length(); i++) {
+            char ch = trimmed.charAt(i);
+            if(Character.isWhitespace(ch)) {
+                inWhitespace = true;
+                hasLineBreak |= ch == '\n' || ch == '\r';
+            } else {
+                if(inWhitespace) {
+                    sb.append(hasLineBreak ? '\n' : ' ');
+                    inWhitespace = false;
+                    hasLineBreak = false;
+                }
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Copies the given tree, replacing each variable by the variable with the same name in the given scope.
+     */
+    private static Expression rebind(Expression expr, Scope scope, List<ParseError> errors, boolean[] foundConstant) {
+        if(expr instanceof VariableReference) {
+            String name = ((VariableReference) expr).getVariable().getName();
+            try {
+                Variable variable = scope.getVariable(name);
+                foundConstant[0] |= variable.isConstant();
+                return new VariableReference(variable, variable.isConstant() ? -1 : scope.getSlot(variable));
+            } catch(@SuppressWarnings("UnusedCatchParameter") IllegalArgumentException e) {
+                errors.add(ParseError.error(Position.UNKNOWN, String.format("Unknown variable: '%s'", name)));
+                return new Constant(0);
+            }
+        }
+        if(expr instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation) expr;
+            return BinaryOperation.create(operation.getOp(),
+                                          rebind(operation.getLeft(), scope, errors, foundConstant),
+                                          rebind(operation.getRight(), scope, errors, foundConstant));
+        }
+        if(expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            FunctionCall copy = new FunctionCall();
+            copy.setFunction(call.getFunction());
+            for(Expression parameter : call.getParameters()) {
+                copy.addParameter(rebind(parameter, scope, errors, foundConstant));
+            }
+            return copy;
+        }
+        return expr;
+    }
+
+    /**
+     * Returns the number of calls which were answered from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of calls which had to parse their input.
+     *
+     * @return the number of cache misses (including inputs which couldn't be parsed)
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of expressions which were evicted as the cache was full.
+     *
+     * @return the number of evicted expressions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of cached expressions.
+     *
+     * @return the number of expressions currently in the cache
+     */
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Removes all cached expressions.
+     */
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+}
@@ -14,11 +14,9 @@ import parsii.tokenizer.Token;
 import parsii.tokenizer.Tokenizer;
 
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 
 /**
@@ -43,86 +41,98 @@ import java.util.TreeMap;
  */
 public class Parser {
 
-    private final Scope scope;
+    private Scope scope;
     private final List<ParseError> errors = new ArrayList<>();
     private final Tokenizer tokenizer;
-    private final Map<String, Function> functionTable;
+    private FunctionRegistry functions;
 
-    /*
-     * Setup well known functions
-     */ {
-        functionTable = new TreeMap<>();
-
-        registerFunction("sin", Functions.SIN);
-        registerFunction("cos", Functions.COS);
-        registerFunction("tan", Functions.TAN);
-        registerFunction("sinh", Functions.SINH);
-        registerFunction("cosh", Functions.COSH);
-        registerFunction("tanh", Functions.TANH);
-        registerFunction("asin", Functions.ASIN);
-        registerFunction("acos", Functions.ACOS);
-        registerFunction("atan", Functions.ATAN);
-        registerFunction("atan2", Functions.ATAN2);
-        registerFunction("deg", Functions.DEG);
-        registerFunction("rad", Functions.RAD);
-        registerFunction("abs", Functions.ABS);
-        registerFunction("round", Functions.ROUND);
-        registerFunction("ceil", Functions.CEIL);
-        registerFunction("floor", Functions.FLOOR);
-        registerFunction("exp", Functions.EXP);
-        registerFunction("ln", Functions.LN);
-        registerFunction("log", Functions.LOG);
-        registerFunction("sqrt", Functions.SQRT);
-        registerFunction("pow", Functions.POW);
-        registerFunction("min", Functions.MIN);
-        registerFunction("max", Functions.MAX);
-        registerFunction("sign", Functions.SIGN);
-        registerFunction("if", Functions.IF);
-        // custom functions
-        registerFunction("root", Functions.ROOT);
-        registerFunction("cbrt", Functions.CBRT);
-        registerFunction("sigmoid", Functions.SIGMOID);
-        registerFunction("int_and", Functions.INT_AND);
-        registerFunction("int_left_bit_shift", Functions.INT_LEFT_SHIFT);
-        registerFunction("int_right_bit_shift", Functions.INT_RIGHT_SHIFT);
-        registerFunction("int_not", Functions.INT_NOT);
-        registerFunction("int_or", Functions.INT_OR);
-        registerFunction("int_xor", Functions.INT_XOR);
-        registerFunction("double_to_long_bits", Functions.DOUBLE_BITS_TO_LONG);
-        registerFunction("long_bits_to_double", Functions.LONG_BITS_TO_DOUBLE);
-        registerFunction("float_bits_to_int", Functions.FLOAT_BITS_TO_INT);
-        registerFunction("int_bits_to_float", Functions.INT_BITS_TO_FLOAT);
-
-        // pls no use
-        registerFunction("rnd", Functions.RND);
+    /**
+     * Creates a new parser which knows the built-in functions (see {@link FunctionRegistry#BUILT_IN}).
+     */
+    public Parser() {
+        this(FunctionRegistry.BUILT_IN);
     }
 
-    public Parser() {
-        this(new StringReader(""), new Scope(), new TreeMap<>());
+    /**
+     * Creates a new parser which knows the functions of the given registry.
+     * <p>
+     * As a registry is immutable, it can be shared by many parsers without being copied.
+     *
+     * @param functions the functions which can be referenced by parsed expressions
+     */
+    public Parser(FunctionRegistry functions) {
+        this("", new Scope(), functions);
     }
 
     protected Parser(Reader input, Scope scope, Map<String, Function> functionTable) {
+        this(input, scope, FunctionRegistry.BUILT_IN.withLayer(functionTable));
+    }
+
+    protected Parser(Reader input, Scope scope, FunctionRegistry functions) {
+        this(new Tokenizer(input), scope, functions);
+    }
+
+    protected Parser(CharSequence input, Scope scope, FunctionRegistry functions) {
+        this(new Tokenizer(input), scope, functions);
+    }
+
+    private Parser(Tokenizer tokenizer, Scope scope, FunctionRegistry functions) {
         this.scope = scope;
-        tokenizer = new Tokenizer(input);
+        this.tokenizer = tokenizer;
         tokenizer.setProblemCollector(errors);
-        this.functionTable.putAll(functionTable);
+        this.functions = functions;
+    }
+
+    /**
+     * Prepares this parser to parse the given input using {@link #parse()}.
+     * <p>
+     * In contrast to {@link #parse(String, Scope)}, which creates a new parser per call, this re-uses this parser,
+     * its tokenizer and their buffers. Therefore a parser can be kept in a {@link ThreadLocal} or in an object pool
+     * to parse many short expressions without allocating much besides the resulting expression:
+     * {@code
+     * private static final ThreadLocal<Parser> PARSER = ThreadLocal.withInitial(Parser::new);
+     * ...
+     * Expression expr = PARSER.get().reset(formula, scope).parse();
+     * }
+     * A parser must not be used by several threads at once.
+     *
+     * @param input the expression to be parsed, which must not be modified while being parsed
+     * @param scope the scope used to resolve variables
+     * @return the parser itself for fluent method calls
+     */
+    public Parser reset(CharSequence input, Scope scope) {
+        this.scope = scope;
+        errors.clear();
+        tokenizer.reset(input);
+        return this;
     }
 
     public Scope getScope() {
         return scope;
     }
 
+    /**
+     * Returns the functions which can be referenced by expressions parsed by this parser.
+     *
+     * @return the registry used to resolve function names
+     */
+    public FunctionRegistry getFunctions() {
+        return functions;
+    }
+
     /**
      * Registers a new function which can be referenced from within an expression.
      * <p>
-     * A function must be registered before an expression is parsed in order to be visible.
+     * A function must be registered before an expression is parsed in order to be visible. As the registry of a
+     * parser is immutable, this replaces it with an extended copy (see
+     * {@link FunctionRegistry#with(String, Function)}). Parsers sharing the previous registry are not affected.
      *
      * @param name     the name of the function. If a function with the same name is already available, it will be
      *                 overridden
      * @param function the function which is invoked as an expression is evaluated
      */
     public void registerFunction(String name, Function function) {
-        functionTable.put(name, function);
+        functions = functions.with(name, function);
     }
 
     /**
@@ -133,7 +143,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public Expression parse(String input) throws ParseException {
-        return new Parser(new StringReader(input), new Scope(), functionTable).parse();
+        return new Parser(input, new Scope(), functions).parse();
     }
 
     /**
@@ -144,7 +154,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public Expression parse(Reader input) throws ParseException {
-        return new Parser(input, new Scope(), functionTable).parse();
+        return new Parser(input, new Scope(), functions).parse();
     }
 
     /**
@@ -158,7 +168,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public Expression parse(String input, Scope scope) throws ParseException {
-        return new Parser(new StringReader(input), scope, functionTable).parse();
+        return new Parser(input, scope, functions).parse();
     }
 
     /**
@@ -172,7 +182,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public Expression parse(Reader input, Scope scope) throws ParseException {
-        return new Parser(input, scope, functionTable).parse();
+        return new Parser(input, scope, functions).parse();
     }
 
     /**
@@ -190,7 +200,8 @@ public class Parser {
                             token.getSource())));
         }
         if(!errors.isEmpty()) {
-            throw ParseException.create(errors);
+            // Copy the errors, as the list is cleared once this parser is reset
+            throw ParseException.create(new ArrayList<>(errors));
         }
         return result;
     }
@@ -329,7 +340,7 @@ public class Parser {
                 return right;
             }
         }
-        return new BinaryOperation(op, left, right);
+        return BinaryOperation.create(op, left, right);
     }
 
     protected void replaceLeft(BinaryOperation target, Expression newLeft, BinaryOperation.Op op) {
@@ -340,7 +351,7 @@ public class Parser {
                 return;
             }
         }
-        target.setLeft(new BinaryOperation(op, newLeft, target.getLeft()));
+        target.setLeft(BinaryOperation.create(op, newLeft, target.getLeft()));
     }
 
     /**
@@ -372,7 +383,7 @@ public class Parser {
     protected Expression atom() {
         if(tokenizer.current().isSymbol("-")) {
             tokenizer.consume();
-            BinaryOperation result = new BinaryOperation(BinaryOperation.Op.SUBTRACT, new Constant(0d), atom());
+            BinaryOperation result = BinaryOperation.create(BinaryOperation.Op.SUBTRACT, new Constant(0d), atom());
             result.seal();
             return result;
         }
@@ -404,7 +415,8 @@ public class Parser {
             }
             Token variableName = tokenizer.consume();
             try {
-                return new VariableReference(scope.getVariable(variableName.getContents()));
+                Variable variable = scope.getVariable(variableName.getContents());
+                return new VariableReference(variable, variable.isConstant() ? -1 : scope.getSlot(variable));
             } catch(@SuppressWarnings("UnusedCatchParameter") IllegalArgumentException e) {
                 errors.add(ParseError.error(variableName,
                         String.format("Unknown variable: '%s'", variableName.getContents())));
@@ -482,7 +494,7 @@ public class Parser {
     protected Expression functionCall() {
         FunctionCall call = new FunctionCall();
         Token funToken = tokenizer.consume();
-        Function fun = functionTable.get(funToken.getContents());
+        Function fun = functions.get(funToken.getContents());
         if(fun == null) {
             errors.add(ParseError.error(funToken, String.format("Unknown function: '%s'", funToken.getContents())));
         }
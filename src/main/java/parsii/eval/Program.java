@@ -0,0 +1,561 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import net.jafama.FastMath;
+
+/**
+ * Represents an expression which has been lowered into a flat program for a register based virtual machine.
+ * <p>
+ * Instead of a graph of objects spread across the heap, a program consists of an <tt>int[]</tt> containing the
+ * instructions and a <tt>double[]</tt> containing all registers. The first registers are initialized with the
+ * constants of the expression, followed by one register per variable (which is loaded once when the evaluation
+ * starts) and the temporary registers used to hold intermediate results. Evaluating the program is a tight loop
+ * which dispatches on the opcode of each instruction.
+ * <p>
+ * Each instruction consists of an opcode, followed by the index of the destination register and its operands. Jump
+ * targets are absolute positions within the instructions.
+ * <p>
+ * A program owns its registers and must therefore not be evaluated by several threads at once using
+ * {@link #evaluate()} (which would be pointless anyway, as the variables are shared as well). However,
+ * {@link #evaluate(double[])} operates on a private copy of the registers and can therefore be used concurrently.
+ * <p>
+ * Creating a program is as simple as:
+ * {@code
+ * Expression expr = Program.compile(new Parser().parse("3 + a * 4", scope));
+ * }
+ */
+public final class Program implements Expression {
+
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+    static final int MODULO = 4;
+    static final int POWER = 5;
+    static final int LT = 6;
+    static final int LT_EQ = 7;
+    static final int EQ = 8;
+    static final int GT_EQ = 9;
+    static final int GT = 10;
+    static final int NEQ = 11;
+    static final int AND = 12;
+    static final int OR = 13;
+    static final int MOVE = 14;
+    static final int JUMP = 15;
+    static final int IF = 16;
+    static final int CALL = 17;
+    static final int UNARY_FUNCTION = 18;
+    static final int BINARY_FUNCTION = 19;
+    static final int SIN = 20;
+    static final int SINH = 21;
+    static final int COS = 22;
+    static final int COSH = 23;
+    static final int TAN = 24;
+    static final int TANH = 25;
+    static final int ABS = 26;
+    static final int ASIN = 27;
+    static final int ACOS = 28;
+    static final int ATAN = 29;
+    static final int FLOOR = 30;
+    static final int CEIL = 31;
+    static final int SQRT = 32;
+    static final int CBRT = 33;
+    static final int EXP = 34;
+    static final int LN = 35;
+    static final int LOG = 36;
+    static final int SIGN = 37;
+    static final int DEG = 38;
+    static final int RAD = 39;
+    static final int ROUND = 40;
+    static final int ATAN2 = 41;
+    static final int MIN = 42;
+    static final int MAX = 43;
+    static final int POW = 44;
+    static final int SELECT = 45;
+    static final int AND_THEN = 46;
+    static final int OR_ELSE = 47;
+
+    /**
+     * Contains the mnemonic of each opcode, used by {@link #toString()}.
+     */
+    private static final String[] MNEMONICS = {"add",
+                                               "sub",
+                                               "mul",
+                                               "div",
+                                               "mod",
+                                               "power",
+                                               "lt",
+                                               "lt_eq",
+                                               "eq",
+                                               "gt_eq",
+                                               "gt",
+                                               "neq",
+                                               "and",
+                                               "or",
+                                               "move",
+                                               "jump",
+                                               "if",
+                                               "call",
+                                               "unary",
+                                               "binary",
+                                               "sin",
+                                               "sinh",
+                                               "cos",
+                                               "cosh",
+                                               "tan",
+                                               "tanh",
+                                               "abs",
+                                               "asin",
+                                               "acos",
+                                               "atan",
+                                               "floor",
+                                               "ceil",
+                                               "sqrt",
+                                               "cbrt",
+                                               "exp",
+                                               "ln",
+                                               "log",
+                                               "sign",
+                                               "deg",
+                                               "rad",
+                                               "round",
+                                               "atan2",
+                                               "min",
+                                               "max",
+                                               "pow",
+                                               "select",
+                                               "and_then",
+                                               "or_else"};
+
+    final int[] code;
+    final double[] registers;
+    final Variable[] variables;
+    final int[] variableSlots;
+    final int variableOffset;
+    final Function[] functions;
+    final Expression[] calls;
+    final int[] results;
+
+    @SuppressWarnings("squid:S00107")
+    Program(int[] code,
+            double[] registers,
+            Variable[] variables,
+            int[] variableSlots,
+            int variableOffset,
+            Function[] functions,
+            Expression[] calls,
+            int[] results) {
+        this.code = code;
+        this.registers = registers;
+        this.variables = variables;
+        this.variableSlots = variableSlots;
+        this.variableOffset = variableOffset;
+        this.functions = functions;
+        this.calls = calls;
+        this.results = results;
+    }
+
+    /**
+     * Lowers the given expression into a program.
+     * <p>
+     * The given expression should be simplified first, which is automatically done by {@link Parser#parse()}.
+     *
+     * @param expression the expression to lower
+     * @return a program which computes the same results as the given expression
+     */
+    public static Program compile(Expression expression) {
+        if(expression instanceof Program) {
+            return (Program) expression;
+        }
+        if(expression instanceof CompiledExpression) {
+            return compile(((CompiledExpression) expression).getSource());
+        }
+        return new ProgramBuilder().build(expression);
+    }
+
+    @Override
+    public double evaluate() {
+        double[] r = loadRegisters(null);
+        run(r, null);
+        return r[results[0]];
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        double[] r = loadRegisters(frame);
+        run(r, frame);
+        return r[results[0]];
+    }
+
+    /*
+     * Loads the values of the variables into the registers. Without a frame, the variables are read and the own
+     * registers are used, otherwise the frame is read and a copy of the registers is used.
+     */
+    double[] loadRegisters(double[] frame) {
+        if(frame == null) {
+            for(int i = 0; i < variables.length; i++) {
+                registers[variableOffset + i] = variables[i].getValue();
+            }
+            return registers;
+        }
+        double[] r = registers.clone();
+        for(int i = 0; i < variables.length; i++) {
+            int slot = variableSlots[i];
+            r[variableOffset + i] = slot < 0 ? variables[i].getValue() : frame[slot];
+        }
+        return r;
+    }
+
+    /*
+     * Executes the code using the given registers. If a frame is given, it is passed on to calls.
+     */
+    @SuppressWarnings({"squid:S3776", "squid:MethodCyclomaticComplexity", "squid:S1479"})
+    void run(double[] r, double[] frame) {
+        int[] c = code;
+        int pc = 0;
+        while(pc < c.length) {
+            switch(c[pc]) {
+                case ADD:
+                    r[c[pc + 1]] = r[c[pc + 2]] + r[c[pc + 3]];
+                    pc += 4;
+                    break;
+                case SUBTRACT:
+                    r[c[pc + 1]] = r[c[pc + 2]] - r[c[pc + 3]];
+                    pc += 4;
+                    break;
+                case MULTIPLY:
+                    r[c[pc + 1]] = r[c[pc + 2]] * r[c[pc + 3]];
+                    pc += 4;
+                    break;
+                case DIVIDE:
+                    r[c[pc + 1]] = r[c[pc + 2]] / r[c[pc + 3]];
+                    pc += 4;
+                    break;
+                case MODULO:
+                    r[c[pc + 1]] = r[c[pc + 2]] % r[c[pc + 3]];
+                    pc += 4;
+                    break;
+                case POWER:
+                    r[c[pc + 1]] = FastMath.pow(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case LT:
+                    r[c[pc + 1]] = r[c[pc + 2]] < r[c[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LT_EQ:
+                    r[c[pc + 1]] = lessOrEqual(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case EQ:
+                    r[c[pc + 1]] = FastMath.abs(r[c[pc + 2]] - r[c[pc + 3]]) < BinaryOperation.EPSILON ? 1 : 0;
+                    pc += 4;
+                    break;
+                case GT_EQ:
+                    r[c[pc + 1]] = lessOrEqual(r[c[pc + 3]], r[c[pc + 2]]);
+                    pc += 4;
+                    break;
+                case GT:
+                    r[c[pc + 1]] = r[c[pc + 2]] > r[c[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case NEQ:
+                    r[c[pc + 1]] = FastMath.abs(r[c[pc + 2]] - r[c[pc + 3]]) > BinaryOperation.EPSILON ? 1 : 0;
+                    pc += 4;
+                    break;
+                case AND:
+                    r[c[pc + 1]] = FastMath.abs(r[c[pc + 2]]) > 0 && FastMath.abs(r[c[pc + 3]]) > 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case OR:
+                    r[c[pc + 1]] = FastMath.abs(r[c[pc + 2]]) > 0 || FastMath.abs(r[c[pc + 3]]) > 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case MOVE:
+                    r[c[pc + 1]] = r[c[pc + 2]];
+                    pc += 3;
+                    break;
+                case JUMP:
+                    pc = c[pc + 1];
+                    break;
+                case IF:
+                    pc = branch(r, c, pc);
+                    break;
+                case CALL:
+                    Expression call = calls[c[pc + 2]];
+                    r[c[pc + 1]] = frame == null ? call.evaluate() : call.evaluate(frame);
+                    pc += 3;
+                    break;
+                case UNARY_FUNCTION:
+                    r[c[pc + 1]] = unaryFunction((UnaryFunction) functions[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BINARY_FUNCTION:
+                    r[c[pc + 1]] = binaryFunction((BinaryFunction) functions[c[pc + 2]],
+                                                  r[c[pc + 3]],
+                                                  r[c[pc + 4]]);
+                    pc += 5;
+                    break;
+                case SIN:
+                    r[c[pc + 1]] = FastMath.sin(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SINH:
+                    r[c[pc + 1]] = FastMath.sinh(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case COS:
+                    r[c[pc + 1]] = FastMath.cos(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case COSH:
+                    r[c[pc + 1]] = FastMath.cosh(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case TAN:
+                    r[c[pc + 1]] = FastMath.tan(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case TANH:
+                    r[c[pc + 1]] = FastMath.tanh(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ABS:
+                    r[c[pc + 1]] = FastMath.abs(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ASIN:
+                    r[c[pc + 1]] = FastMath.asin(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ACOS:
+                    r[c[pc + 1]] = FastMath.acos(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ATAN:
+                    r[c[pc + 1]] = FastMath.atan(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case FLOOR:
+                    r[c[pc + 1]] = FastMath.floor(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case CEIL:
+                    r[c[pc + 1]] = FastMath.ceil(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SQRT:
+                    r[c[pc + 1]] = FastMath.sqrt(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case CBRT:
+                    r[c[pc + 1]] = FastMath.cbrt(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case EXP:
+                    r[c[pc + 1]] = FastMath.exp(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LN:
+                    r[c[pc + 1]] = FastMath.log(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LOG:
+                    r[c[pc + 1]] = FastMath.log10(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SIGN:
+                    r[c[pc + 1]] = FastMath.signum(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case DEG:
+                    r[c[pc + 1]] = FastMath.toDegrees(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case RAD:
+                    r[c[pc + 1]] = FastMath.toRadians(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ROUND:
+                    r[c[pc + 1]] = round(r[c[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ATAN2:
+                    r[c[pc + 1]] = FastMath.atan2(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case MIN:
+                    r[c[pc + 1]] = FastMath.min(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case MAX:
+                    r[c[pc + 1]] = FastMath.max(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case POW:
+                    r[c[pc + 1]] = pow(r[c[pc + 2]], r[c[pc + 3]]);
+                    pc += 4;
+                    break;
+                case SELECT:
+                    r[c[pc + 1]] = select(r[c[pc + 2]], r[c[pc + 3]], r[c[pc + 4]]);
+                    pc += 5;
+                    break;
+                case AND_THEN:
+                    if(FastMath.abs(r[c[pc + 2]]) > 0) {
+                        pc += 4;
+                    } else {
+                        r[c[pc + 1]] = 0;
+                        pc = c[pc + 3];
+                    }
+                    break;
+                case OR_ELSE:
+                    if(FastMath.abs(r[c[pc + 2]]) > 0) {
+                        r[c[pc + 1]] = 1;
+                        pc = c[pc + 3];
+                    } else {
+                        pc += 4;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + c[pc]);
+            }
+        }
+    }
+
+    /*
+     * Executes an IF instruction: "if condition, destination, elseTarget, endTarget". Mirrors Functions.IF: a NaN
+     * condition is the result, otherwise either the next instruction (then branch) or the else branch is executed.
+     */
+    private static int branch(double[] r, int[] c, int pc) {
+        double check = r[c[pc + 1]];
+        if(Double.isNaN(check)) {
+            r[c[pc + 2]] = check;
+            return c[pc + 4];
+        }
+        if(FastMath.abs(check) > 0) {
+            return pc + 5;
+        }
+        return c[pc + 3];
+    }
+
+    /*
+     * Executes a SELECT instruction: "select destination, condition, then, else". Both branches have already been
+     * computed, the condition is interpreted just like in Functions.IF.
+     */
+    static double select(double check, double then, double otherwise) {
+        if(Double.isNaN(check)) {
+            return check;
+        }
+        return FastMath.abs(check) > 0 ? then : otherwise;
+    }
+
+    private static double lessOrEqual(double a, double b) {
+        return a < b || FastMath.abs(a - b) < BinaryOperation.EPSILON ? 1 : 0;
+    }
+
+    private static double round(double a) {
+        return Double.isNaN(a) ? a : FastMath.round(a);
+    }
+
+    private static double pow(double a, double b) {
+        if(Double.isNaN(a)) {
+            return a;
+        }
+        if(Double.isNaN(b)) {
+            return b;
+        }
+        return FastMath.pow(a, b);
+    }
+
+    private static double unaryFunction(UnaryFunction function, double a) {
+        return Double.isNaN(a) ? a : function.eval(a);
+    }
+
+    private static double binaryFunction(BinaryFunction function, double a, double b) {
+        if(Double.isNaN(a)) {
+            return a;
+        }
+        if(Double.isNaN(b)) {
+            return b;
+        }
+        return function.eval(a, b);
+    }
+
+    /**
+     * Returns the number of registers used by this program.
+     *
+     * @return the number of registers (constants, variables and temporaries)
+     */
+    public int getNumberOfRegisters() {
+        return registers.length;
+    }
+
+    /**
+     * Returns the number of ints used to represent the instructions of this program.
+     *
+     * @return the length of the instruction stream
+     */
+    public int getCodeLength() {
+        return code.length;
+    }
+
+    /**
+     * Returns a listing of the instructions of this program.
+     *
+     * @return a disassembly of this program
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < variables.length; i++) {
+            sb.append("r").append(variableOffset + i).append(" = ").append(variables[i].getName()).append("\n");
+        }
+        for(int i = 0; i < variableOffset; i++) {
+            sb.append("r").append(i).append(" = ").append(registers[i]).append("\n");
+        }
+        int pc = 0;
+        while(pc < code.length) {
+            int length = instructionLength(code[pc]);
+            sb.append(pc).append(": ").append(MNEMONICS[code[pc]]);
+            for(int i = 1; i < length; i++) {
+                sb.append(" ").append(code[pc + i]);
+            }
+            sb.append("\n");
+            pc += length;
+        }
+        sb.append("return");
+        for(int result : results) {
+            sb.append(" r").append(result);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Determines the number of ints occupied by an instruction with the given opcode.
+     *
+     * @param opcode the opcode to check
+     * @return the length of the instruction including the opcode itself
+     */
+    static int instructionLength(int opcode) {
+        switch(opcode) {
+            case JUMP:
+                return 2;
+            case MOVE:
+            case CALL:
+                return 3;
+            case IF:
+            case BINARY_FUNCTION:
+            case SELECT:
+                return 5;
+            default:
+                return opcode >= SIN && opcode <= ROUND ? 3 : 4;
+        }
+    }
+}
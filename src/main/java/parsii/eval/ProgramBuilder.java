@@ -0,0 +1,470 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lowers an expression tree into a {@link Program}.
+ * <p>
+ * The registers of a program are laid out as follows: first all constants, then one register per variable, one
+ * register per {@link Temporary} of a {@link LetExpression}, one register per output of a {@link FusedKernel} and
+ * finally the temporaries. Temporaries are allocated like a stack: an expression which is computed into the temporary
+ * <tt>t</tt> may use all temporaries above <tt>t</tt> for its operands. Constants and variables are never copied
+ * into temporaries, but directly used as operands.
+ * <p>
+ * The logical operators <tt>&amp;&amp;</tt> and <tt>||</tt> short-circuit: AND_THEN and OR_ELSE skip the right
+ * operand, if the left one already determines the result. {@link BatchExpression} only skips the right operand if
+ * this holds for a whole block, otherwise the final AND or OR combines both operands per point.
+ * <p>
+ * If conditionals are blended, <tt>if</tt> is lowered into a SELECT instruction which picks one of both precomputed
+ * branches. Apart from the short-circuit operators, the resulting code is free of jumps, which is required by
+ * {@link BatchExpression}.
+ */
+final class ProgramBuilder {
+
+    static final Map<Function, Integer> INTRINSIC_OPCODES = new IdentityHashMap<>();
+
+    static {
+        INTRINSIC_OPCODES.put(Functions.SIN, Program.SIN);
+        INTRINSIC_OPCODES.put(Functions.SINH, Program.SINH);
+        INTRINSIC_OPCODES.put(Functions.COS, Program.COS);
+        INTRINSIC_OPCODES.put(Functions.COSH, Program.COSH);
+        INTRINSIC_OPCODES.put(Functions.TAN, Program.TAN);
+        INTRINSIC_OPCODES.put(Functions.TANH, Program.TANH);
+        INTRINSIC_OPCODES.put(Functions.ABS, Program.ABS);
+        INTRINSIC_OPCODES.put(Functions.ASIN, Program.ASIN);
+        INTRINSIC_OPCODES.put(Functions.ACOS, Program.ACOS);
+        INTRINSIC_OPCODES.put(Functions.ATAN, Program.ATAN);
+        INTRINSIC_OPCODES.put(Functions.FLOOR, Program.FLOOR);
+        INTRINSIC_OPCODES.put(Functions.CEIL, Program.CEIL);
+        INTRINSIC_OPCODES.put(Functions.SQRT, Program.SQRT);
+        INTRINSIC_OPCODES.put(Functions.CBRT, Program.CBRT);
+        INTRINSIC_OPCODES.put(Functions.EXP, Program.EXP);
+        INTRINSIC_OPCODES.put(Functions.LN, Program.LN);
+        INTRINSIC_OPCODES.put(Functions.LOG, Program.LOG);
+        INTRINSIC_OPCODES.put(Functions.SIGN, Program.SIGN);
+        INTRINSIC_OPCODES.put(Functions.DEG, Program.DEG);
+        INTRINSIC_OPCODES.put(Functions.RAD, Program.RAD);
+        INTRINSIC_OPCODES.put(Functions.ROUND, Program.ROUND);
+        INTRINSIC_OPCODES.put(Functions.ATAN2, Program.ATAN2);
+        INTRINSIC_OPCODES.put(Functions.MIN, Program.MIN);
+        INTRINSIC_OPCODES.put(Functions.MAX, Program.MAX);
+        INTRINSIC_OPCODES.put(Functions.POW, Program.POW);
+    }
+
+    private final boolean blendConditionals;
+    private final List<Double> constants = new ArrayList<>();
+    private final Map<Long, Integer> constantRegisters = new HashMap<>();
+    private final List<Variable> variables = new ArrayList<>();
+    private final List<Integer> variableSlots = new ArrayList<>();
+    private final Map<Variable, Integer> variableRegisters = new IdentityHashMap<>();
+    private final Map<Temporary, Integer> boundRegisters = new IdentityHashMap<>();
+    private final List<Function> functions = new ArrayList<>();
+    private final List<Expression> calls = new ArrayList<>();
+    private int[] code = new int[32];
+    private int codeLength = 0;
+    private int temporaryOffset;
+    private int numberOfTemporaries = 0;
+
+    /**
+     * Creates a new builder which lowers <tt>if</tt> into jumps.
+     */
+    ProgramBuilder() {
+        this(false);
+    }
+
+    /**
+     * Creates a new builder.
+     *
+     * @param blendConditionals determines if <tt>if</tt> is lowered into a SELECT of both branches instead of jumps
+     */
+    ProgramBuilder(boolean blendConditionals) {
+        this.blendConditionals = blendConditionals;
+    }
+
+    /**
+     * Lowers the given expression.
+     *
+     * @param expression the expression to lower
+     * @return the resulting program
+     */
+    Program build(Expression expression) {
+        collect(expression);
+        temporaryOffset = constants.size() + variables.size() + boundRegisters.size();
+        return createProgram(new int[]{emit(expression, 0)});
+    }
+
+    /**
+     * Lowers the given temporaries and expressions into a single program, whose results are the values of the
+     * expressions.
+     * <p>
+     * The temporaries are computed first. Use {@link #canKeepInRegisters(List, List)} to check if the expressions
+     * can be lowered along with their temporaries.
+     *
+     * @param temporaries the temporaries used by the expressions
+     * @param expressions the expressions to lower
+     * @return the resulting program
+     */
+    Program build(List<Temporary> temporaries, List<Expression> expressions) {
+        for(Temporary temporary : temporaries) {
+            boundRegisters.put(temporary, boundRegisters.size());
+            collect(temporary.getExpression());
+        }
+        for(Expression expression : expressions) {
+            collect(expression);
+        }
+        int outputOffset = constants.size() + variables.size() + boundRegisters.size();
+        temporaryOffset = outputOffset + expressions.size();
+        for(Temporary temporary : temporaries) {
+            emitInto(temporary.getExpression(), emit(temporary, 0), 0);
+        }
+        int[] results = new int[expressions.size()];
+        for(int i = 0; i < results.length; i++) {
+            results[i] = emit(expressions.get(i), 0);
+            if(results[i] >= temporaryOffset) {
+                append(Program.MOVE, outputOffset + i, results[i]);
+                results[i] = outputOffset + i;
+            }
+        }
+        return createProgram(results);
+    }
+
+    private Program createProgram(int[] results) {
+        double[] registers = new double[temporaryOffset + numberOfTemporaries];
+        for(int i = 0; i < constants.size(); i++) {
+            registers[i] = constants.get(i);
+        }
+        return new Program(Arrays.copyOf(code, codeLength),
+                           registers,
+                           variables.toArray(new Variable[0]),
+                           variableSlots.stream().mapToInt(Integer::intValue).toArray(),
+                           constants.size(),
+                           functions.toArray(new Function[0]),
+                           calls.toArray(new Expression[0]),
+                           results);
+    }
+
+    /*
+     * Collects all constants and variables, as their registers have to be known before any code is emitted.
+     */
+    private void collect(Expression expr) {
+        if(expr.isConstant()) {
+            double value = expr.evaluate();
+            constantRegisters.computeIfAbsent(Double.doubleToRawLongBits(value), bits -> {
+                constants.add(value);
+                return constants.size() - 1;
+            });
+        } else if(expr instanceof VariableReference) {
+            Variable variable = ((VariableReference) expr).getVariable();
+            if(!variableRegisters.containsKey(variable)) {
+                variableRegisters.put(variable, variables.size());
+                variables.add(variable);
+                variableSlots.add(((VariableReference) expr).getSlot());
+            }
+        } else if(expr instanceof BinaryOperation) {
+            collect(((BinaryOperation) expr).getLeft());
+            collect(((BinaryOperation) expr).getRight());
+        } else if(expr instanceof FunctionCall && isInlined((FunctionCall) expr)) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                collect(parameter);
+            }
+        } else if(expr instanceof LetExpression && isInlined((LetExpression) expr)) {
+            for(Temporary temporary : ((LetExpression) expr).getTemporaries()) {
+                boundRegisters.put(temporary, boundRegisters.size());
+                collect(temporary.getExpression());
+            }
+            collect(((LetExpression) expr).getBody());
+        }
+    }
+
+    /*
+     * The temporaries of a let expression are kept in registers. Therefore the let expression is evaluated via a
+     * CALL if a temporary is used by a part of the expression which is evaluated via a CALL itself.
+     */
+    private boolean isInlined(LetExpression let) {
+        return canKeepInRegisters(let.getTemporaries(), Collections.singletonList(let.getBody()));
+    }
+
+    /**
+     * Determines if the given temporaries can be kept in registers, which is the case unless a temporary is used by
+     * a part of an expression which is evaluated via a CALL.
+     *
+     * @param temporaries the temporaries to check
+     * @param expressions the expressions which use the temporaries
+     * @return <tt>true</tt> if the temporaries can be kept in registers, <tt>false</tt> otherwise
+     */
+    boolean canKeepInRegisters(List<Temporary> temporaries, List<Expression> expressions) {
+        for(Temporary temporary : temporaries) {
+            if(usesTemporariesInCalls(temporary.getExpression())) {
+                return false;
+            }
+        }
+        for(Expression expression : expressions) {
+            if(usesTemporariesInCalls(expression)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean usesTemporariesInCalls(Expression expr) {
+        if(expr instanceof BinaryOperation) {
+            return usesTemporariesInCalls(((BinaryOperation) expr).getLeft())
+                   || usesTemporariesInCalls(((BinaryOperation) expr).getRight());
+        }
+        if(expr instanceof FunctionCall && isInlined((FunctionCall) expr)) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                if(usesTemporariesInCalls(parameter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return !(expr instanceof Temporary) && usesTemporaries(expr);
+    }
+
+    private static boolean usesTemporaries(Expression expr) {
+        if(expr instanceof Temporary) {
+            return true;
+        }
+        if(expr instanceof BinaryOperation) {
+            return usesTemporaries(((BinaryOperation) expr).getLeft())
+                   || usesTemporaries(((BinaryOperation) expr).getRight());
+        }
+        if(expr instanceof FunctionCall) {
+            for(Expression parameter : ((FunctionCall) expr).getParameters()) {
+                if(usesTemporaries(parameter)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isInlined(FunctionCall call) {
+        Function function = call.getFunction();
+        return function == Functions.IF
+               || INTRINSIC_OPCODES.containsKey(function)
+               || function instanceof UnaryFunction
+               || function instanceof BinaryFunction;
+    }
+
+    /*
+     * Emits the code to compute the given expression into the given temporary. Returns the register which contains
+     * the result, which is the register of the constant or variable for leaf nodes.
+     */
+    private int emit(Expression expr, int temporary) {
+        if(expr.isConstant()) {
+            return constantRegisters.get(Double.doubleToRawLongBits(expr.evaluate()));
+        }
+        if(expr instanceof VariableReference) {
+            return constants.size() + variableRegisters.get(((VariableReference) expr).getVariable());
+        }
+        if(boundRegisters.containsKey(expr)) {
+            return constants.size() + variables.size() + boundRegisters.get(expr);
+        }
+        if(expr instanceof LetExpression && isInlined((LetExpression) expr)) {
+            for(Temporary bound : ((LetExpression) expr).getTemporaries()) {
+                emitInto(bound.getExpression(), emit(bound, temporary), temporary);
+            }
+            return emit(((LetExpression) expr).getBody(), temporary);
+        }
+
+        int target = useTemporary(temporary);
+        if(expr instanceof BinaryOperation) {
+            emitBinaryOperation((BinaryOperation) expr, target, temporary);
+        } else if(expr instanceof FunctionCall && isInlined((FunctionCall) expr)) {
+            emitFunctionCall((FunctionCall) expr, target, temporary);
+        } else if(expr instanceof FunctionCall) {
+            append(Program.CALL, target, calls.size());
+            calls.add(lowerParameters((FunctionCall) expr));
+        } else {
+            append(Program.CALL, target, calls.size());
+            calls.add(expr);
+        }
+        return target;
+    }
+
+    private int useTemporary(int temporary) {
+        numberOfTemporaries = Math.max(numberOfTemporaries, temporary + 1);
+        return temporaryOffset + temporary;
+    }
+
+    /*
+     * Functions which are invoked via Function.eval(List) receive their arguments as programs of their own.
+     */
+    private Expression lowerParameters(FunctionCall call) {
+        FunctionCall result = new FunctionCall();
+        result.setFunction(call.getFunction());
+        for(Expression parameter : call.getParameters()) {
+            if(parameter instanceof Constant || parameter instanceof VariableReference) {
+                result.addParameter(parameter);
+            } else {
+                result.addParameter(Program.compile(parameter));
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("squid:MethodCyclomaticComplexity")
+    private void emitBinaryOperation(BinaryOperation operation, int target, int temporary) {
+        BinaryOperation.Op op = operation.getOp();
+        if(op == BinaryOperation.Op.AND || op == BinaryOperation.Op.OR) {
+            emitShortCircuit(operation, target, temporary);
+            return;
+        }
+        int left = emit(operation.getLeft(), temporary);
+        int right = emit(operation.getRight(), left == target ? temporary + 1 : temporary);
+        append(opcode(operation.getOp()), target, left, right);
+    }
+
+    @SuppressWarnings("squid:MethodCyclomaticComplexity")
+    private int opcode(BinaryOperation.Op op) {
+        switch(op) {
+            case ADD:
+                return Program.ADD;
+            case SUBTRACT:
+                return Program.SUBTRACT;
+            case MULTIPLY:
+                return Program.MULTIPLY;
+            case DIVIDE:
+                return Program.DIVIDE;
+            case MODULO:
+                return Program.MODULO;
+            case POWER:
+                return Program.POWER;
+            case LT:
+                return Program.LT;
+            case LT_EQ:
+                return Program.LT_EQ;
+            case EQ:
+                return Program.EQ;
+            case GT_EQ:
+                return Program.GT_EQ;
+            case GT:
+                return Program.GT;
+            case NEQ:
+                return Program.NEQ;
+            case AND:
+                return Program.AND;
+            case OR:
+                return Program.OR;
+            default:
+                throw new UnsupportedOperationException(String.valueOf(op));
+        }
+    }
+
+    private void emitFunctionCall(FunctionCall call, int target, int temporary) {
+        Function function = call.getFunction();
+        List<Expression> parameters = call.getParameters();
+        if(function == Functions.IF && blendConditionals) {
+            emitSelect(parameters, target, temporary);
+            return;
+        }
+        if(function == Functions.IF) {
+            emitIf(parameters, target, temporary);
+            return;
+        }
+
+        int first = emit(parameters.get(0), temporary);
+        if(parameters.size() == 1) {
+            Integer opcode = INTRINSIC_OPCODES.get(function);
+            if(opcode != null) {
+                append(opcode, target, first);
+            } else {
+                append(Program.UNARY_FUNCTION, target, functionIndex(function), first);
+            }
+            return;
+        }
+
+        int second = emit(parameters.get(1), first == target ? temporary + 1 : temporary);
+        Integer opcode = INTRINSIC_OPCODES.get(function);
+        if(opcode != null) {
+            append(opcode, target, first, second);
+        } else {
+            append(Program.BINARY_FUNCTION, target, functionIndex(function), first, second);
+        }
+    }
+
+    private int functionIndex(Function function) {
+        int index = functions.indexOf(function);
+        if(index >= 0) {
+            return index;
+        }
+        functions.add(function);
+        return functions.size() - 1;
+    }
+
+    /*
+     * Emits: if condition, target, elseTarget, endTarget; <then branch>; jump endTarget; <else branch>
+     */
+    private void emitIf(List<Expression> parameters, int target, int temporary) {
+        int condition = emit(parameters.get(0), temporary);
+        int ifInstruction = codeLength;
+        append(Program.IF, condition, target, -1, -1);
+        emitInto(parameters.get(1), target, temporary);
+        int jumpInstruction = codeLength;
+        append(Program.JUMP, -1);
+        code[ifInstruction + 3] = codeLength;
+        emitInto(parameters.get(2), target, temporary);
+        code[ifInstruction + 4] = codeLength;
+        code[jumpInstruction + 1] = codeLength;
+    }
+
+    /*
+     * Emits: <left>; and_then/or_else target, left, endTarget; <right>; and/or target, left, right
+     */
+    private void emitShortCircuit(BinaryOperation operation, int target, int temporary) {
+        int left = emit(operation.getLeft(), temporary);
+        int shortCircuitInstruction = codeLength;
+        append(operation.getOp() == BinaryOperation.Op.AND ? Program.AND_THEN : Program.OR_ELSE, target, left, -1);
+        int right = emit(operation.getRight(), left == target ? temporary + 1 : temporary);
+        append(opcode(operation.getOp()), target, left, right);
+        code[shortCircuitInstruction + 3] = codeLength;
+    }
+
+    /*
+     * Emits: <condition>; <then branch>; <else branch>; select target, condition, then, else
+     */
+    private void emitSelect(List<Expression> parameters, int target, int temporary) {
+        int condition = emit(parameters.get(0), temporary);
+        int nextTemporary = condition == target ? temporary + 1 : temporary;
+        int then = emit(parameters.get(1), nextTemporary);
+        if(then == temporaryOffset + nextTemporary) {
+            nextTemporary++;
+        }
+        int otherwise = emit(parameters.get(2), nextTemporary);
+        append(Program.SELECT, target, condition, then, otherwise);
+    }
+
+    /*
+     * Emits the code to compute the given expression and ensures that the result ends up in the given register.
+     */
+    private void emitInto(Expression expr, int target, int temporary) {
+        int register = emit(expr, temporary);
+        if(register != target) {
+            append(Program.MOVE, target, register);
+        }
+    }
+
+    private void append(int... instruction) {
+        if(codeLength + instruction.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, codeLength + instruction.length));
+        }
+        System.arraycopy(instruction, 0, code, codeLength, instruction.length);
+        codeLength += instruction.length;
+    }
+}
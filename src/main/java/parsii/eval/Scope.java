@@ -12,6 +12,7 @@ import net.jafama.FastMath;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,12 +28,18 @@ import java.util.concurrent.ConcurrentHashMap;
  * only needs to be resolved once. Modifying it and especially reading it when evaluating an expression is as
  * cheap as a simple field access. The second advantage is that scopes can be chained. So variables can be either
  * shared by two expression or kept separate, if required.
+ * <p>
+ * Additionally a scope assigns a dense slot index to each variable created or resolved by it. This defines the
+ * layout of the frames accepted by {@link Expression#evaluate(double[])}, which permits to evaluate a single
+ * expression by several threads at once, each providing the variable values in a frame of its own.
  */
 public class Scope {
     private static Scope root;
     private Scope parent;
     private boolean autocreateVariables = true;
     private final Map<String, Variable> context = new ConcurrentHashMap<>();
+    private final List<Variable> slots = new ArrayList<>();
+    private final Map<Variable, Integer> slotIndex = new IdentityHashMap<>();
 
     /**
      * Creates a new empty scope.
@@ -52,6 +59,13 @@ public class Scope {
         }
     }
 
+    /*
+     * Creates a scope without parent, in which even the names of the well known constants are plain variables.
+     */
+    static Scope createDetached() {
+        return new Scope(true);
+    }
+
     /*
      * Creates the internal root scope which contains eternal constants ;-)
      */
@@ -118,6 +132,7 @@ public class Scope {
         }
         Variable result = new Variable(name);
         context.put(name, result);
+        getSlot(result);
 
         return result;
     }
@@ -162,6 +177,61 @@ public class Scope {
         return create(name);
     }
 
+    /**
+     * Returns the slot of the given variable within the frames of this scope.
+     * <p>
+     * If the variable has no slot in this scope yet (e.g. as it was created by a parent scope), the next free slot is
+     * assigned. Slots are never re-used, even if a variable is removed.
+     *
+     * @param variable the variable to determine the slot for
+     * @return the index at which the value of the variable is stored in a frame of this scope
+     */
+    public synchronized int getSlot(Variable variable) {
+        Integer slot = slotIndex.get(variable);
+        if(slot != null) {
+            return slot;
+        }
+        slotIndex.put(variable, slots.size());
+        slots.add(variable);
+        return slots.size() - 1;
+    }
+
+    /**
+     * Returns the variable stored in the given slot.
+     *
+     * @param slot the slot to lookup
+     * @return the variable which has been assigned to the given slot
+     * @throws IndexOutOfBoundsException if no variable has been assigned to the given slot
+     */
+    public synchronized Variable getSlotVariable(int slot) {
+        return slots.get(slot);
+    }
+
+    /**
+     * Returns the number of slots assigned so far.
+     *
+     * @return the minimal length of a frame for expressions parsed using this scope
+     */
+    public synchronized int getFrameSize() {
+        return slots.size();
+    }
+
+    /**
+     * Creates a new frame which contains the current values of all variables which have a slot in this scope.
+     * <p>
+     * The returned frame can be passed to {@link Expression#evaluate(double[])} for all expressions which have been
+     * parsed using this scope. Modifying the frame does not modify any variable and vice versa.
+     *
+     * @return a new frame filled with the current values of all variables
+     */
+    public synchronized double[] createFrame() {
+        double[] frame = new double[slots.size()];
+        for(int i = 0; i < frame.length; i++) {
+            frame[i] = slots.get(i).getValue();
+        }
+        return frame;
+    }
+
     /**
      * Removes the variable with the given name from this scope.
      * <p>
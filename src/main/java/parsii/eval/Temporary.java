@@ -0,0 +1,65 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a value which is computed once per evaluation by the enclosing {@link LetExpression}.
+ * <p>
+ * The let expression stores the value of the temporary in its frame at the slot of the temporary, which is read by
+ * {@link #evaluate(double[])}. Evaluating a temporary without a frame computes its expression again.
+ */
+public class Temporary implements Expression {
+
+    private final Expression expression;
+    private final int slot;
+
+    /**
+     * Creates a new temporary which holds the value of the given expression.
+     *
+     * @param expression the expression to compute the value of the temporary
+     * @param slot       the slot in frames which holds the value of the temporary
+     */
+    public Temporary(Expression expression, int slot) {
+        this.expression = expression;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the expression which computes the value of this temporary.
+     *
+     * @return the expression of this temporary
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Returns the slot in frames which holds the value of this temporary.
+     *
+     * @return the slot of this temporary
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public double evaluate() {
+        return expression.evaluate();
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return frame[slot];
+    }
+
+    @Override
+    public String toString() {
+        return "$" + slot;
+    }
+}
@@ -31,6 +31,15 @@ public abstract class UnaryFunction implements Function {
         return eval(a);
     }
 
+    @Override
+    public double eval(List<Expression> args, double[] frame) {
+        double a = args.get(0).evaluate(frame);
+        if(Double.isNaN(a)) {
+            return a;
+        }
+        return eval(a);
+    }
+
     /**
      * Performs the computation of the unary function
      *
@@ -16,12 +16,16 @@ package parsii.eval;
  * to be resolved once. Reading and writing it, is basically as cheap as a field access.
  * <p>
  * A variable can be made constant, which will fail all further attempts to change it.
+ * <p>
+ * Each variable counts how often a value was assigned (see {@link #getVersion()}), which permits to detect if
+ * anything a cached result depends on was modified (see {@link MemoizedExpression}).
  */
 public class Variable {
 
     private final String name;
     private double value = 0d;
     private boolean constant = false;
+    private long version = 0;
 
     /**
      * Creates a new variable.
@@ -65,6 +69,19 @@ public class Variable {
             throw new IllegalStateException(String.format("%s is constant!", name));
         }
         this.value = value;
+        version++;
+    }
+
+    /**
+     * Returns the number of times a value was assigned to this variable.
+     * <p>
+     * Each assignment counts as modification, even if the variable already had the given value. This keeps
+     * {@link #setValue(double)} as cheap as possible, as it is called far more often than the version is checked.
+     *
+     * @return the modification counter of this variable
+     */
+    public long getVersion() {
+        return version;
     }
 
     /**
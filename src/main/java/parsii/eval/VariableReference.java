@@ -14,14 +14,47 @@ package parsii.eval;
 public class VariableReference implements Expression {
 
     private final Variable var;
+    private final int slot;
 
     /**
      * Creates a new reference to the given variable.
+     * <p>
+     * As no slot is known, {@link #evaluate(double[])} will read the variable itself instead of a frame.
      *
      * @param var the variable to access when this expression is evaluated
      */
     public VariableReference(Variable var) {
+        this(var, -1);
+    }
+
+    /**
+     * Creates a new reference to the given variable which reads frames at the given slot.
+     *
+     * @param var  the variable to access when this expression is evaluated
+     * @param slot the slot of the variable in frames (as determined by {@link Scope#getSlot(Variable)}) or -1 to
+     *             always read the variable itself
+     */
+    public VariableReference(Variable var, int slot) {
         this.var = var;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the variable which is accessed by this reference.
+     *
+     * @return the referenced variable
+     */
+    public Variable getVariable() {
+        return var;
+    }
+
+    /**
+     * Returns the slot in frames which is read by {@link #evaluate(double[])}.
+     *
+     * @return the slot of the variable or -1 if the variable itself is read
+     */
+    public int getSlot() {
+        return slot;
     }
 
     @Override
@@ -29,11 +62,37 @@ public class VariableReference implements Expression {
         return var.getName();
     }
 
+    /**
+     * Two references are equal if they refer to the same variable using the same slot.
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is a reference to the same variable, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof VariableReference
+               && ((VariableReference) obj).var == var
+               && ((VariableReference) obj).slot == slot;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(var) * 31 + slot;
+    }
+
     @Override
     public double evaluate() {
         return var.getValue();
     }
 
+    @Override
+    public double evaluate(double[] frame) {
+        if(slot < 0) {
+            return var.getValue();
+        }
+        return frame[slot];
+    }
+
 
     @Override
     public boolean isConstant() {
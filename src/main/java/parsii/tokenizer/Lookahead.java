@@ -23,8 +23,10 @@ import java.util.List;
 public abstract class Lookahead<T> {
     /**
      * Internal buffer containing items which where already created due to lookaheads.
+     * <p>
+     * This is a circular buffer, so that consuming the current item doesn't shift all buffered items.
      */
-    protected List<T> itemBuffer = new ArrayList<>();
+    protected List<T> itemBuffer = new RingBuffer<>();
 
     /**
      * Determines if the end of the underlying data source has been reached.
@@ -157,6 +159,17 @@ public abstract class Lookahead<T> {
         }
     }
 
+    /**
+     * Discards all buffered items and the end of input indicator, so that the stream can be re-used for a new input.
+     * <p>
+     * The problem collector is kept as is.
+     */
+    protected void reset() {
+        itemBuffer.clear();
+        endReached = false;
+        endOfInputIndicator = null;
+    }
+
     /**
      * Provides access to the problem collector used by this instance.
      *
@@ -16,12 +16,21 @@ import java.io.Reader;
 /**
  * An efficient reader of character streams, reading character by character and supporting lookaheads.
  * <p>
- * Helps to read characters from a {@link Reader} one after another. Using <tt>next</tt>, upcoming characters can
- * be inspected without consuming (removing) the current one.
+ * Helps to read characters from a {@link Reader} or a {@link CharSequence} one after another. Using <tt>next</tt>,
+ * upcoming characters can be inspected without consuming (removing) the current one.
+ * <p>
+ * A character sequence is read in place: instead of buffering a {@link Char} per character, only an index into the
+ * sequence is kept. {@link #peek(int)} and {@link #consume(int)} operate on this index directly, whereas
+ * {@link #next(int)} creates a <tt>Char</tt> on demand. Its line and position are computed only then, so that an
+ * input which is only inspected via <tt>peek</tt> is processed without allocating anything per character.
+ * <p>
+ * Using {@link #reset(CharSequence)} a reader can be re-used for another input, without allocating a new buffer.
  */
 public class LookaheadReader extends Lookahead<Char> {
 
-    private final Reader input;
+    private Reader input;
+    private CharSequence chars;
+    private int index;
     private int line = 1;
     private int pos = 0;
 
@@ -40,6 +49,103 @@ public class LookaheadReader extends Lookahead<Char> {
         this.input = new BufferedReader(input);
     }
 
+    /**
+     * Creates a new LookaheadReader for the given character sequence.
+     * <p>
+     * The characters are read directly from the given sequence, which must not be modified while being read.
+     *
+     * @param input the characters to read
+     */
+    public LookaheadReader(CharSequence input) {
+        reset(input);
+    }
+
+    /**
+     * Discards the current input and starts to read the given character sequence.
+     *
+     * @param input the characters to read from now on
+     */
+    public void reset(CharSequence input) {
+        if(input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        reset();
+        this.input = null;
+        this.chars = input;
+        this.index = 0;
+        // For a character sequence, pos contains the index of the last consumed line break (or 0)
+        this.line = 1;
+        this.pos = 0;
+    }
+
+    /**
+     * Returns the value of the next n-th character.
+     * <p>
+     * In contrast to {@link #next(int)}, this doesn't create a {@link Char} when reading a character sequence.
+     *
+     * @param offset the number of characters to skip
+     * @return the value of the n-th character or <tt>\0</tt> if the end of the input was reached
+     */
+    public char peek(int offset) {
+        if(chars == null) {
+            return next(offset).getValue();
+        }
+        if(offset < 0) {
+            throw new IllegalArgumentException("offset < 0");
+        }
+        int at = index + offset;
+        return at < chars.length() ? chars.charAt(at) : '\0';
+    }
+
+    @Override
+    public Char next(int offset) {
+        if(chars == null) {
+            return super.next(offset);
+        }
+        if(offset < 0) {
+            throw new IllegalArgumentException("offset < 0");
+        }
+        int at = index + offset;
+        if(at >= chars.length()) {
+            // Just like for a reader, the end of input is located at the last character
+            return at == 0 ? new Char('\0', 1, 0) : charAt(chars.length() - 1, '\0');
+        }
+        return charAt(at, chars.charAt(at));
+    }
+
+    /*
+     * Creates a Char for the given index, determining its line and position relative to the last consumed line break.
+     */
+    private Char charAt(int at, char value) {
+        int charLine = line;
+        int lineStart = pos;
+        for(int i = index; i <= at; i++) {
+            if(chars.charAt(i) == '\n') {
+                charLine++;
+                lineStart = i;
+            }
+        }
+        return new Char(value, charLine, at - lineStart + 1);
+    }
+
+    @Override
+    public void consume(int numberOfItems) {
+        if(chars == null) {
+            super.consume(numberOfItems);
+            return;
+        }
+        if(numberOfItems < 0) {
+            throw new IllegalArgumentException("numberOfItems < 0");
+        }
+        int end = Math.min(chars.length(), index + numberOfItems);
+        for(; index < end; index++) {
+            if(chars.charAt(index) == '\n') {
+                line++;
+                pos = index;
+            }
+        }
+    }
+
     @Override
     protected Char fetch() {
         try {
@@ -66,6 +172,9 @@ public class LookaheadReader extends Lookahead<Char> {
 
     @Override
     public String toString() {
+        if(chars != null) {
+            return "Index " + index + ": " + current();
+        }
         if(itemBuffer.isEmpty()) {
             return line + ":" + pos + ": Buffer empty";
         }
@@ -0,0 +1,136 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.tokenizer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list backed by a circular array, which adds and removes items at either end in constant time.
+ * <p>
+ * Used as buffer by {@link Lookahead}, which appends fetched items and removes consumed items from the front. An
+ * {@link java.util.ArrayList} would have to shift all remaining items on each removal. The capacity is always a power
+ * of two and grows as needed, so that arbitrary lookaheads are still supported. As the buffer is visible to
+ * subclasses of <tt>Lookahead</tt>, it implements the full (modifiable) list contract: inserting or removing an item
+ * in the middle shifts the items between the given index and the nearer end.
+ *
+ * @param <T> the type of the buffered items
+ */
+class RingBuffer<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] items = new Object[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        checkIndex(index, size);
+        return (T) items[slot(index)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T set(int index, T item) {
+        checkIndex(index, size);
+        int slot = slot(index);
+        T result = (T) items[slot];
+        items[slot] = item;
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(T item) {
+        if(size == items.length) {
+            grow();
+        }
+        items[slot(size)] = item;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, T item) {
+        checkIndex(index, size + 1);
+        if(size == items.length) {
+            grow();
+        }
+        int mask = items.length - 1;
+        if(index < size / 2) {
+            head = (head - 1) & mask;
+            for(int i = 0; i < index; i++) {
+                items[slot(i)] = items[slot(i + 1)];
+            }
+        } else {
+            for(int i = size; i > index; i--) {
+                items[slot(i)] = items[slot(i - 1)];
+            }
+        }
+        items[slot(index)] = item;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public T remove(int index) {
+        T result = get(index);
+        int mask = items.length - 1;
+        if(index < size / 2) {
+            for(int i = index; i > 0; i--) {
+                items[slot(i)] = items[slot(i - 1)];
+            }
+            items[head] = null;
+            head = (head + 1) & mask;
+        } else {
+            for(int i = index; i < size - 1; i++) {
+                items[slot(i)] = items[slot(i + 1)];
+            }
+            items[slot(size - 1)] = null;
+        }
+        size--;
+        modCount++;
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(items, null);
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    private int slot(int index) {
+        return (head + index) & (items.length - 1);
+    }
+
+    private void grow() {
+        Object[] newItems = new Object[items.length * 2];
+        int firstPart = items.length - head;
+        System.arraycopy(items, head, newItems, 0, firstPart);
+        System.arraycopy(items, 0, newItems, firstPart, head);
+        items = newItems;
+        head = 0;
+    }
+
+    private void checkIndex(int index, int bound) {
+        if(index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
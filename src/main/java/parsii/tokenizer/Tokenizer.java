@@ -83,6 +83,11 @@ public class Tokenizer extends Lookahead<Token> {
      * Contains the underlying input
      */
     protected LookaheadReader input;
+    /*
+     * Collect the contents and the source of identifiers and numbers, so that only one string is created per token
+     */
+    private final StringBuilder buffer = new StringBuilder();
+    private final StringBuilder sourceBuffer = new StringBuilder();
     /*
      * Decimal separator used when detecting decimal numbers
      */
@@ -112,6 +117,20 @@ public class Tokenizer extends Lookahead<Token> {
      */
     private boolean keywordsCaseSensitive = false;
 
+    /*
+     * Determines for each subclass if it overrides isIdentifierChar(Char) or isSymbolCharacter(Char). The tokenizer
+     * itself uses the char based methods, unless a subclass customizes the Char based ones.
+     */
+    private static final ClassValue<boolean[]> OVERRIDDEN_CHAR_HOOKS = new ClassValue<boolean[]>() {
+        @Override
+        protected boolean[] computeValue(Class<?> type) {
+            return new boolean[]{overrides(type, "isIdentifierChar"), overrides(type, "isSymbolCharacter")};
+        }
+    };
+
+    private final boolean identifierCharOverridden;
+    private final boolean symbolCharacterOverridden;
+
     /**
      * Creates a new tokenizer for the given input
      *
@@ -119,14 +138,55 @@ public class Tokenizer extends Lookahead<Token> {
      *              read character b character.
      */
     public Tokenizer(Reader input) {
-        this.input = new LookaheadReader(input);
+        this(new LookaheadReader(input));
+    }
+
+    /**
+     * Creates a new tokenizer for the given character sequence.
+     *
+     * @param input the input to parse, which must not be modified while being tokenized
+     */
+    public Tokenizer(CharSequence input) {
+        this(new LookaheadReader(input));
+    }
+
+    private Tokenizer(LookaheadReader input) {
+        this.input = input;
         this.input.setProblemCollector(problemCollector);
+        boolean[] overriddenHooks = OVERRIDDEN_CHAR_HOOKS.get(getClass());
+        this.identifierCharOverridden = overriddenHooks[0];
+        this.symbolCharacterOverridden = overriddenHooks[1];
 
         // Setup default string handling
         addStringDelimiter('"', '\\');
         addStringDelimiter('\'', '\0');
     }
 
+    private static boolean overrides(Class<?> type, String name) {
+        for(Class<?> current = type; current != Tokenizer.class; current = current.getSuperclass()) {
+            try {
+                current.getDeclaredMethod(name, Char.class);
+                return true;
+            } catch(NoSuchMethodException e) {
+                // Check the superclass...
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discards the current input (along with all buffered tokens) and starts to tokenize the given one.
+     * <p>
+     * All settings (keywords, separators, ...) and the problem collector are kept, so that a tokenizer can be
+     * re-used for many inputs, without being set up again.
+     *
+     * @param input the input to parse from now on, which must not be modified while being tokenized
+     */
+    public void reset(CharSequence input) {
+        this.input.reset(input);
+        reset();
+    }
+
     /**
      * Adds a new string delimiter character along with the character used to escape string within it.
      *
@@ -146,12 +206,12 @@ public class Tokenizer extends Lookahead<Token> {
     @Override
     protected Token fetch() {
         // Fetch and ignore any whitespace
-        while(input.current().isWhitepace()) {
-            input.consume();
+        while(Character.isWhitespace(input.peek(0))) {
+            input.consume(1);
         }
 
         // End of input reached? Pass end of input signal on...
-        if(input.current().isEndOfInput()) {
+        if(input.peek(0) == '\0') {
             return null;
         }
 
@@ -178,7 +238,7 @@ public class Tokenizer extends Lookahead<Token> {
         }
 
         // A " or ' (or whatever string delimiters are used...) start a string constant
-        if(stringDelimiters.containsKey(input.current().getValue())) {
+        if(stringDelimiters.containsKey(input.peek(0))) {
             return fetchString();
         }
 
@@ -194,7 +254,7 @@ public class Tokenizer extends Lookahead<Token> {
         }
 
         // Read all symbol characters and form a SYMBOL of it
-        if(isSymbolCharacter(input.current())) {
+        if(isAtSymbolCharacter()) {
             return fetchSymbol();
         }
 
@@ -219,7 +279,7 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the current input is the start of a special id, <tt>false</tt> otherwise
      */
     protected boolean isAtStartOfSpecialId() {
-        return specialIdStarters.contains(input.current().getValue());
+        return specialIdStarters.contains(input.peek(0));
     }
 
     /**
@@ -231,10 +291,11 @@ public class Tokenizer extends Lookahead<Token> {
      */
     @SuppressWarnings("squid:S1067")
     protected boolean isAtStartOfNumber() {
-        return input.current().isDigit()
-                || input.current().is('-') && input.next().isDigit()
-                || input.current().is('-') && input.next().is('.') && input.next(2).isDigit()
-                || input.current().is('.') && input.next().isDigit();
+        char current = input.peek(0);
+        return Character.isDigit(current)
+                || current == '-' && Character.isDigit(input.peek(1))
+                || current == '-' && input.peek(1) == '.' && Character.isDigit(input.peek(2))
+                || current == '.' && Character.isDigit(input.peek(1));
     }
 
     /**
@@ -248,10 +309,13 @@ public class Tokenizer extends Lookahead<Token> {
      */
     @SuppressWarnings("squid:S1067")
     protected boolean isAtBracket(boolean inSymbol) {
-        return input.current().is(brackets) || !inSymbol
-                && treatSinglePipeAsBracket
-                && input.current().is('|')
-                && !input.next().is('|');
+        char current = input.peek(0);
+        for(char bracket : brackets) {
+            if(current == bracket) {
+                return true;
+            }
+        }
+        return !inSymbol && treatSinglePipeAsBracket && current == '|' && input.peek(1) != '|';
     }
 
     /**
@@ -267,7 +331,8 @@ public class Tokenizer extends Lookahead<Token> {
             return false;
         }
         for(int i = 0; i < string.length(); i++) {
-            if(!input.next(i).is(string.charAt(i))) {
+            char expected = string.charAt(i);
+            if(expected == '\0' || input.peek(i) != expected) {
                 return false;
             }
         }
@@ -298,8 +363,8 @@ public class Tokenizer extends Lookahead<Token> {
      * Read everything upon (and including) the next line break
      */
     protected void skipToEndOfLine() {
-        while(!input.current().isEndOfInput() && !input.current().isNewLine()) {
-            input.consume();
+        while(input.peek(0) != '\0' && input.peek(0) != '\n') {
+            input.consume(1);
         }
     }
 
@@ -331,11 +396,11 @@ public class Tokenizer extends Lookahead<Token> {
      * Checks if we're looking at an end of block comment
      */
     protected void skipBlockComment() {
-        while(!input.current().isEndOfInput()) {
+        while(input.peek(0) != '\0') {
             if(isAtEndOfBlockComment()) {
                 return;
             }
-            input.consume();
+            input.consume(1);
         }
         problemCollector.add(ParseError.error(input.current(), "Premature end of block comment"));
     }
@@ -411,7 +476,7 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the underlying input is looking at a valid identifier starter, <tt>false</tt> otherwise
      */
     protected boolean isAtStartOfIdentifier() {
-        return input.current().isLetter();
+        return Character.isLetter(input.peek(0));
     }
 
     /**
@@ -421,10 +486,14 @@ public class Tokenizer extends Lookahead<Token> {
      */
     protected Token fetchId() {
         Token result = Token.create(Token.TokenType.ID, input.current());
-        result.addToContent(input.consume());
-        while(isIdentifierChar(input.current())) {
-            result.addToContent(input.consume());
-        }
+        buffer.setLength(0);
+        do {
+            buffer.append(input.peek(0));
+            input.consume(1);
+        } while(isAtIdentifierChar());
+        String id = buffer.toString();
+        result.setContent(id);
+        result.setSource(id);
         if(!input.current().isEndOfInput() && specialIdTerminators.contains(input.current().getValue())) {
             Token specialId = Token.create(Token.TokenType.SPECIAL_ID, result);
             specialId.setTrigger(input.current().getStringValue());
@@ -468,7 +537,25 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the given Char is a valid identifier part, <tt>false</tt> otherwise
      */
     protected boolean isIdentifierChar(Char current) {
-        return current.isDigit() || current.isLetter() || current.is('_');
+        return !current.isEndOfInput() && isIdentifierChar(current.getValue());
+    }
+
+    /**
+     * Determines if the given character is a valid identifier part.
+     * <p>
+     * By default, letters, digits and '_' are valid identifier parts. This is used by the tokenizer itself, unless a
+     * subclass overrides {@link #isIdentifierChar(Char)}. Overriding this method is preferred, as the tokenizer
+     * otherwise has to create a <tt>Char</tt> for each character.
+     *
+     * @param current the character to check
+     * @return <tt>true</tt> if the given character is a valid identifier part, <tt>false</tt> otherwise
+     */
+    protected boolean isIdentifierChar(char current) {
+        return Character.isDigit(current) || Character.isLetter(current) || current == '_';
+    }
+
+    private boolean isAtIdentifierChar() {
+        return identifierCharOverridden ? isIdentifierChar(input.current()) : isIdentifierChar(input.peek(0));
     }
 
     /**
@@ -479,8 +566,9 @@ public class Tokenizer extends Lookahead<Token> {
     protected Token fetchSpecialId() {
         Token result = Token.create(Token.TokenType.SPECIAL_ID, input.current());
         result.addToTrigger(input.consume());
-        while(isIdentifierChar(input.current())) {
-            result.addToContent(input.consume());
+        while(isAtIdentifierChar()) {
+            result.addToContent(input.peek(0));
+            input.consume(1);
         }
         return handleKeywords(result);
     }
@@ -496,13 +584,21 @@ public class Tokenizer extends Lookahead<Token> {
     @SuppressWarnings("squid:S1067")
     protected Token fetchSymbol() {
         Token result = Token.create(Token.TokenType.SYMBOL, input.current());
-        result.addToTrigger(input.consume());
-        if(result.isSymbol("*") && input.current().is('*')
-                || result.isSymbol("&") && input.current().is('&')
-                || result.isSymbol("|") && input.current().is('|')
-                || result.isSymbol() && input.current().is('=')) {
-            result.addToTrigger(input.consume());
+        char first = input.peek(0);
+        char second = input.peek(1);
+        String symbol;
+        if(first == '*' && second == '*'
+                || first == '&' && second == '&'
+                || first == '|' && second == '|'
+                || second == '=') {
+            symbol = new String(new char[]{first, second});
+            input.consume(2);
+        } else {
+            symbol = String.valueOf(first);
+            input.consume(1);
         }
+        result.setTrigger(symbol);
+        result.setSource(symbol);
         return result;
     }
 
@@ -516,11 +612,25 @@ public class Tokenizer extends Lookahead<Token> {
      */
     @SuppressWarnings("squid:S1067")
     protected boolean isSymbolCharacter(Char ch) {
-        if(ch.isEndOfInput() || ch.isDigit() || ch.isLetter() || ch.isWhitepace()) {
+        return !ch.isEndOfInput() && isSymbolCharacter(ch.getValue());
+    }
+
+    /**
+     * Determines if the given character (which is the current character of the input) is a symbol character.
+     * <p>
+     * See {@link #isSymbolCharacter(Char)}. This is used by the tokenizer itself, unless a subclass overrides
+     * {@link #isSymbolCharacter(Char)}. Overriding this method is preferred, as the tokenizer otherwise has to create
+     * a <tt>Char</tt> for each symbol.
+     *
+     * @param c the character to check
+     * @return <tt>true</tt> if the given character is a valid symbol character, <tt>false</tt> otherwise
+     */
+    @SuppressWarnings("squid:S1067")
+    protected boolean isSymbolCharacter(char c) {
+        if(c == '\0' || Character.isDigit(c) || Character.isLetter(c) || Character.isWhitespace(c)) {
             return false;
         }
 
-        char c = ch.getValue();
         if(Character.isISOControl(c)) {
             return false;
         }
@@ -530,7 +640,11 @@ public class Tokenizer extends Lookahead<Token> {
                 || isAtStartOfLineComment(false)
                 || isAtStartOfNumber()
                 || isAtStartOfIdentifier()
-                || stringDelimiters.containsKey(ch.getValue()));
+                || stringDelimiters.containsKey(c));
+    }
+
+    private boolean isAtSymbolCharacter() {
+        return symbolCharacterOverridden ? isSymbolCharacter(input.current()) : isSymbolCharacter(input.peek(0));
     }
 
     /**
@@ -539,48 +653,76 @@ public class Tokenizer extends Lookahead<Token> {
      * @return the parsed number as Token
      */
     protected Token fetchNumber() {
-        Token result = Token.create(Token.TokenType.INTEGER, input.current());
-        result.addToContent(input.consume());
-        while(input.current().isDigit()
-                || input.current().is(decimalSeparator)
-                || (input.current().is(groupingSeparator) && input.next().isDigit())
-                || ((input.current().is(scientificNotationSeparator)
-                || input.current().is(alternateScientificNotationSeparator))
-                && (input.next().isDigit() || input.next().is('+') || input.next().is('-')))) {
-            if(input.current().is(groupingSeparator)) {
-                result.addToSource(input.consume());
-            } else if(input.current().is(decimalSeparator)) {
-                if(result.is(Token.TokenType.DECIMAL) || result.is(TokenType.SCIENTIFIC_DECIMAL)) {
+        Position position = input.current();
+        Token.TokenType type = Token.TokenType.INTEGER;
+        StringBuilder contents = buffer;
+        StringBuilder source = sourceBuffer;
+        contents.setLength(0);
+        source.setLength(0);
+        contents.append(input.peek(0));
+        source.append(input.peek(0));
+        input.consume(1);
+        while(isAtNumberPart()) {
+            char current = input.peek(0);
+            if(current == groupingSeparator) {
+                source.append(current);
+                input.consume(1);
+            } else if(current == decimalSeparator) {
+                if(type == Token.TokenType.DECIMAL || type == TokenType.SCIENTIFIC_DECIMAL) {
                     problemCollector.add(ParseError.error(input.current(), "Unexpected decimal separators"));
                 } else {
-                    Token decimalToken = Token.create(Token.TokenType.DECIMAL, result);
-                    decimalToken.setContent(result.getContents() + effectiveDecimalSeparator);
-                    decimalToken.setSource(result.getSource());
-                    result = decimalToken;
+                    type = Token.TokenType.DECIMAL;
+                    contents.append(effectiveDecimalSeparator);
                 }
-                result.addToSource(input.consume());
-            } else if(input.current().is(scientificNotationSeparator)
-                    || input.current().is(alternateScientificNotationSeparator)) {
-                if(result.is(TokenType.SCIENTIFIC_DECIMAL)) {
+                source.append(current);
+                input.consume(1);
+            } else if(current == scientificNotationSeparator || current == alternateScientificNotationSeparator) {
+                if(type == TokenType.SCIENTIFIC_DECIMAL) {
                     problemCollector.add(ParseError.error(input.current(), "Unexpected scientific notation separators"));
+                    source.append(current);
+                    input.consume(1);
                 } else {
-                    Token scientificDecimalToken = Token.create(TokenType.SCIENTIFIC_DECIMAL, result);
-                    scientificDecimalToken.setContent(result.getContents() + effectiveScientificNotationSeparator);
-                    scientificDecimalToken.setSource(result.getSource() + effectiveScientificNotationSeparator);
-                    result = scientificDecimalToken;
-                    input.consume();
-                    if(input.current().is('+') || input.current().is('-')) {
-                        result.addToContent(input.consume());
+                    type = TokenType.SCIENTIFIC_DECIMAL;
+                    contents.append(effectiveScientificNotationSeparator);
+                    source.append(effectiveScientificNotationSeparator);
+                    input.consume(1);
+                    char sign = input.peek(0);
+                    if(sign == '+' || sign == '-') {
+                        contents.append(sign);
+                        source.append(sign);
+                        input.consume(1);
                     }
                 }
             } else {
-                result.addToContent(input.consume());
+                contents.append(current);
+                source.append(current);
+                input.consume(1);
             }
         }
 
+        Token result = Token.create(type, position);
+        result.setContent(contents.toString());
+        result.setSource(source.toString());
         return result;
     }
 
+    /*
+     * Determines if the current character continues the number being read by fetchNumber.
+     */
+    @SuppressWarnings("squid:S1067")
+    private boolean isAtNumberPart() {
+        char current = input.peek(0);
+        if(current == '\0') {
+            return false;
+        }
+        char next = input.peek(1);
+        return Character.isDigit(current)
+                || current == decimalSeparator
+                || current == groupingSeparator && Character.isDigit(next)
+                || (current == scientificNotationSeparator || current == alternateScientificNotationSeparator)
+                && (Character.isDigit(next) || next == '+' || next == '-');
+    }
+
     /**
      * Determines if keywords are case sensitive.
      * <p>
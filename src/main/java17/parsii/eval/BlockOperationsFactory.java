@@ -0,0 +1,39 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Selects the implementation of {@link BlockOperations} to use.
+ * <p>
+ * This is the version used on Java 17 or newer. As the Vector API is still an incubator module, it is only used if
+ * the module <tt>jdk.incubator.vector</tt> has been added to the boot layer. Otherwise the scalar loops are used.
+ */
+final class BlockOperationsFactory {
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private BlockOperationsFactory() {
+    }
+
+    /**
+     * Creates the block operations to use.
+     *
+     * @return the vectorized implementation of the block operations if available, the scalar one otherwise
+     */
+    static BlockOperations create() {
+        if(ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return new BlockOperations();
+        }
+        try {
+            return new VectorBlockOperations();
+        } catch(LinkageError e) {
+            return new BlockOperations();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Computes the element-wise loops of {@link BatchExpression} using the Vector API.
+ * <p>
+ * Each loop processes as many elements per iteration as fit into the widest vector register of the CPU. The
+ * remaining elements (if the length isn't a multiple of the number of lanes) are computed by the scalar loop of the
+ * superclass. All operations yield exactly the same results as their scalar counterparts, including the handling of
+ * <tt>NaN</tt>.
+ * <p>
+ * Plain arithmetic (<tt>+ - * /</tt>) isn't overridden, as C2 already vectorizes these scalar loops on its own and
+ * performs slightly better than the Vector API does. Comparisons, logical operations and <tt>if</tt> however contain
+ * conditionals, which prevent this. Computing them via masks and blends is about four times faster.
+ */
+final class VectorBlockOperations extends BlockOperations {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    String getName() {
+        return "vector" + SPECIES.length();
+    }
+
+    @Override
+    void min(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            load(a, i).min(load(b, i)).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.min(a[i], b[i]);
+        }
+    }
+
+    @Override
+    void max(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            load(a, i).max(load(b, i)).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.max(a[i], b[i]);
+        }
+    }
+
+    @Override
+    void abs(double[] dst, double[] a, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            load(a, i).abs().intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.abs(a[i]);
+        }
+    }
+
+    @Override
+    void sqrt(double[] dst, double[] a, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            load(a, i).lanewise(VectorOperators.SQRT).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.sqrt(a[i]);
+        }
+    }
+
+    @Override
+    void lessThan(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            toDouble(load(a, i).lt(load(b, i))).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = a[i] < b[i] ? 1 : 0;
+        }
+    }
+
+    @Override
+    void lessOrEqual(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector va = load(a, i);
+            DoubleVector vb = load(b, i);
+            toDouble(va.lt(vb).or(isWithinEpsilon(va, vb))).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = a[i] < b[i] || Math.abs(a[i] - b[i]) < BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    @Override
+    void equal(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            toDouble(isWithinEpsilon(load(a, i), load(b, i))).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.abs(a[i] - b[i]) < BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    @Override
+    void notEqual(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector difference = load(a, i).sub(load(b, i)).abs();
+            toDouble(difference.compare(VectorOperators.GT, BinaryOperation.EPSILON)).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.abs(a[i] - b[i]) > BinaryOperation.EPSILON ? 1 : 0;
+        }
+    }
+
+    @Override
+    void and(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            toDouble(isTrue(load(a, i)).and(isTrue(load(b, i)))).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.abs(a[i]) > 0 && Math.abs(b[i]) > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    void or(double[] dst, double[] a, double[] b, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            toDouble(isTrue(load(a, i)).or(isTrue(load(b, i)))).intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Math.abs(a[i]) > 0 || Math.abs(b[i]) > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Blends both branches based on the condition. A <tt>NaN</tt> condition is the result itself, just like in
+     * {@link Functions#IF}.
+     */
+    @Override
+    void select(double[] dst, double[] check, double[] then, double[] otherwise, int length) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector condition = load(check, i);
+            load(otherwise, i).blend(load(then, i), isTrue(condition))
+                              .blend(condition, condition.test(VectorOperators.IS_NAN))
+                              .intoArray(dst, i);
+        }
+        for(; i < length; i++) {
+            dst[i] = Program.select(check[i], then[i], otherwise[i]);
+        }
+    }
+
+    private static DoubleVector load(double[] array, int offset) {
+        return DoubleVector.fromArray(SPECIES, array, offset);
+    }
+
+    /*
+     * Converts a mask into a vector which contains 1 for each set lane and 0 otherwise.
+     */
+    private static DoubleVector toDouble(VectorMask<Double> mask) {
+        return DoubleVector.zero(SPECIES).blend(1, mask);
+    }
+
+    /*
+     * Yields |a - b| < EPSILON, which is false for NaN.
+     */
+    private static VectorMask<Double> isWithinEpsilon(DoubleVector a, DoubleVector b) {
+        return a.sub(b).abs().compare(VectorOperators.LT, BinaryOperation.EPSILON);
+    }
+
+    /*
+     * Yields |a| > 0, which is false for NaN.
+     */
+    private static VectorMask<Double> isTrue(DoubleVector a) {
+        return a.abs().compare(VectorOperators.GT, 0);
+    }
+}
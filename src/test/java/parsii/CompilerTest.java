@@ -0,0 +1,475 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.jupiter.api.Test;
+import parsii.eval.BatchExpression;
+import parsii.eval.BinaryFunction;
+import parsii.eval.BinaryOperation;
+import parsii.eval.BytecodeCompiler;
+import parsii.eval.ClosureCompiler;
+import parsii.eval.CompiledExpression;
+import parsii.eval.Expression;
+import parsii.eval.Function;
+import parsii.eval.FusedKernel;
+import parsii.eval.GridEvaluator;
+import parsii.eval.LetExpression;
+import parsii.eval.Optimizer;
+import parsii.eval.Parser;
+import parsii.eval.Program;
+import parsii.eval.Scope;
+import parsii.eval.Variable;
+import parsii.tokenizer.ParseException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the {@link BytecodeCompiler}, the {@link ClosureCompiler}, {@link Program}, {@link BatchExpression} and
+ * {@link GridEvaluator} by comparing compiled expressions against the tree interpreter.
+ */
+public class CompilerTest {
+
+    private static final String[] EXPRESSIONS = {"3 + a * 4",
+                                                 "a - b - c",
+                                                 "a / b % 3",
+                                                 "a ^ 2 + b ^ 0.5",
+                                                 "a < b",
+                                                 "a <= b",
+                                                 "a > b",
+                                                 "a >= b",
+                                                 "a = b",
+                                                 "a != b",
+                                                 "a && b",
+                                                 "a || b",
+                                                 "a > 1 && b < 2 || c",
+                                                 "if(a && b, a, b) + (c || a && b)",
+                                                 "if(a, b, c)",
+                                                 "if(a > b, sin(a), cos(b))",
+                                                 "sqrt(a*a + b*b) + abs(c) + sign(a)",
+                                                 "round(a) + floor(b) + ceil(c)",
+                                                 "min(a, b) + max(b, c) + atan2(a, b) + pow(a, b)",
+                                                 "ln(a) + log(b) + exp(c) + tanh(a)",
+                                                 "int_and(a, b) + sigmoid(a, b) + root(a, 2)",
+                                                 "-(-a) + |b - c|"};
+
+    private static final Parser PARSER = new Parser();
+
+    private static final double[] VALUES = {0, 1, -1, 2.5, -3.75, 10, 1e-12, Double.NaN, Double.POSITIVE_INFINITY};
+
+    @Test
+    public void matchesInterpreter() throws ParseException {
+        assertMatchesInterpreter(BytecodeCompiler::compile);
+    }
+
+    @Test
+    public void closuresMatchInterpreter() throws ParseException {
+        assertMatchesInterpreter(ClosureCompiler::compile);
+    }
+
+    @Test
+    public void programsMatchInterpreter() throws ParseException {
+        assertMatchesInterpreter(Program::compile);
+    }
+
+    private void assertMatchesInterpreter(UnaryOperator<Expression> backend) throws ParseException {
+        Scope scope = new Scope();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Variable c = scope.getVariable("c");
+        for (String input : EXPRESSIONS) {
+            Expression expr = PARSER.parse(input, scope);
+            Expression compiled = backend.apply(expr);
+            for (double valueA : VALUES) {
+                for (double valueB : VALUES) {
+                    a.setValue(valueA);
+                    b.setValue(valueB);
+                    c.setValue(valueA - valueB);
+                    assertEquals(expr.evaluate(), compiled.evaluate(), 0d, input + " for a=" + valueA + ", b=" + valueB);
+                    assertEquals(expr.evaluate(),
+                                 compiled.evaluate(scope.createFrame()),
+                                 0d,
+                                 input + " using a frame for a=" + valueA + ", b=" + valueB);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void batchesMatchInterpreter() throws ParseException {
+        Scope scope = new Scope();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Variable c = scope.getVariable("c");
+        int n = VALUES.length * VALUES.length * 7;
+        double[][] columns = new double[scope.getFrameSize()][n];
+        for (int i = 0; i < n; i++) {
+            columns[scope.getSlot(a)][i] = VALUES[i % VALUES.length];
+            columns[scope.getSlot(b)][i] = VALUES[(i / VALUES.length) % VALUES.length];
+            columns[scope.getSlot(c)][i] = i * 0.25;
+        }
+        for (String input : EXPRESSIONS) {
+            Expression expr = PARSER.parse(input, scope);
+            double[] expected = new double[n];
+            double[] batch = new double[n];
+            expr.evaluateBatch(columns, expected, n);
+            BatchExpression.compile(expr).evaluateBatch(columns, batch, n);
+            for (int i = 0; i < n; i++) {
+                a.setValue(columns[scope.getSlot(a)][i]);
+                b.setValue(columns[scope.getSlot(b)][i]);
+                c.setValue(columns[scope.getSlot(c)][i]);
+                assertEquals(expr.evaluate(), expected[i], 0d, input + " at " + i);
+                assertEquals(expr.evaluate(), batch[i], 0d, input + " in a batch at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void parallelBatches() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        BatchExpression expr = BatchExpression.compile(PARSER.parse("if(x > y, sqrt(x) * y, x / (y + 1)) + 2", scope));
+        int n = 100_000 + 17;
+        double[][] columns = new double[scope.getFrameSize()][n];
+        for (int i = 0; i < n; i++) {
+            columns[scope.getSlot(x)][i] = i;
+            columns[scope.getSlot(y)][i] = (n - i) * 0.5;
+        }
+        double[] expected = new double[n];
+        expr.evaluateBatch(columns, expected, n);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            double[] results = new double[n];
+            expr.evaluateBatch(columns, results, n, pool);
+            assertArrayEquals(expected, results, 0d);
+        } finally {
+            pool.shutdown();
+        }
+        double[] results = new double[n];
+        expr.evaluateBatch(columns, results, n, ForkJoinPool.commonPool());
+        assertArrayEquals(expected, results, 0d);
+        assertEquals(0, x.getValue(), 0d);
+    }
+
+    @Test
+    public void customFunctions() throws ParseException {
+        Parser parser = new Parser();
+        parser.registerFunction("sum", new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return -1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                double sum = 0;
+                for (Expression e : args) {
+                    sum += e.evaluate();
+                }
+                return sum;
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Expression expr = parser.parse("1 + sum(x, x * 2, sin(x))", scope);
+        x.setValue(2);
+        assertEquals(1 + 2 + 4 + Math.sin(2), BytecodeCompiler.compile(expr).evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1 + 2 + 4 + Math.sin(2), ClosureCompiler.compile(expr).evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1 + 2 + 4 + Math.sin(2), Program.compile(expr).evaluate(), BinaryOperation.EPSILON);
+
+        double[] frame = scope.createFrame();
+        frame[scope.getSlot(x)] = 3;
+        assertEquals(1 + 3 + 6 + Math.sin(3), expr.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(1 + 3 + 6 + Math.sin(3), BytecodeCompiler.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(1 + 3 + 6 + Math.sin(3), Program.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(2, x.getValue(), 0d);
+
+        double[] results = new double[2];
+        BatchExpression.compile(expr).evaluateBatch(new double[][]{{2, 3}}, results, 2);
+        assertEquals(1 + 2 + 4 + Math.sin(2), results[0], BinaryOperation.EPSILON);
+        assertEquals(1 + 3 + 6 + Math.sin(3), results[1], BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void shortCircuits() throws ParseException {
+        AtomicInteger calls = new AtomicInteger();
+        Parser parser = new Parser();
+        parser.registerFunction("count", new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                calls.incrementAndGet();
+                return args.get(0).evaluate();
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Expression expr = parser.parse("x > 1 && count(x) || x < 0 || count(x + 1)", scope);
+        for (Expression backend : new Expression[]{expr,
+                                                   BytecodeCompiler.compile(expr),
+                                                   ClosureCompiler.compile(expr),
+                                                   Program.compile(expr)}) {
+            x.setValue(0);
+            calls.set(0);
+            assertEquals(1, backend.evaluate(), 0d);
+            assertEquals(1, calls.get(), "count(x) must not be evaluated");
+            x.setValue(-1);
+            calls.set(0);
+            assertEquals(1, backend.evaluate(scope.createFrame()), 0d);
+            assertEquals(0, calls.get(), "neither call must be evaluated");
+            x.setValue(2);
+            calls.set(0);
+            assertEquals(1, backend.evaluate(), 0d);
+            assertEquals(1, calls.get(), "count(x + 1) must not be evaluated");
+        }
+
+        double[] results = new double[2 * BatchExpression.BLOCK_SIZE];
+        double[][] columns = new double[1][results.length];
+        Arrays.fill(columns[0], 0, BatchExpression.BLOCK_SIZE, -1);
+        Arrays.fill(columns[0], BatchExpression.BLOCK_SIZE, results.length, 2);
+        calls.set(0);
+        BatchExpression.compile(expr).evaluateBatch(columns, results, results.length);
+        assertEquals(BatchExpression.BLOCK_SIZE, calls.get(), "only the second block has to call count(x)");
+        for (double result : results) {
+            assertEquals(1, result, 0d);
+        }
+    }
+
+    @Test
+    public void commonSubexpressions() throws ParseException {
+        Parser parser = new Parser();
+        parser.registerFunction("second", new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 2;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return args.get(1).evaluate();
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        String[] inputs = {"sqrt(x*x + y*y) + if(x > y, sqrt(x*x + y*y), x*x)",
+                           "second(x, sqrt(x*x + y*y)) + sqrt(x*x + y*y) * (x*x + 1)"};
+        for (String input : inputs) {
+            Expression expr = parser.parse(input, scope);
+            Expression let = Optimizer.eliminateCommonSubexpressions(expr);
+            assertTrue(let instanceof LetExpression, input);
+            for (Expression backend : new Expression[]{let,
+                                                       BytecodeCompiler.compile(let),
+                                                       ClosureCompiler.compile(let),
+                                                       Program.compile(let)}) {
+                for (double value : VALUES) {
+                    x.setValue(value);
+                    y.setValue(2 - value);
+                    double[] frame = scope.createFrame();
+                    assertEquals(expr.evaluate(), backend.evaluate(), 0d, input + " for x=" + value);
+                    assertEquals(expr.evaluate(), backend.evaluate(frame), 0d, input + " using a frame for x=" + value);
+                }
+            }
+
+            double[][] columns = new double[scope.getFrameSize()][VALUES.length];
+            for (int i = 0; i < VALUES.length; i++) {
+                columns[scope.getSlot(x)][i] = VALUES[i];
+                columns[scope.getSlot(y)][i] = 2 - VALUES[i];
+            }
+            double[] expected = new double[VALUES.length];
+            double[] results = new double[VALUES.length];
+            expr.evaluateBatch(columns, expected, VALUES.length);
+            BatchExpression.compile(let).evaluateBatch(columns, results, VALUES.length);
+            assertArrayEquals(expected, results, 0d, input);
+        }
+    }
+
+    @Test
+    public void fusedKernels() throws ParseException {
+        Parser parser = new Parser();
+        parser.registerFunction("second", new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 2;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return args.get(1).evaluate();
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        String[][] inputs = {{"sqrt(x*x + y*y)", "atan2(y, x) * sqrt(x*x + y*y)", "x*x - 1", "y"},
+                             {"second(x, sqrt(x*x + y*y)) + 1", "sqrt(x*x + y*y) * 2"}};
+        for (String[] set : inputs) {
+            Expression[] expressions = new Expression[set.length];
+            for (int i = 0; i < set.length; i++) {
+                expressions[i] = parser.parse(set[i], scope);
+            }
+            FusedKernel kernel = FusedKernel.compile(Arrays.asList(expressions));
+            assertEquals(set.length, kernel.size());
+            assertTrue(kernel.getNumberOfSharedSubexpressions() > 0, Arrays.toString(set));
+            double[] results = new double[set.length];
+            for (double value : VALUES) {
+                x.setValue(value);
+                y.setValue(2 - value);
+                kernel.evaluate(results);
+                for (int i = 0; i < set.length; i++) {
+                    assertEquals(expressions[i].evaluate(), results[i], 0d, set[i] + " for x=" + value);
+                }
+                kernel.evaluate(scope.createFrame(), results);
+                for (int i = 0; i < set.length; i++) {
+                    assertEquals(expressions[i].evaluate(), results[i], 0d, set[i] + " using a frame for x=" + value);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentFrames() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Expression expr = PARSER.parse("if(x > y, x * x - y, sqrt(y) + x) + max(x, 2 * y)", scope);
+        for (Expression shared : new Expression[]{expr, BytecodeCompiler.compile(expr), Program.compile(expr)}) {
+            double[] results = IntStream.range(0, 10_000).parallel().mapToDouble(i -> {
+                double[] frame = new double[scope.getFrameSize()];
+                frame[scope.getSlot(x)] = i;
+                frame[scope.getSlot(y)] = i % 7;
+                return shared.evaluate(frame);
+            }).toArray();
+            for (int i = 0; i < results.length; i++) {
+                x.setValue(i);
+                y.setValue(i % 7);
+                assertEquals(expr.evaluate(), results[i], 0d);
+            }
+        }
+    }
+
+    @Test
+    public void largeExpressions() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 1000; i++) {
+            input.append(i % 2 == 0 ? " + x * " : " - x / ").append(i + 1);
+        }
+        Expression expr = PARSER.parse(input.toString(), scope);
+        Expression compiled = BytecodeCompiler.compile(expr);
+        x.setValue(1.5);
+        assertTrue(compiled instanceof CompiledExpression);
+        assertEquals(expr.evaluate(), compiled.evaluate(), 0d);
+        assertEquals(expr.toString(), compiled.toString());
+        assertEquals(expr.evaluate(), Program.compile(expr).evaluate(), 0d);
+
+        // Operations which emit lots of code (or used to reserve locals) per node are partitioned as well
+        Variable y = scope.getVariable("y");
+        for (String operation : new String[]{"(%s <= y)", "(%s >= y) = x", "if(%s, x, y)", "pow(%s, y)", "round(%s)"}) {
+            String nested = "x";
+            for (int i = 0; i < 300; i++) {
+                nested = String.format(operation, nested);
+            }
+            expr = new Parser().parse(nested, scope);
+            compiled = BytecodeCompiler.compile(expr);
+            for (double value : VALUES) {
+                x.setValue(value);
+                y.setValue(value / 2);
+                assertEquals(expr.evaluate(), compiled.evaluate(), 0d, operation + " for x=" + value);
+                assertEquals(expr.evaluate(),
+                             compiled.evaluate(scope.createFrame()),
+                             0d,
+                             operation + " using a frame for x=" + value);
+            }
+        }
+    }
+
+    @Test
+    public void gridEvaluation() throws ParseException {
+        AtomicInteger calls = new AtomicInteger();
+        Parser parser = new Parser();
+        parser.registerFunction("count", new BinaryFunction() {
+            @Override
+            protected double eval(double a, double b) {
+                calls.incrementAndGet();
+                return a * b;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Variable z = scope.getVariable("z");
+        Variable scale = scope.getVariable("scale");
+        scale.setValue(0.25);
+        Expression expr = parser.parse("sin(x * scale) * count(x, z) + cos(scale * 2) * y - if(y > 66, x, z)", scope);
+        GridEvaluator.Axis[] axes = {new GridEvaluator.Axis(x, -2, 1, 4),
+                                     new GridEvaluator.Axis(z, 0, 0.5, 3),
+                                     new GridEvaluator.Axis(y, 64, 0.5, 8)};
+
+        double[] expected = new double[4 * 3 * 8];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 8; k++) {
+                    x.setValue(-2 + i);
+                    z.setValue(j * 0.5);
+                    y.setValue(64 + k * 0.5);
+                    expected[(i * 3 + j) * 8 + k] = expr.evaluate();
+                }
+            }
+        }
+
+        for (GridEvaluator grid : Arrays.asList(GridEvaluator.create(expr, axes),
+                                                GridEvaluator.compile(BytecodeCompiler.compile(expr), axes))) {
+            assertEquals(expected.length, grid.size());
+            assertEquals(3, grid.getNumberOfHoistedSubtrees());
+            double[] out = new double[grid.size()];
+            calls.set(0);
+            grid.evaluate(out);
+            assertArrayEquals(expected, out, 0d);
+            assertEquals(4 * 3, calls.get(), "count(x, z) is only computed once per row");
+        }
+
+        double[] out = new double[expected.length];
+        expr.evaluateGrid(out, axes);
+        assertArrayEquals(expected, out, 0d);
+        assertThrows(IllegalArgumentException.class, () -> expr.evaluateGrid(new double[10], axes));
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.jupiter.api.Test;
+import parsii.eval.BinaryFunction;
+import parsii.eval.BytecodeCompiler;
+import parsii.eval.DifferentiableFunction;
+import parsii.eval.Differentiator;
+import parsii.eval.Expression;
+import parsii.eval.Gradient;
+import parsii.eval.GradientEvaluator;
+import parsii.eval.Optimizer;
+import parsii.eval.Parser;
+import parsii.eval.Program;
+import parsii.eval.Scope;
+import parsii.eval.Variable;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the {@link GradientEvaluator} by comparing gradients against central differences and the
+ * {@link Differentiator} by comparing derivatives against gradients.
+ */
+public class GradientEvaluatorTest {
+
+    private static final String[] EXPRESSIONS = {"x + y * 2 - 1",
+                                                 "x * y - x / y",
+                                                 "x % y",
+                                                 "x ^ 3 + y ^ 0.5 + x ^ y",
+                                                 "pow(x, y) + pow(y, 2)",
+                                                 "(x < y) + (x && y)",
+                                                 "if(x > y, sin(x) * y, cos(y) * x)",
+                                                 "sin(x) + cos(y) + tan(x / 4)",
+                                                 "sinh(x) + cosh(y) + tanh(x)",
+                                                 "asin(x / 4) + acos(y / 4) + atan(x)",
+                                                 "atan2(x, y)",
+                                                 "abs(x - y) + sign(y) + round(x)",
+                                                 "sqrt(x * y) + cbrt(y)",
+                                                 "root(x, y)",
+                                                 "exp(x) + ln(y) + log(x)",
+                                                 "min(x, y) + max(x, 2 * y)",
+                                                 "deg(x) + rad(y)",
+                                                 "sigmoid(x, y)",
+                                                 "int_and(x, y) + x",
+                                                 "sqrt(x*x + y*y) + sqrt(x*x + y*y) * x"};
+
+    private static final double[][] POINTS = {{1.3, 0.7}, {0.25, 2.5}, {2.1, 1.1}, {3.3, 0.4}};
+
+    private static final double H = 1e-6;
+
+    @Test
+    public void matchesCentralDifferences() throws ParseException {
+        Parser parser = new Parser();
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        List<Variable> variables = Arrays.asList(x, y);
+        for (String input : EXPRESSIONS) {
+            Expression expr = parser.parse(input, scope);
+            for (Expression variant : new Expression[]{expr, Optimizer.eliminateCommonSubexpressions(expr)}) {
+                for (double[] point : POINTS) {
+                    x.setValue(point[0]);
+                    y.setValue(point[1]);
+                    double[] frame = scope.createFrame();
+                    Gradient gradient = GradientEvaluator.evaluate(variant, variables);
+                    Gradient framed = GradientEvaluator.evaluate(variant, variables, frame);
+                    assertEquals(expr.evaluate(), gradient.getValue(), 0d, input);
+                    assertEquals(expr.evaluate(), framed.getValue(), 0d, input);
+
+                    double dx = centralDifference(expr, x, point[0]);
+                    double dy = centralDifference(expr, y, point[1]);
+                    String message = input + " at " + Arrays.toString(point);
+                    assertEquals(dx, gradient.getPartialDerivative(x), 1e-6 * Math.max(1, Math.abs(dx)), message);
+                    assertEquals(dy, gradient.getPartialDerivative(y), 1e-6 * Math.max(1, Math.abs(dy)), message);
+                    assertArrayEquals(gradient.getPartialDerivatives(), framed.getPartialDerivatives(), 0d);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void symbolicDerivatives() throws ParseException {
+        Parser parser = new Parser();
+        parser.registerFunction("hypot", new DifferentiableBinaryFunction());
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        List<Variable> variables = Arrays.asList(x, y);
+        String[] inputs = Arrays.copyOf(EXPRESSIONS, EXPRESSIONS.length + 1);
+        inputs[EXPRESSIONS.length] = "hypot(x * y, 2) + x";
+        for (String input : inputs) {
+            Expression expr = parser.parse(input, scope);
+            for (Expression variant : new Expression[]{expr, Optimizer.eliminateCommonSubexpressions(expr)}) {
+                Expression dx = variant.derivative(x);
+                Expression dy = Differentiator.derive(variant, y);
+                Expression compiled = BytecodeCompiler.compile(dx);
+                Expression program = Program.compile(Optimizer.eliminateCommonSubexpressions(dy));
+                for (double[] point : POINTS) {
+                    x.setValue(point[0]);
+                    y.setValue(point[1]);
+                    Gradient gradient = GradientEvaluator.evaluate(expr, variables);
+                    String message = input + " at " + Arrays.toString(point);
+                    double expectedX = gradient.getPartialDerivative(x);
+                    double expectedY = gradient.getPartialDerivative(y);
+                    assertEquals(expectedX, dx.evaluate(), 1e-12 * Math.max(1, Math.abs(expectedX)), message);
+                    assertEquals(expectedX, compiled.evaluate(), 1e-12 * Math.max(1, Math.abs(expectedX)), message);
+                    assertEquals(expectedY, dy.evaluate(), 1e-12 * Math.max(1, Math.abs(expectedY)), message);
+                    assertEquals(expectedY,
+                                 program.evaluate(scope.createFrame()),
+                                 1e-12 * Math.max(1, Math.abs(expectedY)),
+                                 message);
+                }
+            }
+        }
+
+        assertEquals("((3.0 MULTIPLY (x MULTIPLY x)) ADD y)", parser.parse("x ^ 3 + x * y", scope).derivative(x).toString());
+        assertEquals("0.0", parser.parse("y ^ 2 + (x > 1)", scope).derivative(x).toString());
+    }
+
+    @Test
+    public void symbolicDerivativesMatchGradientsOnCorpus() throws ParseException {
+        Parser parser = new Parser();
+        Scope scope = new Scope();
+        List<Variable> variables =
+                Arrays.asList(scope.getVariable("a"), scope.getVariable("b"), scope.getVariable("c"));
+        List<String> corpus = new ArrayList<>(Arrays.asList("sqrt(if(cos(b), b / a, max(10, b)))",
+                                                            "root(-floor(b), a) + root(-floor(b), 2)",
+                                                            "c - int_xor(acos(b), deg(b))",
+                                                            "min(a, acos(b)) + max(sqrt(a), b)",
+                                                            "if(a / b, c, c * 2)"));
+        Random random = new Random(1701);
+        for (int i = 0; i < 400; i++) {
+            corpus.add(randomExpression(random, 4));
+        }
+        double[] values = {-2.5, -1, -0.3, 0, 0.7, 1, 3.2, 40};
+        for (String input : corpus) {
+            // The derivatives are optimized, which might change the result of a discontinuous function by rounding
+            Expression expr = Optimizer.optimize(parser.parse(input, scope));
+            Expression[] derivatives = new Expression[variables.size()];
+            for (int i = 0; i < derivatives.length; i++) {
+                derivatives[i] = Differentiator.derive(expr, variables.get(i));
+            }
+            for (int point = 0; point < 10; point++) {
+                for (Variable variable : variables) {
+                    variable.setValue(values[random.nextInt(values.length)]);
+                }
+                Gradient gradient = GradientEvaluator.evaluate(expr, variables);
+                for (int i = 0; i < derivatives.length; i++) {
+                    double expected = gradient.getPartialDerivative(variables.get(i));
+                    double actual = derivatives[i].evaluate();
+                    String message = "d/d" + variables.get(i).getName() + " " + input + " at " + variables;
+                    if (Double.isNaN(expected) || Double.isInfinite(expected)) {
+                        assertEquals(expected, actual, 0d, message);
+                    } else {
+                        assertEquals(expected, actual, 1e-9 * Math.max(1, Math.abs(expected)), message);
+                    }
+                }
+            }
+        }
+
+        // if(c, 0, 0) is folded, so that a NaN condition doesn't make the derivative NaN
+        Expression expr = parser.parse("sqrt(if(cos(b), b / a, max(10, b)))", scope);
+        assertEquals("0.0", Differentiator.derive(expr, variables.get(2)).toString());
+    }
+
+    @Test
+    public void symbolicDerivativesMatchGradientsAtSpecialValues() throws ParseException {
+        Parser parser = new Parser();
+        Scope scope = new Scope();
+        List<Variable> variables =
+                Arrays.asList(scope.getVariable("a"), scope.getVariable("b"), scope.getVariable("c"));
+        List<String> corpus = new ArrayList<>(Arrays.asList("a ^ -0.5",
+                                                            "a ^ 2.5 + pow(b, 0.5) + c ^ -3",
+                                                            "ln(min(b, --a))",
+                                                            "1 / (a + 0) + 1 / (0 + -b) + 1 / -(c - 0)",
+                                                            "ln(-a * -b) + atan2(-c, --a)",
+                                                            "if(a, -b, -c) / (a - -b)",
+                                                            "sqrt(-(a - b)) + 1 / (-a + c)",
+                                                            "b / 3 + c / 0.5 + root(a, 2)"));
+        Random random = new Random(1729);
+        for (int i = 0; i < 400; i++) {
+            corpus.add(randomExpression(random, 4));
+        }
+        double[] values = {Double.NEGATIVE_INFINITY, -2.5, -1, -0d, 0, 0.5, 1, 40, Double.POSITIVE_INFINITY};
+        for (String input : corpus) {
+            // The input isn't optimized, so that its negations and powers are rewritten within the derivatives
+            Expression expr = parser.parse(input, scope);
+            Expression[] derivatives = new Expression[variables.size()];
+            for (int i = 0; i < derivatives.length; i++) {
+                derivatives[i] = Differentiator.derive(expr, variables.get(i));
+            }
+            for (int point = 0; point < 20; point++) {
+                for (Variable variable : variables) {
+                    variable.setValue(values[random.nextInt(values.length)]);
+                }
+                Gradient gradient = GradientEvaluator.evaluate(expr, variables);
+                for (int i = 0; i < derivatives.length; i++) {
+                    double expected = gradient.getPartialDerivative(variables.get(i));
+                    double actual = derivatives[i].evaluate();
+                    String message = "d/d" + variables.get(i).getName() + " " + input + " at " + variables;
+                    if (Double.isNaN(expected) || Double.isInfinite(expected)) {
+                        assertEquals(expected, actual, 0d, message);
+                    } else {
+                        assertEquals(expected, actual, 1e-9 * Math.max(1, Math.abs(expected)), message);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "^", "<", ">=", "=", "&&", "||"};
+    private static final String[] UNARY_FUNCTIONS = {"sin", "cos", "tan", "sinh", "cosh", "tanh", "asin", "acos",
+                                                     "atan", "deg", "rad", "abs", "round", "ceil", "floor", "exp",
+                                                     "ln", "log", "sqrt", "sign", "cbrt", "int_not",
+                                                     "double_to_long_bits", "float_bits_to_int"};
+    private static final String[] BINARY_FUNCTIONS = {"atan2", "pow", "min", "max", "root", "sigmoid", "int_and",
+                                                      "int_or", "int_xor", "int_left_bit_shift",
+                                                      "int_right_bit_shift"};
+
+    private static String randomExpression(Random random, int depth) {
+        int kind = depth == 0 ? random.nextInt(2) : random.nextInt(6);
+        switch (kind) {
+            case 0:
+                return String.valueOf((char) ('a' + random.nextInt(3)));
+            case 1:
+                return String.valueOf(new double[]{2, 0.5, 10, -1}[random.nextInt(4)]);
+            case 2:
+                return UNARY_FUNCTIONS[random.nextInt(UNARY_FUNCTIONS.length)]
+                       + "("
+                       + randomExpression(random, depth - 1)
+                       + ")";
+            case 3:
+                return BINARY_FUNCTIONS[random.nextInt(BINARY_FUNCTIONS.length)]
+                       + "("
+                       + randomExpression(random, depth - 1)
+                       + ", "
+                       + randomExpression(random, depth - 1)
+                       + ")";
+            case 4:
+                return "if("
+                       + randomExpression(random, depth - 1)
+                       + ", "
+                       + randomExpression(random, depth - 1)
+                       + ", "
+                       + randomExpression(random, depth - 1)
+                       + ")";
+            default:
+                return "("
+                       + randomExpression(random, depth - 1)
+                       + " "
+                       + OPERATORS[random.nextInt(OPERATORS.length)]
+                       + " "
+                       + randomExpression(random, depth - 1)
+                       + ")";
+        }
+    }
+
+    private double centralDifference(Expression expr, Variable variable, double value) {
+        variable.setValue(value + H);
+        double upper = expr.evaluate();
+        variable.setValue(value - H);
+        double lower = expr.evaluate();
+        variable.setValue(value);
+        return (upper - lower) / (2 * H);
+    }
+
+    @Test
+    public void customFunctions() throws ParseException {
+        Parser parser = new Parser();
+        parser.registerFunction("hypot", new DifferentiableBinaryFunction());
+        parser.registerFunction("opaque", new BinaryFunction() {
+            @Override
+            protected double eval(double a, double b) {
+                return a * b;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        x.setValue(3);
+        y.setValue(4);
+        Gradient gradient = GradientEvaluator.evaluate(parser.parse("hypot(x, y) * 2", scope), Arrays.asList(x, y));
+        assertEquals(10, gradient.getValue(), 0d);
+        assertEquals(1.2, gradient.getPartialDerivative(x), 1e-15);
+        assertEquals(1.6, gradient.getPartialDerivative(y), 1e-15);
+
+        gradient = GradientEvaluator.evaluate(parser.parse("opaque(x, 2) + y", scope), Arrays.asList(x, y));
+        assertEquals(10, gradient.getValue(), 0d);
+        assertTrue(Double.isNaN(gradient.getPartialDerivative(x)));
+        assertEquals(1, gradient.getPartialDerivative(y), 0d);
+    }
+
+    @Test
+    public void nanArguments() throws ParseException {
+        Parser parser = new Parser();
+        Scope scope = new Scope();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Variable c = scope.getVariable("c");
+        List<Variable> variables = Arrays.asList(a, b, c);
+        b.setValue(5);
+
+        // acos(5) is NaN, but int_xor is piecewise constant
+        Gradient gradient = GradientEvaluator.evaluate(parser.parse("c - int_xor(acos(b), deg(b))", scope), variables);
+        assertArrayEquals(new double[]{0, 0, 1}, gradient.getPartialDerivatives(), 0d);
+
+        gradient = GradientEvaluator.evaluate(parser.parse("acos(b) + a * 2", scope), variables);
+        assertTrue(Double.isNaN(gradient.getValue()));
+        assertEquals(2, gradient.getPartialDerivative(a), 0d);
+        assertTrue(Double.isNaN(gradient.getPartialDerivative(b)));
+        assertEquals(0, gradient.getPartialDerivative(c), 0d);
+
+        gradient = GradientEvaluator.evaluate(parser.parse("if(acos(b), a, c) + b", scope), variables);
+        assertTrue(Double.isNaN(gradient.getPartialDerivative(a)));
+        assertEquals(1, gradient.getPartialDerivative(b), 0d);
+        assertTrue(Double.isNaN(gradient.getPartialDerivative(c)));
+    }
+
+    private static class DifferentiableBinaryFunction extends BinaryFunction implements DifferentiableFunction {
+        @Override
+        protected double eval(double a, double b) {
+            return Math.sqrt(a * a + b * b);
+        }
+
+        @Override
+        public double derivative(double[] arguments, int index) {
+            return arguments[index] / eval(arguments[0], arguments[1]);
+        }
+    }
+}
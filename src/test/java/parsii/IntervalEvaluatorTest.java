@@ -0,0 +1,221 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.jupiter.api.Test;
+import parsii.eval.Expression;
+import parsii.eval.Interval;
+import parsii.eval.IntervalEvaluator;
+import parsii.eval.Optimizer;
+import parsii.eval.Parser;
+import parsii.eval.Scope;
+import parsii.eval.Variable;
+import parsii.tokenizer.ParseException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the {@link IntervalEvaluator} by checking that sampled values of expressions are within the computed bounds.
+ */
+public class IntervalEvaluatorTest {
+
+    private static final String[] EXPRESSIONS = {"x + y * 2 - 1",
+                                                 "x * y",
+                                                 "x / y",
+                                                 "x % y",
+                                                 "x ^ 2 + y ^ 3",
+                                                 "x ^ y",
+                                                 "x ^ -1 + y ^ 0.5",
+                                                 "pow(x, y) + pow(x, 3)",
+                                                 "x < y",
+                                                 "x <= y",
+                                                 "x > y",
+                                                 "x >= y",
+                                                 "x = y",
+                                                 "x != y",
+                                                 "x && y || x < 0",
+                                                 "if(x > y, sin(x), cos(y) * 2)",
+                                                 "if(x, x, y)",
+                                                 "sin(x) + cos(y) + tan(x)",
+                                                 "sinh(x) + cosh(y) + tanh(x)",
+                                                 "asin(x) + acos(y) + atan(x)",
+                                                 "atan2(x, y)",
+                                                 "abs(x) + sign(y)",
+                                                 "round(x) + floor(y) + ceil(x)",
+                                                 "sqrt(x) + cbrt(y)",
+                                                 "root(x, y)",
+                                                 "exp(x) + ln(y) + log(x)",
+                                                 "min(x, y) + max(x, y)",
+                                                 "rnd(x)",
+                                                 "deg(x) + rad(y)",
+                                                 "sigmoid(x, y)",
+                                                 "int_and(x, y) + int_not(x)",
+                                                 "sqrt(x*x + y*y) + sqrt(x*x + y*y) * x",
+                                                 "tan(x) * 0",
+                                                 "tan(x) * (x = 1)",
+                                                 "exp(x) * (y - y)",
+                                                 "pow((y <= 0.1), sigmoid(int_xor(2.5, x), tanh(2)))"};
+
+    private static final double[][] RANGES = {{0, 0},
+                                              {-1, 1},
+                                              {0, 2},
+                                              {-3.5, -0.25},
+                                              {0.5, 1.5},
+                                              {1, 100},
+                                              {-1e-3, 1e-3},
+                                              {-7, 20},
+                                              {1e300, 1e308},
+                                              {Double.NEGATIVE_INFINITY, 0},
+                                              {2, Double.POSITIVE_INFINITY},
+                                              {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY},
+                                              {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY},
+                                              {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY}};
+
+    private static final Parser PARSER = new Parser();
+
+    @Test
+    public void containsSamples() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Random random = new Random(1701);
+        for (String input : EXPRESSIONS) {
+            Expression expr = PARSER.parse(input, scope);
+            for (Expression variant : new Expression[]{expr, Optimizer.eliminateCommonSubexpressions(expr)}) {
+                for (double[] rangeX : RANGES) {
+                    for (double[] rangeY : RANGES) {
+                        Map<Variable, Interval> ranges = new HashMap<>();
+                        ranges.put(x, Interval.of(rangeX[0], rangeX[1]));
+                        ranges.put(y, Interval.of(rangeY[0], rangeY[1]));
+                        Interval bounds = IntervalEvaluator.evaluate(variant, ranges);
+                        for (int i = 0; i < 40; i++) {
+                            x.setValue(sample(rangeX, i, random));
+                            y.setValue(sample(rangeY, i / 5, random));
+                            double value = expr.evaluate();
+                            assertTrue(bounds.contains(value),
+                                       input + " = " + value + " for x=" + x.getValue() + ", y=" + y.getValue()
+                                       + " isn't within " + bounds);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private double sample(double[] range, int i, Random random) {
+        if (i < 2 || range[0] == range[1]) {
+            return range[i & 1];
+        }
+        double lower = Math.max(range[0], -1e6);
+        double upper = Math.min(range[1], 1e6);
+        if (i == 2) {
+            return Math.min(Math.max(0, range[0]), range[1]);
+        }
+        return Math.min(Math.max(lower + random.nextDouble() * (upper - lower), range[0]), range[1]);
+    }
+
+    @Test
+    public void bounds() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Map<Variable, Interval> ranges = new HashMap<>();
+        ranges.put(x, Interval.of(0, 16));
+        ranges.put(y, Interval.of(64, 80));
+        assertEquals(Interval.of(-80, -48), IntervalEvaluator.evaluate(PARSER.parse("x - y", scope), ranges));
+        assertEquals(Interval.of(0, 1280), IntervalEvaluator.evaluate(PARSER.parse("x * y", scope), ranges));
+        assertEquals(Interval.of(0), IntervalEvaluator.evaluate(PARSER.parse("x > y", scope), ranges));
+        assertEquals(Interval.of(0, 1), IntervalEvaluator.evaluate(PARSER.parse("x > 8", scope), ranges));
+        assertEquals(Interval.of(64, 80), IntervalEvaluator.evaluate(PARSER.parse("if(x < y, y, x)", scope), ranges));
+        assertEquals(Interval.of(0, 20), IntervalEvaluator.evaluate(PARSER.parse("x + sqrt(y - 64)", scope), ranges));
+
+        Interval density = IntervalEvaluator.evaluate(PARSER.parse("60 - y + sin(x) * 2", scope), ranges);
+        assertTrue(density.getUpperBound() <= 0, density.toString());
+        assertTrue(density.getLowerBound() >= -23, density.toString());
+
+        // x may be -0, therefore y / x may be -inf
+        Interval quotient = IntervalEvaluator.evaluate(PARSER.parse("y / x", scope), ranges);
+        assertFalse(quotient.mayBeNaN());
+        assertEquals(Double.NEGATIVE_INFINITY, quotient.getLowerBound());
+        assertTrue(IntervalEvaluator.evaluate(PARSER.parse("x / (y - 64)", scope), ranges).mayBeNaN());
+
+        // Variables without a range are treated as constants
+        Variable z = scope.getVariable("z");
+        z.setValue(3);
+        assertEquals(Interval.of(3, 19), IntervalEvaluator.evaluate(PARSER.parse("x + z", scope), ranges));
+        z.setValue(Double.NaN);
+        assertEquals(Interval.NAN, IntervalEvaluator.evaluate(PARSER.parse("x + z", scope), ranges));
+        assertEquals(Interval.of(1), IntervalEvaluator.evaluate(PARSER.parse("z ^ 0", scope), ranges));
+        assertEquals(Interval.NAN, IntervalEvaluator.evaluate(PARSER.parse("pow(z, 0)", scope), ranges));
+    }
+
+    @Test
+    public void multiplyUnboundedByZero() throws ParseException {
+        Scope scope = new Scope();
+        Variable c = scope.getVariable("c");
+        Map<Variable, Interval> ranges = new HashMap<>();
+        ranges.put(c, Interval.of(3.8, 34.2));
+        for (String input : new String[]{"tan(c) * 0", "tan(c) * (c = 1)", "0 * tan(c)"}) {
+            Interval bounds = IntervalEvaluator.evaluate(PARSER.parse(input, scope), ranges);
+            assertEquals(0, bounds.getLowerBound(), input);
+            assertEquals(0, bounds.getUpperBound(), input);
+            for (double value = 3.8; value <= 34.2; value += 0.1) {
+                c.setValue(value);
+                assertTrue(bounds.contains(PARSER.parse(input, scope).evaluate()), input + " for c=" + value);
+            }
+        }
+
+        // 0 * inf is NaN, but a finite factor multiplied by zero isn't
+        ranges.put(c, Interval.of(0, Double.POSITIVE_INFINITY));
+        Interval product = IntervalEvaluator.evaluate(PARSER.parse("c * 0", scope), ranges);
+        assertTrue(product.mayBeNaN());
+        assertTrue(product.contains(0));
+        ranges.put(c, Interval.of(0, 2));
+        assertEquals(Interval.of(0), IntervalEvaluator.evaluate(PARSER.parse("c * 0", scope), ranges));
+        assertEquals(Interval.of(0, 4), IntervalEvaluator.evaluate(PARSER.parse("c * c", scope), ranges));
+    }
+
+    @Test
+    public void unboundedOperands() throws ParseException {
+        Scope scope = new Scope();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Map<Variable, Interval> ranges = new HashMap<>();
+        ranges.put(a, Interval.of(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        ranges.put(b, Interval.of(Double.POSITIVE_INFINITY));
+
+        // Every corner is inf / inf, but any finite a / inf is 0
+        Interval quotient = IntervalEvaluator.evaluate(PARSER.parse("a / b", scope), ranges);
+        assertTrue(quotient.mayBeNaN());
+        assertTrue(quotient.contains(0), quotient.toString());
+        ranges.put(b, Interval.of(Double.NEGATIVE_INFINITY));
+        assertTrue(IntervalEvaluator.evaluate(PARSER.parse("a / b", scope), ranges).contains(0));
+
+        // Every corner is 1 ^ inf, but 1 raised to any finite power is 1
+        for (String input : new String[]{"pow(1, a)", "1 ^ a", "pow(-1, a)", "pow(a < 1, a)"}) {
+            Interval power = IntervalEvaluator.evaluate(PARSER.parse(input, scope), ranges);
+            assertTrue(power.mayBeNaN(), input);
+            assertTrue(power.contains(1), input + " isn't within " + power);
+        }
+
+        ranges.put(a, Interval.of(-2, 2));
+        ranges.put(b, Interval.of(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        Expression expr = PARSER.parse("pow((b <= 0.1), sigmoid(int_xor(2.5, a), tanh(2)))", scope);
+        Interval bounds = IntervalEvaluator.evaluate(expr, ranges);
+        for (double value : new double[]{-2, 0, 2}) {
+            a.setValue(value);
+            b.setValue(0);
+            assertTrue(bounds.contains(expr.evaluate()), expr.evaluate() + " isn't within " + bounds);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.jupiter.api.Test;
+import parsii.eval.BinaryFunction;
+import parsii.eval.BinaryOperation;
+import parsii.eval.Expression;
+import parsii.eval.FunctionCall;
+import parsii.eval.Functions;
+import parsii.eval.LetExpression;
+import parsii.eval.MemoizedExpression;
+import parsii.eval.Optimizer;
+import parsii.eval.Parser;
+import parsii.eval.Scope;
+import parsii.eval.Variable;
+import parsii.tokenizer.ParseException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the {@link Optimizer} by comparing optimized expressions against the original ones.
+ */
+public class OptimizerTest {
+
+    private static final String[] EXPRESSIONS = {"x + 0",
+                                                 "0 + x",
+                                                 "x - 0",
+                                                 "x * 1 + y * 1",
+                                                 "x / 1",
+                                                 "x * -1",
+                                                 "-1 * (x + y)",
+                                                 "x / 2 + y",
+                                                 "y / 3",
+                                                 "x / -0.1",
+                                                 "x / 1e-310",
+                                                 "--x",
+                                                 "-(-(-x))",
+                                                 "x + -y",
+                                                 "-x + y",
+                                                 "x - -y",
+                                                 "-x * -y",
+                                                 "-x / -y",
+                                                 "x ^ 0",
+                                                 "x ^ 1",
+                                                 "sin(x * 1) + max(x / 4, -(-y))",
+                                                 "x * 0",
+                                                 "x - x",
+                                                 "x ^ y > 1 && y",
+                                                 "sin(x) || x < y",
+                                                 "0 && x",
+                                                 "x || 2",
+                                                 "if(1, x, y) + if(0, x, y)",
+                                                 "if(x > y, 2 * x, 2 * y)",
+                                                 "if(x, x - 1, y - 1) + if(y, x / 2, 1 / 2)",
+                                                 "if(x - y, sin(x + 1), sin(y))",
+                                                 "if(x, max(x, y), max(y, y))",
+                                                 "if(x, 2 * (y + 1), 2 * (x + 1))",
+                                                 "if(x, x ^ y, y ^ y)",
+                                                 "if(x, x < 1, y < 1)"};
+
+    private static final Parser PARSER = new Parser();
+
+    private static final double[] VALUES = {0,
+                                            -0d,
+                                            1,
+                                            -1,
+                                            3,
+                                            2.5,
+                                            1e-300,
+                                            -7.75,
+                                            1e308,
+                                            Double.NaN,
+                                            Double.POSITIVE_INFINITY,
+                                            Double.NEGATIVE_INFINITY};
+
+    @Test
+    public void matchesOriginal() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        for (String input : EXPRESSIONS) {
+            Expression expr = PARSER.parse(input, scope);
+            String original = expr.toString();
+            Expression optimized = Optimizer.optimize(expr);
+            assertEquals(original, expr.toString(), "the original expression must not be modified");
+            for (double valueX : VALUES) {
+                for (double valueY : VALUES) {
+                    x.setValue(valueX);
+                    y.setValue(valueY);
+                    double expected = expr.evaluate();
+                    if (Double.isNaN(expected)) {
+                        assertTrue(Double.isNaN(optimized.evaluate()), input + " for x=" + valueX + ", y=" + valueY);
+                    } else {
+                        // Multiplying by a reciprocal may differ by one ulp, the sign of zero isn't checked
+                        assertEquals(expected,
+                                     optimized.evaluate(),
+                                     Math.ulp(expected),
+                                     input + " for x=" + valueX + ", y=" + valueY);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rewrites() throws ParseException {
+        assertOptimized("x", "x * 1 + 0");
+        assertOptimized("x", "1 * x / 1 - 0");
+        assertOptimized("x", "--x");
+        assertOptimized("(-1.0 MULTIPLY x)", "x * -1");
+        assertOptimized("(x SUBTRACT y)", "x + -y");
+        assertOptimized("(y SUBTRACT x)", "-x + y");
+        assertOptimized("(x ADD y)", "x - -y");
+        assertOptimized("(x MULTIPLY y)", "-x * -y");
+        assertOptimized("(0.25 MULTIPLY x)", "x / 4");
+        assertOptimized("(x DIVIDE 3.0E-310)", "x / 3e-310");
+        assertOptimized("1.0", "x ^ 0");
+        assertOptimized("x", "x ^ 1");
+        assertOptimized("(0.0 MULTIPLY x)", "x * 0");
+        assertOptimized("(x SUBTRACT x)", "x - x");
+    }
+
+    @Test
+    public void multiplicationByMinusOneKeepsSignOfZero() throws ParseException {
+        Scope scope = new Scope();
+        scope.getVariable("x").setValue(0);
+        Expression atan2 = Optimizer.optimize(PARSER.parse("atan2(x * -1, -1)", scope));
+        assertEquals(-Math.PI, atan2.evaluate(), BinaryOperation.EPSILON);
+        Expression reciprocal = Optimizer.optimize(PARSER.parse("(x * -1) ^ -1", scope));
+        assertEquals(Double.NEGATIVE_INFINITY, reciprocal.evaluate());
+    }
+
+    @Test
+    public void powers() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        for (double exponent = -16; exponent <= 16; exponent += 0.5) {
+            Expression[] exprs = {Optimizer.optimize(PARSER.parse("x ^ " + exponent, scope)),
+                                  Optimizer.optimize(PARSER.parse("pow(x, " + exponent + ")", scope))};
+            boolean integer = exponent == Math.rint(exponent);
+            // Only the strength reduced half-integer powers (using sqrt) differ from pow
+            boolean sqrt = !integer && exponent > -4;
+            double bound = exponent < 0 ? 2 * Math.abs(exponent) : integer ? exponent : exponent + 1;
+            for (int i = 0; i < exprs.length; i++) {
+                Expression expr = exprs[i];
+                for (double value : VALUES) {
+                    x.setValue(value);
+                    double expected = Math.pow(value, exponent);
+                    if (exponent == 0 && Double.isNaN(value) && i == 1) {
+                        // pow(NaN, 0) is NaN, as BinaryFunction checks its arguments
+                        assertTrue(Double.isNaN(expr.evaluate()));
+                        continue;
+                    }
+                    if (Double.isNaN(expected) || sqrt && value == Double.NEGATIVE_INFINITY) {
+                        assertTrue(Double.isNaN(expr.evaluate()), expr + " for x=" + value);
+                    } else if (expected == 0 || Double.isInfinite(expected)) {
+                        // sqrt(-0) is -0, which might flip the sign of the result for half-integers
+                        double actual = expr.evaluate();
+                        assertEquals(expected,
+                                     !sqrt || !isNegativeZero(value) ? actual : Math.abs(actual),
+                                     expr + " for x=" + value);
+                    } else {
+                        // Math.pow itself is within one ulp of the exact result
+                        assertEquals(expected,
+                                     expr.evaluate(),
+                                     (bound + 1) * Math.ulp(expected),
+                                     expr + " for x=" + value);
+                    }
+                }
+            }
+        }
+        assertOptimized("(x MULTIPLY x)", "x ^ 2");
+        assertOptimized("((x MULTIPLY x) MULTIPLY (x MULTIPLY (x MULTIPLY x)))", "pow(x, 5)");
+        assertTrue(Optimizer.optimize(PARSER.parse("x ^ -1.5", scope))
+                            .toString()
+                            .startsWith("((1.0 DIVIDE x) DIVIDE "));
+        assertOptimized("((1.0 DIVIDE x) MULTIPLY (1.0 DIVIDE x))", "x ^ -2");
+        assertOptimized("(x POWER -5.0)", "x ^ -5");
+        assertTrue(Optimizer.optimize(PARSER.parse("x ^ 0.5", scope)) instanceof FunctionCall);
+        assertOptimized("((x ADD y) MULTIPLY (x ADD y))", "(x + y) ^ 2");
+        assertOptimized("((x ADD y) POWER 4.0)", "(x + y) ^ 4");
+        assertOptimized("(x POWER 17.0)", "x ^ 17");
+        assertOptimized("(x POWER 2.25)", "x ^ 2.25");
+        assertTrue(Optimizer.optimize(PARSER.parse("pow(x, 0)", scope)) instanceof FunctionCall);
+    }
+
+    @Test
+    public void negativePowersDontOverflow() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Expression square = Optimizer.optimize(PARSER.parse("x ^ -2", scope));
+        x.setValue(1e160);
+        assertEquals(Math.pow(1e160, -2), square.evaluate());
+        assertTrue(square.evaluate() > 0);
+        x.setValue(1e-160);
+        assertEquals(Double.POSITIVE_INFINITY, square.evaluate());
+
+        Expression power = Optimizer.optimize(PARSER.parse("x ^ -4", scope));
+        x.setValue(1e80);
+        assertEquals(Math.pow(1e80, -4), power.evaluate());
+        assertTrue(power.evaluate() > 0);
+
+        power = Optimizer.optimize(PARSER.parse("x ^ -3.5", scope));
+        x.setValue(1e80);
+        assertEquals(Math.pow(1e80, -3.5), power.evaluate(), 8 * Math.ulp(1e-280));
+    }
+
+    private static boolean isNegativeZero(double value) {
+        return Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0d);
+    }
+
+    @Test
+    public void logicalOperations() throws ParseException {
+        assertOptimized("((y GT 1.0) AND ((x POWER y) GT 1.0))", "x ^ y > 1 && y > 1");
+        assertOptimized("(y OR (x DIVIDE y))", "x / y || y");
+        assertOptimized("(x AND y)", "x && y");
+        assertOptimized("0.0", "x / y && 0");
+        assertOptimized("1.0", "x || -2");
+        assertOptimized("(0.0 OR x)", "x || 0");
+
+        BinaryOperation impure = (BinaryOperation) Optimizer.optimize(PARSER.parse("rnd(x) > 0.5 || x", new Scope()));
+        assertEquals(BinaryOperation.Op.GT, ((BinaryOperation) impure.getLeft()).getOp(), "rnd must stay in front");
+    }
+
+    @Test
+    public void conditionals() throws ParseException {
+        assertOptimized("x", "if(1, x, y)");
+        assertOptimized("y", "if(2 < 1, x, y)");
+        assertOptimized("NaN", "if(0 / 0, x, y)");
+
+        Scope scope = new Scope();
+        Expression expr = PARSER.parse("if(c > 0, x, y)", scope);
+        scope.getVariable("c").makeConstant(1);
+        assertEquals("x", Optimizer.optimize(expr).toString());
+
+        BinaryOperation product = (BinaryOperation) Optimizer.optimize(PARSER.parse("if(x > y, 2 * x, 2 * y)", scope));
+        assertEquals("2.0", product.getLeft().toString());
+        assertSame(Functions.IF, ((FunctionCall) product.getRight()).getFunction());
+
+        FunctionCall sine = (FunctionCall) Optimizer.optimize(PARSER.parse("if(x, sin(x + 1), sin(y))", scope));
+        assertSame(Functions.SIN, sine.getFunction());
+        assertSame(Functions.IF, ((FunctionCall) sine.getParameters().get(0)).getFunction());
+
+        BinaryOperation nested = (BinaryOperation) Optimizer.optimize(PARSER.parse("if(x, 2 * (y + 1), 2 * (x + 1))",
+                                                                                  scope));
+        BinaryOperation sum = (BinaryOperation) nested.getRight();
+        assertEquals(BinaryOperation.Op.ADD, sum.getOp());
+        assertSame(Functions.IF, ((FunctionCall) sum.getLeft()).getFunction());
+
+        // Comparisons don't propagate NaN, therefore nothing can be hoisted
+        FunctionCall comparison = (FunctionCall) Optimizer.optimize(PARSER.parse("if(x, x < 1, y < 1)", scope));
+        assertSame(Functions.IF, comparison.getFunction());
+    }
+
+    @Test
+    public void structuralEquality() throws ParseException {
+        Scope scope = new Scope();
+        Expression a = PARSER.parse("sqrt(x * x + y) + if(x > 1, 2, -0)", scope);
+        Expression b = PARSER.parse("sqrt(x * x + y) + if(x > 1, 2, -0)", scope);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, PARSER.parse("sqrt(x * x + y) + if(x > 1, 2, 0)", scope));
+        assertNotEquals(PARSER.parse("x + y", scope), PARSER.parse("y + x", scope));
+        assertNotEquals(PARSER.parse("x + y", scope), PARSER.parse("x + y", new Scope()));
+        assertEquals(PARSER.parse("0 / 0", scope), PARSER.parse("0 / 0", scope));
+    }
+
+    @Test
+    public void commonSubexpressions() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Variable z = scope.getVariable("z");
+        Expression expr = PARSER.parse("sqrt(x*x + z*z) * 2 + sqrt(x*x + z*z) / y + x*x - sin(x*x + z*z)", scope);
+        LetExpression let = (LetExpression) Optimizer.eliminateCommonSubexpressions(expr);
+        assertEquals("let $3 = (x MULTIPLY x), $4 = ($3 ADD (z MULTIPLY z)), $5 = ", let.toString().substring(0, 60));
+        assertEquals(3, let.getTemporaries().size());
+        assertEquals(6, let.getFrameSize());
+        for (double value : VALUES) {
+            x.setValue(value);
+            y.setValue(value * 2);
+            z.setValue(-value);
+            double[] frame = scope.createFrame();
+            assertEquals(expr.evaluate(), let.evaluate(), 0d);
+            assertEquals(expr.evaluate(), let.evaluate(frame), 0d);
+            assertEquals(scope.getFrameSize(), frame.length, "the given frame must not be modified");
+        }
+
+        // Subtrees which only occur conditionally aren't computed upfront
+        Expression conditional = PARSER.parse("if(x, sin(y) * 2, sin(y) * 3) + (x > 0 && y / z > 1 || y / z < 0)",
+                                              scope);
+        assertSame(conditional, Optimizer.eliminateCommonSubexpressions(conditional));
+        let = (LetExpression) Optimizer.eliminateCommonSubexpressions(PARSER.parse("sin(y) + if(x, sin(y), 1)", scope));
+        assertEquals(1, let.getTemporaries().size());
+
+        Expression impure = PARSER.parse("rnd(x) + rnd(x) + -x * -x", scope);
+        assertSame(impure, Optimizer.eliminateCommonSubexpressions(impure));
+    }
+
+    @Test
+    public void specialize() throws ParseException {
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable seed = scope.getVariable("seed");
+        Variable level = scope.getVariable("level");
+        Expression expr = PARSER.parse("if(level > 60, sin(seed * 2) * x, x * level) + seed * 1", scope);
+        String original = expr.toString();
+        Map<Variable, Double> values = new HashMap<>();
+        values.put(seed, 3d);
+        values.put(level, 2d);
+        Expression specialized = expr.specialize(values);
+        assertEquals("((x MULTIPLY 2.0) ADD 3.0)", specialized.toString());
+        assertEquals(original, expr.toString(), "the original expression must not be modified");
+        assertFalse(seed.isConstant());
+
+        seed.setValue(3);
+        level.setValue(2);
+        for (double value : VALUES) {
+            x.setValue(value);
+            double[] frame = scope.createFrame();
+            frame[scope.getSlot(seed)] = 42;
+            assertEquals(expr.evaluate(), specialized.evaluate(), 0d);
+            assertEquals(expr.evaluate(), specialized.evaluate(frame), 0d, "specialized variables aren't read");
+        }
+
+        // Common subexpressions are eliminated again
+        LetExpression let = (LetExpression) Optimizer.eliminateCommonSubexpressions(PARSER.parse(
+                "sqrt(x*x + seed) + sqrt(x*x + seed) * level",
+                scope));
+        Expression specializedLet = let.specialize(values);
+        assertTrue(specializedLet instanceof LetExpression);
+        for (double value : VALUES) {
+            x.setValue(value);
+            assertEquals(let.evaluate(), specializedLet.evaluate(), 0d);
+        }
+        values.put(x, 4d);
+        x.setValue(4);
+        assertEquals(let.evaluate(), let.specialize(values).evaluate(), 0d);
+        assertTrue(let.specialize(values).isConstant());
+    }
+
+    @Test
+    public void memoize() throws ParseException {
+        AtomicInteger calls = new AtomicInteger();
+        Parser parser = new Parser();
+        parser.registerFunction("count", new BinaryFunction() {
+            @Override
+            protected double eval(double a, double b) {
+                calls.incrementAndGet();
+                return a * b;
+            }
+        });
+        Scope scope = new Scope();
+        Variable x = scope.getVariable("x");
+        Variable y = scope.getVariable("y");
+        Variable z = scope.getVariable("z");
+        Expression expr = parser.parse("count(x, z) * y + sin(x * z) + y", scope);
+        Expression memoized = Optimizer.memoize(expr);
+        assertTrue(memoized instanceof MemoizedExpression);
+
+        x.setValue(2);
+        z.setValue(3);
+        for (int i = 0; i < 10; i++) {
+            y.setValue(i);
+            assertEquals(expr.evaluate(), memoized.evaluate(), 0d);
+        }
+        assertEquals(11, calls.get(), "count(x, z) is only computed once by the memoized expression");
+
+        calls.set(0);
+        memoized.evaluate();
+        assertEquals(0, calls.get(), "nothing changed, the cached result is used");
+        long version = y.getVersion();
+        y.setValue(9);
+        assertEquals(version + 1, y.getVersion(), "each assignment is a modification");
+        memoized.evaluate();
+        assertEquals(0, calls.get(), "count(x, z) doesn't depend on y");
+        x.setValue(4);
+        assertEquals(expr.evaluate(), memoized.evaluate(), 0d);
+        assertEquals(2, calls.get());
+
+        calls.set(0);
+        double[] frame = scope.createFrame();
+        frame[scope.getSlot(x)] = 5;
+        frame[scope.getSlot(y)] = 1;
+        frame[scope.getSlot(z)] = 3;
+        assertEquals(16 + Math.sin(15), memoized.evaluate(frame), 1e-12);
+        assertEquals(1, calls.get(), "frames don't use the cache");
+
+        Expression impure = Optimizer.memoize(parser.parse("rnd(x) * sin(x)", scope));
+        assertFalse(impure instanceof MemoizedExpression);
+    }
+
+    private void assertOptimized(String expected, String input) throws ParseException {
+        Scope scope = new Scope();
+        assertEquals(expected, Optimizer.optimize(PARSER.parse(input, scope)).toString(), input);
+    }
+}
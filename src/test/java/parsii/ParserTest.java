@@ -12,12 +12,24 @@ import org.junit.jupiter.api.Test;
 import parsii.eval.BinaryOperation;
 import parsii.eval.Expression;
 import parsii.eval.Function;
+import parsii.eval.FunctionRegistry;
+import parsii.eval.Functions;
+import parsii.eval.ParseCache;
 import parsii.eval.Parser;
 import parsii.eval.Scope;
 import parsii.eval.Variable;
+import parsii.tokenizer.Char;
+import parsii.tokenizer.Lookahead;
 import parsii.tokenizer.ParseException;
+import parsii.tokenizer.Token;
+import parsii.tokenizer.Tokenizer;
 
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -50,6 +62,23 @@ public class ParserTest {
         assertEquals(-1d, p.parse("3+(-4)").evaluate(), BinaryOperation.EPSILON);
     }
 
+    @Test
+    public void specializedOperations() throws ParseException {
+        Scope scope = new Scope();
+        scope.getVariable("a").setValue(3);
+        Expression expr = p.parse("a * 2 + 1", scope);
+        assertTrue(expr instanceof BinaryOperation);
+        assertNotEquals(BinaryOperation.class, expr.getClass());
+        assertEquals(BinaryOperation.Op.ADD, ((BinaryOperation) expr).getOp());
+        assertEquals(7d, expr.evaluate(), BinaryOperation.EPSILON);
+
+        Expression legacy = new BinaryOperation(BinaryOperation.Op.MULTIPLY,
+                                                p.parse("a", scope),
+                                                p.parse("4", scope)).simplify();
+        assertNotEquals(BinaryOperation.class, legacy.getClass());
+        assertEquals(12d, legacy.evaluate(), BinaryOperation.EPSILON);
+    }
+
     @Test
     public void number() throws ParseException {
         assertEquals(4003.333333d, p.parse("3.333_333+4_000").evaluate(), BinaryOperation.EPSILON);
@@ -375,4 +404,258 @@ public class ParserTest {
         assertTrue(child.remove("X") == null);
         assertTrue(child.find("X") != null);
     }
+
+    @Test
+    public void parseCache() throws ParseException {
+        Parser parser = new Parser();
+        ParseCache cache = new ParseCache(2);
+        Scope first = new Scope();
+        first.getVariable("a").setValue(2);
+        Scope second = new Scope();
+        second.getVariable("b");
+        second.getVariable("a").setValue(3);
+
+        Expression expr = cache.parse(parser, "a * 4 + pi", first);
+        assertEquals(8 + Math.PI, expr.evaluate(), BinaryOperation.EPSILON);
+        Expression rebound = cache.parse(parser, "  a *  4\t+ pi ", second);
+        assertEquals(12 + Math.PI, rebound.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        double[] frame = second.createFrame();
+        frame[second.getSlot(second.getVariable("a"))] = 5;
+        assertEquals(20 + Math.PI, rebound.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(p.parse("a * 4 + pi").toString(), rebound.toString(), "pi is folded while rebinding");
+
+        // Registering a function invalidates all entries of the parser
+        parser.registerFunction("twice", Functions.ABS);
+        cache.parse(parser, "a * 4 + pi", first);
+        assertEquals(2, cache.getMisses());
+        cache.parse(parser, "a + 1", first);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        assertThrows(ParseException.class,
+                     () -> cache.parse(parser, "a + c", new Scope().withStrictLookup(true)));
+        assertThrows(ParseException.class, () -> cache.parse(parser, "a +", first));
+        assertThrows(IllegalArgumentException.class, () -> cache.parse(new Parser() {
+        }, "a + 1", first));
+    }
+
+    @Test
+    public void functionRegistry() throws ParseException {
+        FunctionRegistry tenant = FunctionRegistry.BUILT_IN.withLayer(Collections.singletonMap("sin", Functions.COS));
+        FunctionRegistry extended = tenant.with("magnitude", Functions.ABS);
+        assertSame(Functions.COS, tenant.get("sin"));
+        assertSame(Functions.SIN, FunctionRegistry.BUILT_IN.get("sin"));
+        assertSame(Functions.TAN, extended.get("tan"));
+        assertNull(tenant.get("magnitude"));
+        assertTrue(extended.getNames().contains("magnitude"));
+
+        assertEquals(1, new Parser(tenant).parse("sin(0)").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(4, new Parser(extended).parse("magnitude(-4)").evaluate(), BinaryOperation.EPSILON);
+
+        Parser parser = new Parser(tenant);
+        parser.registerFunction("magnitude", Functions.ABS);
+        assertNotSame(tenant, parser.getFunctions());
+        assertNull(tenant.get("magnitude"), "registering a function doesn't modify the shared registry");
+        assertEquals(4, parser.parse("magnitude(-4)").evaluate(), BinaryOperation.EPSILON);
+        assertThrows(ParseException.class, () -> new Parser().parse("magnitude(-4)"));
+    }
+
+    @Test
+    public void resetParser() throws ParseException {
+        Parser parser = new Parser();
+        Scope scope = new Scope();
+        scope.getVariable("a").setValue(3);
+        assertEquals(12, parser.reset("a * 4", scope).parse().evaluate(), BinaryOperation.EPSILON);
+        assertEquals(-1, parser.reset(new StringBuilder("sin(0) - 1"), scope).parse().evaluate(),
+                     BinaryOperation.EPSILON);
+
+        ParseException error = assertThrows(ParseException.class, () -> parser.reset("a +", scope).parse());
+        assertEquals(1, error.getErrors().size());
+        assertEquals(5, parser.reset("a\n + 2", scope).parse().evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1, error.getErrors().size(), "resetting the parser doesn't modify previous errors");
+
+        error = assertThrows(ParseException.class, () -> parser.reset("1 +\n  foo(2)", new Scope()).parse());
+        assertEquals(2, error.getErrors().get(0).getPosition().getLine());
+        assertEquals(4, error.getErrors().get(0).getPosition().getPos());
+    }
+
+    @Test
+    public void inMemoryTokenizer() {
+        String input = "x_1 * 1_000.5e-3 // comment\n  |a| ** 2 >= .5 /* block\n */ && 'str' $ -7 1.2.3 1e5e5 \"x";
+        Tokenizer fromReader = new Tokenizer(new StringReader(input));
+        Tokenizer inMemory = new Tokenizer(input);
+        while(fromReader.current().isNotEnd()) {
+            Token expected = fromReader.consume();
+            Token actual = inMemory.consume();
+            assertEquals(expected.toString(), actual.toString());
+            assertEquals(expected.getContents(), actual.getContents());
+            assertEquals(expected.getTrigger(), actual.getTrigger());
+        }
+        assertTrue(inMemory.current().isEnd());
+        assertEquals(fromReader.current().toString(), inMemory.current().toString());
+        assertEquals(fromReader.getProblemCollector().toString(), inMemory.getProblemCollector().toString());
+        assertEquals(3, inMemory.getProblemCollector().size());
+    }
+
+    /**
+     * A tokenizer customized via the <tt>Char</tt> based hooks, which accepts '.' within identifiers and rejects '$'
+     * as symbol.
+     */
+    private static class DottedTokenizer extends Tokenizer {
+        DottedTokenizer(CharSequence input) {
+            super(input);
+        }
+
+        DottedTokenizer(StringReader input) {
+            super(input);
+        }
+
+        @Override
+        protected boolean isIdentifierChar(Char current) {
+            return super.isIdentifierChar(current) || current.is('.');
+        }
+
+        @Override
+        protected boolean isSymbolCharacter(Char ch) {
+            return !ch.is('$') && super.isSymbolCharacter(ch);
+        }
+    }
+
+    @Test
+    public void charHooksOfSubclasses() {
+        String input = "a.b.c + d $ e";
+        for (Tokenizer tokenizer : new Tokenizer[]{new DottedTokenizer(input),
+                                                   new DottedTokenizer(new StringReader(input))}) {
+            assertEquals("a.b.c", tokenizer.consume().getContents());
+            assertTrue(tokenizer.consume().isSymbol("+"));
+            assertEquals("d", tokenizer.consume().getContents());
+            assertEquals("e", tokenizer.consume().getContents());
+            assertTrue(tokenizer.current().isEnd());
+            assertEquals(1, tokenizer.getProblemCollector().size());
+        }
+
+        // Subclasses of a customized tokenizer keep its behaviour
+        Tokenizer tokenizer = new DottedTokenizer(input) {
+        };
+        assertEquals("a.b.c", tokenizer.consume().getContents());
+
+        tokenizer = new Tokenizer(input);
+        assertEquals("a", tokenizer.consume().getContents());
+        assertTrue(tokenizer.consume().isSymbol("."));
+    }
+
+    @Test
+    public void deepLookahead() throws ParseException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            input.append(i == 0 ? "" : " + ").append(i).append(" * 2");
+        }
+        List<String> expected = new ArrayList<>();
+        Tokenizer tokenizer = new Tokenizer(new StringReader(input.toString()));
+        while (tokenizer.current().isNotEnd()) {
+            expected.add(tokenizer.consume().getSource());
+        }
+
+        // Interleave far lookaheads with consumption, so that the buffers wrap around and grow
+        tokenizer = new Tokenizer(new StringReader(input.toString()));
+        int index = 0;
+        while (index < expected.size()) {
+            int offset = index % 37;
+            if (index + offset < expected.size()) {
+                assertEquals(expected.get(index + offset), tokenizer.next(offset).getSource());
+            } else {
+                assertTrue(tokenizer.next(offset).isEnd());
+            }
+            assertEquals(expected.get(index), tokenizer.consume().getSource());
+            index++;
+        }
+        assertTrue(tokenizer.current().isEnd());
+        assertEquals(249500, p.parse(new StringReader(input.toString())).evaluate(), BinaryOperation.EPSILON);
+    }
+
+    /**
+     * A lookahead which exposes its item buffer.
+     */
+    private static class Counter extends Lookahead<Integer> {
+        private int count;
+
+        @Override
+        protected Integer endOfInput() {
+            return -1;
+        }
+
+        @Override
+        protected Integer fetch() {
+            return count++;
+        }
+
+        List<Integer> getItemBuffer() {
+            return itemBuffer;
+        }
+    }
+
+    @Test
+    public void lookaheadBufferIsAList() {
+        Counter counter = new Counter();
+        List<Integer> buffer = counter.getItemBuffer();
+        List<Integer> expected = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int index = random.nextInt(expected.size() + 1);
+            switch (random.nextInt(6)) {
+                case 0:
+                    buffer.add(i);
+                    expected.add(i);
+                    break;
+                case 1:
+                    buffer.add(index, i);
+                    expected.add(index, i);
+                    break;
+                case 2:
+                    if (index < expected.size()) {
+                        assertEquals(expected.set(index, i), buffer.set(index, i));
+                    }
+                    break;
+                case 3:
+                    if (index < expected.size()) {
+                        assertEquals(expected.remove(index), buffer.remove(index));
+                    }
+                    break;
+                case 4:
+                    if (!expected.isEmpty()) {
+                        assertEquals(expected.remove(0), buffer.remove(0));
+                    }
+                    break;
+                default:
+                    if (random.nextInt(100) == 0) {
+                        buffer.clear();
+                        expected.clear();
+                    }
+            }
+            assertEquals(expected, buffer);
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> buffer.get(buffer.size()));
+        assertThrows(IndexOutOfBoundsException.class, () -> buffer.add(buffer.size() + 1, 0));
+
+        ListIterator<Integer> iterator = buffer.listIterator();
+        while (iterator.hasNext()) {
+            int item = iterator.next();
+            if (item % 2 == 0) {
+                iterator.remove();
+            } else {
+                iterator.set(-item);
+            }
+        }
+        expected.removeIf(item -> item % 2 == 0);
+        expected.replaceAll(item -> -item);
+        assertEquals(expected, buffer);
+
+        buffer.clear();
+        assertEquals(Integer.valueOf(0), counter.current());
+        assertEquals(Integer.valueOf(40), counter.next(40));
+        counter.consume(41);
+        assertEquals(Integer.valueOf(41), counter.current());
+    }
 }